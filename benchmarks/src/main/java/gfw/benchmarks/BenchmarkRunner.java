@@ -0,0 +1,37 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks with the GC profiler, so that every run reports the allocation rate next
+ * to throughput and average time. Accepts the usual JMH command line options.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class BenchmarkRunner {
+    /**
+     * DOCUMENT ME!
+     *
+     * @param args JMH command line options
+     * @throws Exception DOCUMENT ME!
+     */
+    public static void main(String[] args)
+            throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
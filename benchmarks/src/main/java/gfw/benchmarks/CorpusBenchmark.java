@@ -0,0 +1,62 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import gfw.Magic;
+import gfw.MagicMatchNotFoundException;
+import gfw.tools.CorpusGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Detection of the whole synthetic corpus, so that every rule path, including the near misses,
+ * is exercised. One operation is one pass over the corpus.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CorpusBenchmark {
+    @Param({"0", "4096"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean onlyMimeMatch;
+
+    private byte[][] corpus;
+
+    @Setup
+    public void setUp()
+            throws Exception {
+        List<CorpusGenerator.Sample> samples = new CorpusGenerator(Magic.getMatchers(), 0).generate(size);
+        corpus = new byte[samples.size()][];
+
+        for (int i = 0; i < corpus.length; i++) {
+            corpus[i] = samples.get(i).getData();
+        }
+    }
+
+    @Benchmark
+    public void corpus(Blackhole blackhole)
+            throws Exception {
+        for (byte[] data : corpus) {
+            try {
+                blackhole.consume(Magic.getMagicResult(data, onlyMimeMatch));
+            } catch (MagicMatchNotFoundException e) {
+                blackhole.consume(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import gfw.Magic;
+import gfw.MagicMatch;
+import gfw.MagicMatchNotFoundException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Detection of the sample documents through the public entry points
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DetectionBenchmark {
+    @Param({"test.gif", "test.png", "test.jpg", "test.txt", "test.pdf", "test_word.docx",
+            "test_word_2000.doc", "test_excel_2000.xls", "test.odt", "test_128_44_jstereo.mp3"})
+    public String sample;
+
+    @Param({"true", "false"})
+    public boolean onlyMimeMatch;
+
+    private File file;
+    private byte[] data;
+
+    @Setup
+    public void setUp()
+            throws Exception {
+        Magic.initialize();
+        file = Samples.file(sample);
+        data = Samples.read(file);
+    }
+
+    @Benchmark
+    public MagicMatch bytes()
+            throws Exception {
+        try {
+            return Magic.getMagicMatch(data, onlyMimeMatch);
+        } catch (MagicMatchNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public MagicMatch file()
+            throws Exception {
+        try {
+            return Magic.getMagicMatch(file, false, onlyMimeMatch);
+        } catch (MagicMatchNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public MagicMatch fileWithHints()
+            throws Exception {
+        try {
+            return Magic.getMagicMatch(file, true, onlyMimeMatch);
+        } catch (MagicMatchNotFoundException e) {
+            return null;
+        }
+    }
+}
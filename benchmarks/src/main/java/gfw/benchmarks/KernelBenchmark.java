@@ -0,0 +1,68 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import gfw.ByteKernels;
+import gfw.detectors.TextFileDetector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The scalar and vector byte kernels on a window of log-like text, and the text detector that
+ * uses them. The fork adds jdk.incubator.vector, run with -jvmArgsAppend -Dgfw.magic.vector=false
+ * to see the detector on the scalar kernels.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class KernelBenchmark {
+    @Param({"scalar", "instance"})
+    public String kernels;
+
+    @Param({"64", "8192"})
+    public int size;
+
+    private ByteKernels k;
+    private byte[] text;
+    private byte[] copy;
+    private TextFileDetector detector;
+
+    @Setup
+    public void setUp() {
+        k = kernels.equals("scalar") ? ByteKernels.getScalar() : ByteKernels.getInstance();
+        text = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            text[i] = (byte) (((i % 80) == 79) ? '\n' : (' ' + (i * 7) % 95));
+        }
+
+        copy = text.clone();
+        detector = new TextFileDetector();
+    }
+
+    @Benchmark
+    public int mismatch() {
+        return k.mismatch(text, 0, copy, 0, size);
+    }
+
+    @Benchmark
+    public int skipPlainText() {
+        return k.skipPlainText(text, 0, size);
+    }
+
+    @Benchmark
+    public String[] textDetector() {
+        return detector.process(text, 0, 0, 0, '=', null, null);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import gfw.MagicParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Parsing magic.xml into the rule tree
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleLoadingBenchmark {
+    @Benchmark
+    public MagicParser load()
+            throws Exception {
+        MagicParser parser = new MagicParser();
+        parser.initialize();
+
+        return parser;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import gfw.Magic;
+import gfw.MagicExplanation;
+import gfw.MagicMatch;
+import gfw.MagicMatchNotFoundException;
+import gfw.MagicResult;
+import gfw.tools.CorpusGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Detection when the data matches the first root rule, against binary noise that no magic rule
+ * recognises. Rules are only tried if they can match the first byte of the data, so noise with an
+ * arbitrary first byte is turned down after a few of them. The worst case is noise starting with
+ * the byte the most root rules test for, which goes through all of those down to the detectors.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RulePositionBenchmark {
+    @Param({"64", "4096", "65536"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean onlyMimeMatch;
+
+    private byte[] first;
+    private byte[] none;
+    private byte[] crowded;
+
+    @Setup
+    public void setUp()
+            throws Exception {
+        // the samples come in rule order, so the first hit is for the first rule we can satisfy
+        for (CorpusGenerator.Sample sample : new CorpusGenerator(Magic.getMatchers(), 0).generate(size)) {
+            if (sample.getKind().equals(CorpusGenerator.HIT)) {
+                first = sample.getData();
+
+                break;
+            }
+        }
+
+        if (first == null) {
+            throw new IllegalStateException("no sample could be generated for any root rule");
+        }
+
+        // noise that happens to match a magic rule is of no use here, try other seeds
+        for (long seed = 0; seed < 1000; seed++) {
+            byte[] b = Samples.noise(size, seed);
+
+            try {
+                if (Magic.getMagicResult(b, true).getRule().getType().equals("detector")) {
+                    none = b;
+
+                    break;
+                }
+            } catch (MagicMatchNotFoundException e) {
+                none = b;
+
+                break;
+            }
+        }
+
+        if (none == null) {
+            throw new IllegalStateException("could not build data that no magic rule matches");
+        }
+
+        // try every first byte and keep the one that leaves the most root rules to evaluate
+        int mostTried = -1;
+
+        for (int firstByte = 0; firstByte < 256; firstByte++) {
+            for (long seed = 0; seed < 16; seed++) {
+                byte[] b = Samples.noise(size, seed);
+                b[0] = (byte) firstByte;
+
+                MagicExplanation explanation = Magic.explain(b, true);
+                MagicResult result = explanation.getResult();
+
+                if ((result == null) || result.getRule().getType().equals("detector")) {
+                    int tried = 0;
+
+                    for (MagicExplanation.Step step : explanation.getSteps()) {
+                        if (step.getDepth() == 0) {
+                            tried++;
+                        }
+                    }
+
+                    if (tried > mostTried) {
+                        mostTried = tried;
+                        crowded = b;
+                    }
+
+                    break;
+                }
+            }
+        }
+
+        if (crowded == null) {
+            throw new IllegalStateException("could not build data that no magic rule matches");
+        }
+    }
+
+    @Benchmark
+    public MagicMatch firstRule()
+            throws Exception {
+        return Magic.getMagicMatch(first, onlyMimeMatch);
+    }
+
+    @Benchmark
+    public MagicMatch noMagicRule()
+            throws Exception {
+        try {
+            return Magic.getMagicMatch(none, onlyMimeMatch);
+        } catch (MagicMatchNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public MagicMatch crowdedFirstByte()
+            throws Exception {
+        try {
+            return Magic.getMagicMatch(crowded, onlyMimeMatch);
+        } catch (MagicMatchNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import gfw.Magic;
+import gfw.MagicMatch;
+import gfw.MagicMatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Evaluation of a single regex rule and a single detector rule, which look at the whole input
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleTypeBenchmark {
+    @Param({"test.txt", "test.pdf", "test.ps", "test.rtf"})
+    public String sample;
+
+    private MagicMatcher regex;
+    private MagicMatcher detector;
+    private byte[] data;
+
+    @Setup
+    public void setUp()
+            throws Exception {
+        for (MagicMatcher matcher : Magic.getMatchers()) {
+            String type = matcher.getMatch().getType();
+
+            if ((regex == null) && type.equals("regex")) {
+                regex = matcher;
+            } else if ((detector == null) && type.equals("detector")
+                    && new String(matcher.getMatch().getTest().array()).endsWith("TextFileDetector")) {
+                detector = matcher;
+            }
+        }
+
+        if ((regex == null) || (detector == null)) {
+            throw new IllegalStateException("magic.xml needs a regex and a text detector root rule");
+        }
+
+        data = Samples.read(Samples.file(sample));
+    }
+
+    @Benchmark
+    public MagicMatch regexRule()
+            throws Exception {
+        return regex.test(data, true);
+    }
+
+    @Benchmark
+    public MagicMatch detectorRule()
+            throws Exception {
+        return detector.test(data, true);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.benchmarks;
+
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+
+/**
+ * Access to the sample documents and synthetic inputs used by the benchmarks
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class Samples {
+    // the benchmarks are run from the benchmarks directory, the samples live in the parent
+    private static final String TEST_DOCS = System.getProperty("testDocs", "../test_docs");
+
+    private Samples() {
+    }
+
+    /**
+     * get a sample document
+     *
+     * @param name the file name in the test_docs directory
+     * @return the file
+     * @throws FileNotFoundException if the sample does not exist
+     */
+    static File file(String name)
+            throws FileNotFoundException {
+        File f = new File(TEST_DOCS, name);
+
+        if (!f.isFile()) {
+            throw new FileNotFoundException("sample '" + f.getAbsolutePath() + "' not found, set -DtestDocs");
+        }
+
+        return f;
+    }
+
+    /**
+     * read a whole file
+     *
+     * @param f the file
+     * @return its contents
+     * @throws IOException if the file cannot be read
+     */
+    static byte[] read(File f)
+            throws IOException {
+        return Files.readAllBytes(f.toPath());
+    }
+
+    /**
+     * deterministic binary data with no structure
+     *
+     * @param size the number of bytes
+     * @param seed the random seed
+     * @return the data
+     */
+    static byte[] noise(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+
+        return b;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Thread helpers for the long running modes. This is the Java 21 version of the class, packaged
+ * under META-INF/versions/21 of the multi-release jar. It builds its virtual threads directly, so
+ * they carry names like the platform threads of older runtimes instead of the empty names of
+ * the executor the baseline class looks up.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class Threads {
+    private Threads() {
+    }
+
+    /**
+     * create an executor that starts a named virtual thread per task. Detections spend most of
+     * their time waiting for file reads, which a virtual thread does without holding a carrier
+     * thread.
+     *
+     * @param name the prefix for the names of the threads, which are numbered from 1
+     * @return the executor
+     */
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+    }
+}
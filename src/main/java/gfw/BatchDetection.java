@@ -0,0 +1,405 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+
+/**
+ * The batch mode of {@link Magic#main(String[])}. Paths come from the arguments, from stdin or from
+ * walking directories, are detected on a pool of threads and each result is written as one line as
+ * soon as it is available. The queue of pending paths is bounded, so memory use does not grow
+ * with the number of files. A path that cannot be read or detected gets an error line and the
+ * batch goes on with the next one.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class BatchDetection {
+    static final String USAGE = "usage: Magic -batch [-threads n] [-format tsv|json] [-nohints] [path ...|-]";
+
+    private final ThreadPoolExecutor executor;
+    private final PrintStream out;
+    private final boolean json;
+    private final boolean extensionHints;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * constructor
+     *
+     * @param threads        the number of detection threads
+     * @param json           write JSON Lines instead of tab separated values
+     * @param extensionHints whether or not to use extension hints
+     * @param out            the stream results are written to
+     */
+    BatchDetection(int threads, boolean json, boolean extensionHints, PrintStream out) {
+        // when the queue is full the reading thread detects the path itself, which slows reading down
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.json = json;
+        this.extensionHints = extensionHints;
+        this.out = out;
+    }
+
+    /**
+     * run the batch mode
+     *
+     * @param args the arguments following -batch
+     * @return the exit status, 0 if every path was detected or found not to match, 1 otherwise
+     */
+    static int run(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean json = false;
+        boolean hints = true;
+        List<String> paths = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                try {
+                    threads = (i < (args.length - 1)) ? Integer.parseInt(args[++i]) : 0;
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+
+                if (threads < 1) {
+                    System.err.println(USAGE);
+
+                    return 1;
+                }
+            } else if (args[i].equals("-format")) {
+                String format = (i < (args.length - 1)) ? args[++i] : "";
+
+                if (!format.equals("tsv") && !format.equals("json")) {
+                    System.err.println(USAGE);
+
+                    return 1;
+                }
+
+                json = format.equals("json");
+            } else if (args[i].equals("-nohints")) {
+                hints = false;
+            } else {
+                paths.add(args[i]);
+            }
+        }
+
+        try {
+            // load the rules before any thread needs them
+            Magic.initialize();
+        } catch (MagicParseException e) {
+            System.err.println("error: " + e);
+
+            return 1;
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536),
+                false, StandardCharsets.UTF_8);
+        BatchDetection batch = new BatchDetection(threads, json, hints, out);
+
+        try {
+            if (paths.isEmpty() || ((paths.size() == 1) && paths.get(0).equals("-"))) {
+                batch.submitLines(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+            } else {
+                for (String path : paths) {
+                    batch.submitPath(path);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("error: " + e);
+            batch.failures.incrementAndGet();
+        } finally {
+            batch.finish();
+        }
+
+        return (batch.getFailures() > 0) ? 1 : 0;
+    }
+
+    /**
+     * detect every path read from a reader, one per line
+     *
+     * @param reader the reader
+     * @throws IOException if the reader fails
+     */
+    void submitLines(BufferedReader reader)
+            throws IOException {
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            if (line.length() > 0) {
+                submitPath(line);
+            }
+        }
+    }
+
+    /**
+     * detect a file, or every file below a directory. A path that is not valid or a directory that
+     * cannot be walked gets an error line.
+     *
+     * @param name the path
+     */
+    void submitPath(String name) {
+        Path path;
+
+        try {
+            path = Paths.get(name);
+        } catch (InvalidPathException e) {
+            fail(name, e.getMessage());
+
+            return;
+        }
+
+        if (!Files.isDirectory(path)) {
+            submit(path.toFile());
+
+            return;
+        }
+
+        try {
+            Stream<Path> walk = Files.walk(path);
+
+            try {
+                Iterator<Path> i = walk.iterator();
+
+                while (i.hasNext()) {
+                    Path p = i.next();
+
+                    if (Files.isRegularFile(p)) {
+                        submit(p.toFile());
+                    }
+                }
+            } finally {
+                walk.close();
+            }
+        } catch (IOException e) {
+            fail(name, String.valueOf(e.getMessage()));
+        } catch (UncheckedIOException e) {
+            // the files found before the walk failed are still detected
+            fail(name, String.valueOf(e.getCause().getMessage()));
+        }
+    }
+
+    /**
+     * get the number of paths that could not be read or detected
+     *
+     * @return the number of paths
+     */
+    int getFailures() {
+        return failures.get();
+    }
+
+    private void fail(String path, String error) {
+        failures.incrementAndGet();
+        write(format(path, null, null, null, error));
+    }
+
+    private void submit(final File file) {
+        executor.execute(new Runnable() {
+            public void run() {
+                write(detect(file));
+            }
+        });
+    }
+
+    /**
+     * wait for all submitted paths to be detected and flush the output
+     */
+    void finish() {
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        out.flush();
+    }
+
+    /**
+     * detect a file and format the result as an output line
+     *
+     * @param file the file
+     * @return the line, without line separator
+     */
+    String detect(File file) {
+        String path = file.getPath();
+
+        try {
+            MagicResult result = Magic.getMagicResult(file, extensionHints, true);
+
+            return format(path, result.getMimeType(), result.getDescription(), result.getExtension(), null);
+        } catch (MagicMatchNotFoundException e) {
+            return format(path, null, null, null, null);
+        } catch (MagicException e) {
+            failures.incrementAndGet();
+
+            return format(path, null, null, null, String.valueOf(e.getMessage()));
+        } catch (MagicParseException e) {
+            failures.incrementAndGet();
+
+            return format(path, null, null, null, String.valueOf(e.getMessage()));
+        } catch (RuntimeException e) {
+            // a detector that fails on one file does not take the rest of the batch with it
+            failures.incrementAndGet();
+
+            return format(path, null, null, null, e.toString());
+        }
+    }
+
+    /**
+     * format a result. Tab separated lines hold the path, mime type, description and extension,
+     * with an empty mime type when nothing matched and the error in place of the description when
+     * the file could not be read.
+     *
+     * @param path        the path
+     * @param mimeType    the mime type, or null
+     * @param description the description, or null
+     * @param extension   the extension, or null
+     * @param error       the error, or null
+     * @return the line
+     */
+    String format(String path, String mimeType, String description, String extension, String error) {
+        StringBuilder s = new StringBuilder(128);
+
+        if (json) {
+            s.append("{\"path\":");
+            appendJson(s, path);
+            s.append(",\"mimeType\":");
+            appendJson(s, mimeType);
+            s.append(",\"description\":");
+            appendJson(s, description);
+            s.append(",\"extension\":");
+            appendJson(s, extension);
+
+            if (error != null) {
+                s.append(",\"error\":");
+                appendJson(s, error);
+            }
+
+            return s.append('}').toString();
+        }
+
+        appendTsv(s, path);
+        s.append('\t');
+        appendTsv(s, mimeType);
+        s.append('\t');
+        appendTsv(s, (error != null) ? ("error: " + error) : description);
+        s.append('\t');
+        appendTsv(s, extension);
+
+        return s.toString();
+    }
+
+    private void write(String line) {
+        synchronized (out) {
+            out.println(line);
+
+            // flush once nothing else is waiting, so results show up without a syscall per line
+            if (executor.getQueue().isEmpty()) {
+                out.flush();
+            }
+        }
+    }
+
+    private static void appendTsv(StringBuilder s, String value) {
+        if (value == null) {
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '\t':
+                    s.append("\\t");
+                    break;
+
+                case '\n':
+                    s.append("\\n");
+                    break;
+
+                case '\r':
+                    s.append("\\r");
+                    break;
+
+                case '\\':
+                    s.append("\\\\");
+                    break;
+
+                default:
+                    s.append(c);
+            }
+        }
+    }
+
+    private static void appendJson(StringBuilder s, String value) {
+        if (value == null) {
+            s.append("null");
+
+            return;
+        }
+
+        s.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    s.append("\\\"");
+                    break;
+
+                case '\\':
+                    s.append("\\\\");
+                    break;
+
+                case '\n':
+                    s.append("\\n");
+                    break;
+
+                case '\r':
+                    s.append("\\r");
+                    break;
+
+                case '\t':
+                    s.append("\\t");
+                    break;
+
+                default:
+                    if (c < 0x20) {
+                        s.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        s.append(c);
+                    }
+            }
+        }
+
+        s.append('"');
+    }
+}
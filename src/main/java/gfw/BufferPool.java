@@ -0,0 +1,127 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A pool of byte arrays in power of two size classes, for the header, windows and scratch
+ * buffers of detections. Each class keeps a fixed number of slots that are taken and filled with
+ * compare and set, so a detection neither blocks nor depends on the thread it runs on, which
+ * keeps the pool useful with virtual threads where a thread local would hold one set of buffers
+ * per task. Arrays larger than the largest class are not pooled.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class BufferPool {
+    // the smallest and largest pooled sizes, as powers of two
+    static final int MIN_SHIFT = 12;
+    static final int MAX_SHIFT = 20;
+    // the memory a size class holds on to at most, and its fewest and most slots
+    private static final int CLASS_BYTES = 4 << 20;
+    private static final int MIN_SLOTS = 4;
+    private static final int MAX_SLOTS = 64;
+
+    /**
+     * the pool shared by all detections
+     */
+    static final BufferPool SHARED = new BufferPool();
+
+    private final AtomicReferenceArray<byte[]>[] classes;
+
+    /**
+     * constructor
+     */
+    @SuppressWarnings("unchecked")
+    BufferPool() {
+        classes = (AtomicReferenceArray<byte[]>[]) new AtomicReferenceArray<?>[(MAX_SHIFT - MIN_SHIFT) + 1];
+
+        for (int i = 0; i < classes.length; i++) {
+            int slots = Math.max(MIN_SLOTS, Math.min(MAX_SLOTS, CLASS_BYTES >> (MIN_SHIFT + i)));
+            classes[i] = new AtomicReferenceArray<byte[]>(slots);
+        }
+    }
+
+    /**
+     * get the size of the class that serves a request
+     *
+     * @param size the number of bytes needed
+     * @return the length of the arrays of the class, or size if it is too large to be pooled
+     */
+    static int classSize(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 1 << MIN_SHIFT;
+        }
+
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+
+        return (shift <= MAX_SHIFT) ? (1 << shift) : size;
+    }
+
+    /**
+     * take an array of at least size bytes out of the pool. The array may hold old data.
+     *
+     * @param size    the number of bytes needed
+     * @param metrics the metrics counting hits and misses, or null
+     * @return the array, newly allocated if the class is empty
+     */
+    byte[] acquire(int size, MagicMetrics metrics) {
+        int length = classSize(size);
+        AtomicReferenceArray<byte[]> slots = slots(length);
+
+        if (slots != null) {
+            for (int i = 0; i < slots.length(); i++) {
+                byte[] b = slots.get(i);
+
+                if ((b != null) && slots.compareAndSet(i, b, null)) {
+                    if (metrics != null) {
+                        metrics.bufferAcquired(true);
+                    }
+
+                    return b;
+                }
+            }
+        }
+
+        if (metrics != null) {
+            metrics.bufferAcquired(false);
+        }
+
+        return new byte[length];
+    }
+
+    /**
+     * put an array back into the pool. The caller must not use it afterwards. Arrays that are not
+     * of a class size, or whose class is full, are left to the garbage collector.
+     *
+     * @param b the array
+     */
+    void release(byte[] b) {
+        AtomicReferenceArray<byte[]> slots = slots(b.length);
+
+        if (slots == null) {
+            return;
+        }
+
+        for (int i = 0; i < slots.length(); i++) {
+            if ((slots.get(i) == null) && slots.compareAndSet(i, null, b)) {
+                return;
+            }
+        }
+    }
+
+    private AtomicReferenceArray<byte[]> slots(int length) {
+        if ((length & (length - 1)) != 0) {
+            return null;
+        }
+
+        int shift = 31 - Integer.numberOfLeadingZeros(length);
+
+        return ((shift >= MIN_SHIFT) && (shift <= MAX_SHIFT)) ? classes[shift - MIN_SHIFT] : null;
+    }
+}
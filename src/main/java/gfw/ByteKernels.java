@@ -0,0 +1,86 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+/**
+ * The byte loops of the engine that are worth vectorizing. A SIMD implementation built on
+ * jdk.incubator.vector is used when it is compiled in with the vector build profile and the
+ * module is present at runtime, which needs --add-modules jdk.incubator.vector; otherwise the
+ * scalar one. Setting the system property gfw.magic.vector to false forces the scalar
+ * implementation.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public abstract class ByteKernels {
+    private static final ByteKernels SCALAR = new ScalarByteKernels();
+    private static final ByteKernels INSTANCE = load();
+
+    ByteKernels() {
+    }
+
+    private static ByteKernels load() {
+        if (Boolean.parseBoolean(System.getProperty("gfw.magic.vector", "true"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (ByteKernels) Class.forName("gfw.VectorByteKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                // not compiled in
+            } catch (LinkageError e) {
+                // not compiled in
+            }
+        }
+
+        return SCALAR;
+    }
+
+    /**
+     * get the implementation used by the engine
+     *
+     * @return the vector implementation if available, otherwise the scalar one
+     */
+    public static ByteKernels getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * get the scalar implementation, the reference for the others
+     *
+     * @return the scalar implementation
+     */
+    public static ByteKernels getScalar() {
+        return SCALAR;
+    }
+
+    /**
+     * get the name of this implementation
+     *
+     * @return the name
+     */
+    public abstract String getName();
+
+    /**
+     * find the first position where two ranges of bytes differ
+     *
+     * @param a       the first array
+     * @param aOffset the start of the range in the first array
+     * @param b       the second array
+     * @param bOffset the start of the range in the second array
+     * @param length  the length of the ranges
+     * @return the index of the first difference relative to the start of the ranges, or -1 if they are equal
+     */
+    public abstract int mismatch(byte[] a, int aOffset, byte[] b, int bOffset, int length);
+
+    /**
+     * skip plain text: printable ASCII, tab, line feed and carriage return
+     *
+     * @param b    the bytes
+     * @param from the first position to look at
+     * @param to   the end of the range
+     * @return the position of the first other byte, or to if there is none
+     */
+    public abstract int skipPlainText(byte[] b, int from, int to);
+}
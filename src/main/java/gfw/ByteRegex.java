@@ -0,0 +1,815 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A regular expression compiled into a deterministic automaton over bytes, which tests whole
+ * inputs the way {@link java.util.regex.Matcher#matches()} does in a single pass without
+ * backtracking. Each byte stands for the ISO-8859-1 character of the same value, which is how
+ * regex rules see their data. The supported subset is literals, escapes for control characters
+ * and bytes, the classes \d \w \s and their negations, bracket classes with ranges and
+ * negation, the dot, groups, alternation and greedy or lazy quantifiers, plus ^ at the start and $
+ * at the end of the pattern. Everything else, such as back references, lookaround, inline flags,
+ * possessive quantifiers, word boundaries and Unicode classes, makes {@link #compile(String)}
+ * return null, and the caller falls back to java.util.regex.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class ByteRegex {
+    // limits on the work done when a rule is loaded
+    private static final int MAX_NFA_STATES = 4096;
+    private static final int MAX_DFA_STATES = 512;
+    private static final int MAX_REPEAT = 256;
+
+    // transitions to no state, and to a state that accepts whatever follows
+    private static final int DEAD = -1;
+    private static final int ALL = -2;
+
+    // the characters . does not match, the line terminators that fit in a byte
+    private static final long[] DOT = complement(set('\n', '\r', 0x85));
+    private static final long[] DIGIT = range(new long[4], '0', '9');
+    private static final long[] WORD = range(range(range(set('_'), '0', '9'), 'a', 'z'), 'A', 'Z');
+    private static final long[] SPACE = set(' ', '\t', '\n', 0x0b, '\f', '\r');
+
+    // the next state by state and byte
+    private final int[] transitions;
+    private final boolean[] accepting;
+    // the start state already accepts anything
+    private final boolean matchesAll;
+
+    private ByteRegex(int[] transitions, boolean[] accepting, boolean matchesAll) {
+        this.transitions = transitions;
+        this.accepting = accepting;
+        this.matchesAll = matchesAll;
+    }
+
+    /**
+     * compile a pattern
+     *
+     * @param pattern the pattern, one character per byte
+     * @return the automaton, or null if the pattern is outside the supported subset, is not valid
+     *         or would need too many states
+     */
+    static ByteRegex compile(String pattern) {
+        try {
+            Node node = new Parser(pattern).parse();
+            Nfa nfa = new Nfa();
+            int start = nfa.emit(node, nfa.state(null, -1, -1));
+
+            return nfa.determinize(start);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * test whether the whole of a part of an array matches
+     *
+     * @param b   the array
+     * @param off the start of the input
+     * @param len the length of the input
+     * @return if the input matches
+     */
+    boolean matches(byte[] b, int off, int len) {
+        return accepts(step(start(), b, off, len));
+    }
+
+    /**
+     * get the state before any input, for testing an input a part at a time with
+     * {@link #step(int, byte[], int, int)}
+     *
+     * @return the state
+     */
+    int start() {
+        return matchesAll ? ALL : 0;
+    }
+
+    /**
+     * run the automaton over the next part of an input
+     *
+     * @param state the state after the input before this part
+     * @param b     the array
+     * @param off   the start of the part
+     * @param len   the length of the part
+     * @return the state after the part
+     */
+    int step(int state, byte[] b, int off, int len) {
+        int[] t = transitions;
+        int s = state;
+
+        for (int i = off, end = off + len; (i < end) && (s >= 0); i++) {
+            s = t[(s << 8) | (b[i] & 0xff)];
+        }
+
+        return s;
+    }
+
+    /**
+     * whether no more input can change the outcome
+     *
+     * @param state the state
+     * @return true if the input is known to match or not to match whatever follows
+     */
+    boolean isFinal(int state) {
+        return state < 0;
+    }
+
+    /**
+     * whether the input up to a state matches
+     *
+     * @param state the state after the input
+     * @return if the input matches
+     */
+    boolean accepts(int state) {
+        return (state >= 0) ? accepting[state] : (state == ALL);
+    }
+
+    /**
+     * test whether the remaining bytes of a buffer match, without moving its position
+     *
+     * @param b the buffer
+     * @return if the input matches
+     */
+    boolean matches(ByteBuffer b) {
+        if (b.hasArray()) {
+            return matches(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+
+        if (matchesAll) {
+            return true;
+        }
+
+        int[] t = transitions;
+        int s = 0;
+
+        for (int i = b.position(), end = b.limit(); i < end; i++) {
+            s = t[(s << 8) | (b.get(i) & 0xff)];
+
+            if (s < 0) {
+                return s == ALL;
+            }
+        }
+
+        return accepting[s];
+    }
+
+    private static long[] set(int... bytes) {
+        long[] s = new long[4];
+
+        for (int b : bytes) {
+            s[b >> 6] |= 1L << b;
+        }
+
+        return s;
+    }
+
+    private static long[] range(long[] s, int from, int to) {
+        for (int b = from; b <= to; b++) {
+            s[b >> 6] |= 1L << b;
+        }
+
+        return s;
+    }
+
+    private static long[] complement(long[] s) {
+        return new long[]{~s[0], ~s[1], ~s[2], ~s[3]};
+    }
+
+    private static boolean contains(long[] s, int b) {
+        return (s[b >> 6] & (1L << b)) != 0;
+    }
+
+    /**
+     * thrown for patterns outside the supported subset
+     */
+    private static final class Unsupported extends Exception {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * a node of the syntax tree
+     */
+    private static final class Node {
+        static final int SET = 0;
+        static final int CONCAT = 1;
+        static final int ALTERNATION = 2;
+        static final int REPEAT = 3;
+
+        final int kind;
+        final long[] set;
+        final List<Node> children;
+        final int min;
+        // -1 for no upper bound
+        final int max;
+
+        Node(int kind, long[] set, List<Node> children, int min, int max) {
+            this.kind = kind;
+            this.set = set;
+            this.children = children;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * recursive descent parser for the supported subset
+     */
+    private static final class Parser {
+        private final String p;
+        private int i = 0;
+
+        Parser(String pattern) {
+            this.p = pattern;
+        }
+
+        Node parse()
+                throws Unsupported {
+            int end = p.length();
+
+            // anchors are implied when the whole input has to match
+            if (p.startsWith("^")) {
+                i = 1;
+            }
+
+            if (p.endsWith("$") && !escaped(end - 1)) {
+                end--;
+            }
+
+            Node n = alternation(end);
+
+            if (i != end) {
+                throw new Unsupported();
+            }
+
+            return n;
+        }
+
+        private boolean escaped(int at) {
+            int backslashes = 0;
+
+            while ((at - backslashes - 1 >= 0) && (p.charAt(at - backslashes - 1) == '\\')) {
+                backslashes++;
+            }
+
+            return (backslashes & 1) != 0;
+        }
+
+        private Node alternation(int end)
+                throws Unsupported {
+            List<Node> alternatives = new ArrayList<Node>();
+            alternatives.add(concatenation(end));
+
+            while ((i < end) && (p.charAt(i) == '|')) {
+                i++;
+                alternatives.add(concatenation(end));
+            }
+
+            return (alternatives.size() == 1) ? alternatives.get(0)
+                    : new Node(Node.ALTERNATION, null, alternatives, 0, 0);
+        }
+
+        private Node concatenation(int end)
+                throws Unsupported {
+            List<Node> items = new ArrayList<Node>();
+
+            while ((i < end) && (p.charAt(i) != '|') && (p.charAt(i) != ')')) {
+                items.add(repetition(end));
+            }
+
+            return new Node(Node.CONCAT, null, items, 0, 0);
+        }
+
+        private Node repetition(int end)
+                throws Unsupported {
+            Node atom = atom(end);
+
+            if (i < end) {
+                char c = p.charAt(i);
+                int min;
+                int max;
+
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    i++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    i++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    i++;
+                } else if (c == '{') {
+                    i++;
+                    min = number(end);
+                    max = min;
+
+                    if ((i < end) && (p.charAt(i) == ',')) {
+                        i++;
+                        max = ((i < end) && (p.charAt(i) == '}')) ? -1 : number(end);
+                    }
+
+                    if ((i >= end) || (p.charAt(i) != '}') || ((max >= 0) && (max < min))) {
+                        throw new Unsupported();
+                    }
+
+                    i++;
+                } else {
+                    return atom;
+                }
+
+                // lazy quantifiers only change which match is found, not whether there is one
+                if ((i < end) && (p.charAt(i) == '?')) {
+                    i++;
+                }
+
+                // possessive quantifiers can fail where a backtracking match succeeds, and Java
+                // reads stacked quantifiers its own way
+                if ((i < end) && ("*+?{".indexOf(p.charAt(i)) >= 0)) {
+                    throw new Unsupported();
+                }
+
+                atom = new Node(Node.REPEAT, null, Collections.singletonList(atom), min, max);
+            }
+
+            return atom;
+        }
+
+        private int number(int end)
+                throws Unsupported {
+            int start = i;
+
+            while ((i < end) && Character.isDigit(p.charAt(i)) && ((i - start) < 4)) {
+                i++;
+            }
+
+            if (i == start) {
+                throw new Unsupported();
+            }
+
+            int n = Integer.parseInt(p.substring(start, i));
+
+            if (n > MAX_REPEAT) {
+                throw new Unsupported();
+            }
+
+            return n;
+        }
+
+        private Node atom(int end)
+                throws Unsupported {
+            char c = p.charAt(i++);
+
+            switch (c) {
+                case '(': {
+                    if ((i < end) && (p.charAt(i) == '?')) {
+                        // only non-capturing groups, no flags or lookaround
+                        if (((i + 1) < end) && (p.charAt(i + 1) == ':')) {
+                            i += 2;
+                        } else {
+                            throw new Unsupported();
+                        }
+                    }
+
+                    Node n = alternation(end);
+
+                    if ((i >= end) || (p.charAt(i) != ')')) {
+                        throw new Unsupported();
+                    }
+
+                    i++;
+
+                    return n;
+                }
+
+                case '[':
+                    return node(bracket(end));
+
+                case '.':
+                    return node(DOT);
+
+                case '\\':
+                    return node(escape(end));
+
+                case ')':
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                case '^':
+                case '$':
+                    throw new Unsupported();
+
+                default:
+                    return node(literal(c));
+            }
+        }
+
+        private long[] bracket(int end)
+                throws Unsupported {
+            boolean negated = (i < end) && (p.charAt(i) == '^');
+
+            if (negated) {
+                i++;
+            }
+
+            long[] s = new long[4];
+            boolean first = true;
+
+            while (true) {
+                if (i >= end) {
+                    throw new Unsupported();
+                }
+
+                char c = p.charAt(i++);
+
+                if ((c == ']') && !first) {
+                    break;
+                }
+
+                // nested classes, intersections and a leading ] are read differently by Java
+                if ((c == '[') || (c == ']') || ((c == '&') && (i < end) && (p.charAt(i) == '&'))) {
+                    throw new Unsupported();
+                }
+
+                first = false;
+
+                long[] item;
+                int from = -1;
+
+                if (c == '\\') {
+                    item = escape(end);
+
+                    if (single(item) >= 0) {
+                        from = single(item);
+                    }
+                } else {
+                    item = literal(c);
+                    from = (c <= 0xff) ? c : -1;
+                }
+
+                if ((from >= 0) && ((i + 1) < end) && (p.charAt(i) == '-') && (p.charAt(i + 1) != ']')) {
+                    i++;
+
+                    char d = p.charAt(i++);
+                    int to;
+
+                    if (d == '\\') {
+                        to = single(escape(end));
+                    } else if (d == '[') {
+                        throw new Unsupported();
+                    } else {
+                        to = d;
+                    }
+
+                    if ((to < 0) || (to > 0xff) || (to < from)) {
+                        throw new Unsupported();
+                    }
+
+                    range(s, from, to);
+                } else if ((from < 0) && ((i + 1) < end) && (p.charAt(i) == '-') && (p.charAt(i + 1) != ']')) {
+                    // a range from a class
+                    throw new Unsupported();
+                } else {
+                    for (int k = 0; k < 4; k++) {
+                        s[k] |= item[k];
+                    }
+                }
+            }
+
+            return negated ? complement(s) : s;
+        }
+
+        private long[] escape(int end)
+                throws Unsupported {
+            if (i >= end) {
+                throw new Unsupported();
+            }
+
+            char c = p.charAt(i++);
+
+            switch (c) {
+                case 'd':
+                    return DIGIT.clone();
+
+                case 'D':
+                    return complement(DIGIT);
+
+                case 'w':
+                    return WORD.clone();
+
+                case 'W':
+                    return complement(WORD);
+
+                case 's':
+                    return SPACE.clone();
+
+                case 'S':
+                    return complement(SPACE);
+
+                case 't':
+                    return ByteRegex.set('\t');
+
+                case 'n':
+                    return ByteRegex.set('\n');
+
+                case 'r':
+                    return ByteRegex.set('\r');
+
+                case 'f':
+                    return ByteRegex.set('\f');
+
+                case 'a':
+                    return ByteRegex.set(0x07);
+
+                case 'e':
+                    return ByteRegex.set(0x1b);
+
+                case '0': {
+                    // up to three octal digits, at most 0377
+                    int v = 0;
+                    int digits = 0;
+
+                    while ((i < end) && (digits < 3) && (p.charAt(i) >= '0') && (p.charAt(i) <= '7')
+                            && (((v * 8) + (p.charAt(i) - '0')) <= 0377)) {
+                        v = (v * 8) + (p.charAt(i++) - '0');
+                        digits++;
+                    }
+
+                    if (digits == 0) {
+                        throw new Unsupported();
+                    }
+
+                    return ByteRegex.set(v);
+                }
+
+                case 'x':
+                    return literal(hex(end, 2));
+
+                case 'u':
+                    return literal(hex(end, 4));
+
+                default:
+                    // other letters and digits are classes, anchors or references
+                    if (Character.isLetterOrDigit(c)) {
+                        throw new Unsupported();
+                    }
+
+                    return literal(c);
+            }
+        }
+
+        private char hex(int end, int digits)
+                throws Unsupported {
+            if ((i + digits) > end) {
+                throw new Unsupported();
+            }
+
+            try {
+                int v = Integer.parseInt(p.substring(i, i + digits), 16);
+                i += digits;
+
+                return (char) v;
+            } catch (NumberFormatException e) {
+                throw new Unsupported();
+            }
+        }
+
+        private static long[] literal(char c) {
+            // a character past ISO-8859-1 matches no byte
+            return (c <= 0xff) ? ByteRegex.set(c) : new long[4];
+        }
+
+        private static int single(long[] s) {
+            int found = -1;
+
+            for (int b = 0; b < 256; b++) {
+                if (contains(s, b)) {
+                    if (found >= 0) {
+                        return -1;
+                    }
+
+                    found = b;
+                }
+            }
+
+            return found;
+        }
+
+        private static Node node(long[] s) {
+            return new Node(Node.SET, s, null, 0, 0);
+        }
+    }
+
+    /**
+     * Thompson automaton, built from the end of the pattern backwards
+     */
+    private static final class Nfa {
+        // the bytes a state moves on, null for a split or the final state
+        private final List<long[]> sets = new ArrayList<long[]>();
+        private int[] next = new int[64];
+        // the second way out of a split, -1 otherwise
+        private int[] split = new int[64];
+        private int count = 0;
+        private int accept = -1;
+
+        int state(long[] set, int next1, int next2)
+                throws Unsupported {
+            if (count == MAX_NFA_STATES) {
+                throw new Unsupported();
+            }
+
+            if (count == next.length) {
+                next = Arrays.copyOf(next, count * 2);
+                split = Arrays.copyOf(split, count * 2);
+            }
+
+            if (accept < 0) {
+                // the first state is the final one
+                accept = count;
+            }
+
+            sets.add(set);
+            next[count] = next1;
+            split[count] = next2;
+
+            return count++;
+        }
+
+        /**
+         * emit the states for a node
+         *
+         * @param n   the node
+         * @param out the state to continue with after the node
+         * @return the state to start the node with
+         */
+        int emit(Node n, int out)
+                throws Unsupported {
+            switch (n.kind) {
+                case Node.SET:
+                    return state(n.set, out, -1);
+
+                case Node.CONCAT:
+                    for (int k = n.children.size() - 1; k >= 0; k--) {
+                        out = emit(n.children.get(k), out);
+                    }
+
+                    return out;
+
+                case Node.ALTERNATION: {
+                    int start = emit(n.children.get(n.children.size() - 1), out);
+
+                    for (int k = n.children.size() - 2; k >= 0; k--) {
+                        start = state(null, emit(n.children.get(k), out), start);
+                    }
+
+                    return start;
+                }
+
+                default: {
+                    Node body = n.children.get(0);
+                    int tail = out;
+
+                    if (n.max < 0) {
+                        // a loop back to a split between another round and moving on
+                        tail = state(null, -1, out);
+
+                        // emitting may grow the arrays, so it must happen before the store
+                        int loop = emit(body, tail);
+                        next[tail] = loop;
+                    } else {
+                        for (int k = n.min; k < n.max; k++) {
+                            tail = state(null, emit(body, tail), out);
+                        }
+                    }
+
+                    for (int k = 0; k < n.min; k++) {
+                        tail = emit(body, tail);
+                    }
+
+                    return tail;
+                }
+            }
+        }
+
+        private void closure(BitSet s, int state, int[] stack) {
+            int top = 0;
+            stack[top++] = state;
+
+            while (top > 0) {
+                int x = stack[--top];
+
+                if ((x < 0) || s.get(x)) {
+                    continue;
+                }
+
+                s.set(x);
+
+                if (sets.get(x) == null) {
+                    stack[top++] = next[x];
+                    stack[top++] = split[x];
+                }
+            }
+        }
+
+        /**
+         * subset construction
+         *
+         * @param start the start state
+         * @return the automaton
+         * @throws Unsupported if it needs too many states
+         */
+        ByteRegex determinize(int start)
+                throws Unsupported {
+            int[] stack = new int[(2 * count) + 2];
+            Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+            List<BitSet> states = new ArrayList<BitSet>();
+            BitSet first = new BitSet(count);
+            closure(first, start, stack);
+            ids.put(first, 0);
+            states.add(first);
+
+            int[] t = new int[256 * 16];
+
+            for (int d = 0; d < states.size(); d++) {
+                BitSet current = states.get(d);
+
+                if (t.length < ((d + 1) * 256)) {
+                    t = Arrays.copyOf(t, t.length * 2);
+                }
+
+                for (int b = 0; b < 256; b++) {
+                    BitSet target = new BitSet(count);
+
+                    for (int x = current.nextSetBit(0); x >= 0; x = current.nextSetBit(x + 1)) {
+                        long[] set = sets.get(x);
+
+                        if ((set != null) && contains(set, b)) {
+                            closure(target, next[x], stack);
+                        }
+                    }
+
+                    if (target.isEmpty()) {
+                        t[(d << 8) | b] = DEAD;
+                        continue;
+                    }
+
+                    Integer id = ids.get(target);
+
+                    if (id == null) {
+                        if (states.size() == MAX_DFA_STATES) {
+                            throw new Unsupported();
+                        }
+
+                        id = states.size();
+                        ids.put(target, id);
+                        states.add(target);
+                    }
+
+                    t[(d << 8) | b] = id;
+                }
+            }
+
+            int n = states.size();
+            boolean[] accepting = new boolean[n];
+            boolean[] all = new boolean[n];
+
+            for (int d = 0; d < n; d++) {
+                accepting[d] = states.get(d).get(accept);
+                all[d] = accepting[d];
+
+                for (int b = 0; all[d] && (b < 256); b++) {
+                    all[d] = t[(d << 8) | b] == d;
+                }
+            }
+
+            // a state that accepts whatever follows ends the scan
+            int[] transitions = Arrays.copyOf(t, n * 256);
+
+            for (int k = 0; k < transitions.length; k++) {
+                if ((transitions[k] >= 0) && all[transitions[k]]) {
+                    transitions[k] = ALL;
+                }
+            }
+
+            return new ByteRegex(transitions, accepting, all[0]);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ * Per-detection scratch state. One context is created for each top level detection and handed
+ * down through every rule evaluation, so that rules can look at the input without copying it and
+ * a file is opened and its header read only once. The header, the scratch window and the buffers
+ * handed to detectors come from the shared {@link BufferPool} and go back to it on close().
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class DetectionContext implements MagicInput {
+    // number of bytes read from the start of a file up front, most rules look no further
+    static final int HEADER_SIZE = 8192;
+
+    private final byte[] data;
+    private final RandomAccessFile file;
+    private final long length;
+    private byte[] header;
+    private int headerLength;
+    private byte[] scratch;
+    // buffers handed out through buffer(), until close()
+    private byte[][] borrowed;
+    private int borrowedCount;
+    // the window set by the last successful fetch()
+    byte[] buffer;
+    int position;
+    // the mime type reported by the last detector that matched, and the rule properties merged
+    // with any parameters it reported
+    String detectedMimeType;
+    Map<String, String> detectedProperties;
+    int rulesEvaluated;
+    long bytesRead;
+    // null unless metrics are enabled
+    MagicMetrics metrics;
+    // null unless someone listens to rule evaluations
+    MagicListener[] listeners;
+    // nesting level of the rule being evaluated, and the bytes its test looked at
+    int depth;
+    int inspected;
+    // where the match of the parent of the rule being evaluated ended, for relative offsets
+    int parentEnd;
+    // the bytes covered by the last match of a test without a fixed size, from its offset
+    int matchLength;
+    // bytes handed out through read(), by detectors that read the input themselves
+    long inputRead;
+    // limits on the bytes read from a file and the number of reads, the header included
+    long maxBytesRead = Long.MAX_VALUE;
+    int maxReads = Integer.MAX_VALUE;
+    int reads;
+    // rules skipped because they would have gone over the limits
+    int rulesSkipped;
+
+    private DetectionContext(byte[] data, RandomAccessFile file, long length) {
+        this.data = data;
+        this.file = file;
+        this.length = length;
+    }
+
+    /**
+     * create a context for in-memory data
+     *
+     * @param data the data to detect
+     * @return a new context
+     */
+    static DetectionContext forData(byte[] data) {
+        return new DetectionContext(data, null, data.length);
+    }
+
+    /**
+     * create a context for a file, reading its header
+     *
+     * @param f the file to detect
+     * @return a new context, which must be closed
+     * @throws IOException if the file cannot be read
+     */
+    static DetectionContext forFile(File f)
+            throws IOException {
+        return forFile(f, null);
+    }
+
+    /**
+     * create a context for a file, reading its header
+     *
+     * @param f       the file to detect
+     * @param metrics the metrics, or null
+     * @return a new context, which must be closed
+     * @throws IOException if the file cannot be read
+     */
+    static DetectionContext forFile(File f, MagicMetrics metrics)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        DetectionContext context = null;
+
+        try {
+            context = new DetectionContext(null, file, file.length());
+            context.metrics = metrics;
+            context.headerLength = (int) Math.min(HEADER_SIZE, context.length);
+            context.header = BufferPool.SHARED.acquire(context.headerLength, metrics);
+            file.readFully(context.header, 0, context.headerLength);
+            context.bytesRead = context.headerLength;
+            context.reads = 1;
+
+            return context;
+        } catch (IOException e) {
+            if (context != null) {
+                context.close();
+            } else {
+                file.close();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * get the length of the input
+     *
+     * @return the number of bytes in the input
+     */
+    public long length() {
+        return length;
+    }
+
+    public int read(long position, byte[] b, int off, int len)
+            throws IOException {
+        int n = (int) Math.max(Math.min(len, length - position), 0);
+
+        if (n == 0) {
+            return 0;
+        }
+
+        if (data != null) {
+            System.arraycopy(data, (int) position, b, off, n);
+        } else if ((position + n) <= headerLength) {
+            System.arraycopy(header, (int) position, b, off, n);
+        } else {
+            readFile(position, b, off, n);
+        }
+
+        inputRead += n;
+
+        return n;
+    }
+
+    public byte[] buffer(int size) {
+        byte[] b = BufferPool.SHARED.acquire(size, metrics);
+
+        if (borrowed == null) {
+            borrowed = new byte[4][];
+        } else if (borrowedCount == borrowed.length) {
+            borrowed = Arrays.copyOf(borrowed, borrowedCount * 2);
+        }
+
+        borrowed[borrowedCount++] = b;
+
+        return b;
+    }
+
+    /**
+     * get the first byte of the input
+     *
+     * @return the byte, or -1 for empty input
+     */
+    int firstByte() {
+        if (data != null) {
+            return (data.length > 0) ? (data[0] & 0xff) : -1;
+        }
+
+        return (headerLength > 0) ? (header[0] & 0xff) : -1;
+    }
+
+    /**
+     * whether the input is a file rather than in-memory data
+     *
+     * @return true for file input
+     */
+    boolean isFile() {
+        return file != null;
+    }
+
+    /**
+     * get the number of bytes a rule that looks at the rest of the input sees from an offset
+     *
+     * @param offset the offset of the rule
+     * @return the number of bytes, never negative, and at most Integer.MAX_VALUE for files of
+     *         2 GB or more
+     */
+    int remaining(int offset) {
+        if (data != null) {
+            // FIXME - something wrong here, shouldn't have to subtract 1???
+            return Math.max(data.length - offset - 1, 0);
+        }
+
+        return (int) Math.min(Math.max(length - offset, 0), Integer.MAX_VALUE);
+    }
+
+    /**
+     * make count bytes at offset available in buffer, starting at position. Unlike
+     * {@link #fetch(int, int)} the window may end with in-memory data, for tests that do not
+     * carry over its need for a byte past the window.
+     *
+     * @param offset the offset in the input
+     * @param count  the number of bytes needed
+     * @return false if the input does not hold enough data
+     * @throws IOException if the file cannot be read, or the read would go over the read budget
+     */
+    boolean fetchWindow(int offset, int count)
+            throws IOException {
+        if (data == null) {
+            return fetch(offset, count);
+        }
+
+        if ((offset < 0) || ((long) offset + count) > data.length) {
+            return false;
+        }
+
+        buffer = data;
+        position = offset;
+
+        return true;
+    }
+
+    /**
+     * make count bytes at offset available in buffer, starting at position
+     *
+     * @param offset the offset in the input
+     * @param count  the number of bytes needed
+     * @return false if the input does not hold enough data
+     * @throws IOException if the file cannot be read, or the read would go over the read budget
+     */
+    boolean fetch(int offset, int count)
+            throws IOException {
+        if (data != null) {
+            // in-memory data has always needed at least one byte past the tested window
+            if ((offset + count) >= data.length) {
+                return false;
+            }
+
+            buffer = data;
+            position = offset;
+
+            return true;
+        }
+
+        if (count > (length - offset)) {
+            return false;
+        }
+
+        if ((offset + count) <= headerLength) {
+            buffer = header;
+            position = offset;
+
+            return true;
+        }
+
+        if ((scratch == null) || (scratch.length < count)) {
+            if (scratch != null) {
+                BufferPool.SHARED.release(scratch);
+            }
+
+            scratch = BufferPool.SHARED.acquire(count, metrics);
+        }
+
+        readFile(offset, scratch, 0, count);
+        buffer = scratch;
+        position = 0;
+
+        return true;
+    }
+
+    /**
+     * copy count bytes at offset into an array of exactly that size, for consumers that take a
+     * whole array. When count is the size of a pool class the array is taken like those from
+     * {@link #buffer(int)} and goes back to the pool on close(), otherwise it is a new array.
+     *
+     * @param offset the offset in the input
+     * @param count  the number of bytes to copy
+     * @return the bytes, or null if the input does not hold enough data
+     * @throws IOException if the file cannot be read, or the read would go over the read budget
+     */
+    byte[] copy(int offset, int count)
+            throws IOException {
+        if (data != null) {
+            if ((offset + count) >= data.length) {
+                return null;
+            }
+        } else if (count > (length - offset)) {
+            return null;
+        }
+
+        byte[] b = (BufferPool.classSize(count) == count) ? buffer(count) : new byte[count];
+
+        if (data != null) {
+            System.arraycopy(data, offset, b, 0, count);
+        } else if ((offset + count) <= headerLength) {
+            System.arraycopy(header, offset, b, 0, count);
+        } else {
+            readFile(offset, b, 0, count);
+        }
+
+        return b;
+    }
+
+    private void readFile(long offset, byte[] b, int off, int count)
+            throws IOException {
+        if (((bytesRead + count) > maxBytesRead) || (reads >= maxReads)) {
+            throw new ReadBudgetExceededException();
+        }
+
+        file.seek(offset);
+        file.readFully(b, off, count);
+        bytesRead += count;
+        reads++;
+    }
+
+    /**
+     * release the resources held by this context, returning its buffers to the pool
+     */
+    void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        if (header != null) {
+            BufferPool.SHARED.release(header);
+            header = null;
+            headerLength = 0;
+        }
+
+        if (scratch != null) {
+            BufferPool.SHARED.release(scratch);
+            scratch = null;
+        }
+
+        for (int i = 0; i < borrowedCount; i++) {
+            BufferPool.SHARED.release(borrowed[i]);
+            borrowed[i] = null;
+        }
+
+        borrowedCount = 0;
+        buffer = null;
+    }
+}
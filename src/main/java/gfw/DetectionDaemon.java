@@ -0,0 +1,289 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The daemon mode of {@link Magic#main(String[])}. The rules stay loaded and requests are served
+ * over a Unix domain socket, one thread per connection, virtual where the runtime has them.
+ * <p>
+ * Every request and response is a frame: a 4 byte big-endian length followed by that many bytes,
+ * the first of which is the type or status. Requests are
+ * <ul>
+ * <li>'P' followed by a UTF-8 path, detected as a file with extension hints</li>
+ * <li>'D' followed by the first bytes of the data to detect</li>
+ * <li>'M' to get the metrics</li>
+ * </ul>
+ * and responses are 'O' followed by the UTF-8 mime type, 'N' when no rule matched, 'E' followed by
+ * an error message, or 'M' followed by metrics as tab separated name and value lines. A client may
+ * send any number of requests without waiting, responses come back in the same order.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class DetectionDaemon {
+    static final String USAGE = "usage: Magic -daemon <socket>";
+    static final byte PATH = 'P';
+    static final byte DATA = 'D';
+    static final byte METRICS = 'M';
+    static final byte OK = 'O';
+    static final byte NOT_FOUND = 'N';
+    static final byte ERROR = 'E';
+    // larger frames are refused and the connection is closed
+    static final int MAX_FRAME = 1 << 20;
+
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final ExecutorService executor;
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * bind the socket. A stale socket file left by an earlier daemon is replaced.
+     *
+     * @param socket the path of the socket
+     * @throws IOException if the socket cannot be bound
+     */
+    DetectionDaemon(Path socket)
+            throws IOException {
+        this.socket = socket;
+        Files.deleteIfExists(socket);
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        this.server.bind(UnixDomainSocketAddress.of(socket));
+        this.executor = Threads.newThreadPerTaskExecutor("magic-daemon");
+    }
+
+    /**
+     * run the daemon mode
+     *
+     * @param args the arguments following -daemon
+     * @return the exit status
+     */
+    static int run(String[] args) {
+        if (args.length != 1) {
+            System.err.println(USAGE);
+
+            return 1;
+        }
+
+        try {
+            Magic.setMetricsEnabled(true);
+
+            final DetectionDaemon daemon = new DetectionDaemon(Paths.get(args[0]));
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    daemon.close();
+                }
+            });
+            System.err.println("listening on " + args[0]);
+            daemon.serve();
+        } catch (MagicParseException e) {
+            System.err.println("error: " + e);
+
+            return 1;
+        } catch (MagicException e) {
+            System.err.println("error: " + e);
+
+            return 1;
+        } catch (IOException e) {
+            System.err.println("error: " + e);
+
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * accept connections until the daemon is closed
+     *
+     * @throws IOException if accepting fails for another reason than closing
+     */
+    void serve()
+            throws IOException {
+        try {
+            while (true) {
+                final SocketChannel channel = server.accept();
+                connections.increment();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        handle(channel);
+                    }
+                });
+            }
+        } catch (ClosedChannelException e) {
+            // closed
+        }
+    }
+
+    /**
+     * stop accepting connections and remove the socket file
+     */
+    void close() {
+        try {
+            server.close();
+            Files.deleteIfExists(socket);
+        } catch (IOException e) {
+            // ignore
+        }
+
+        executor.shutdown();
+    }
+
+    /**
+     * serve the requests of a connection until the client closes it
+     *
+     * @param channel the connection
+     */
+    private void handle(SocketChannel channel) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            byte[] frame = new byte[256];
+
+            while (true) {
+                int length;
+
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if ((length < 1) || (length > MAX_FRAME)) {
+                    respond(out, ERROR, "bad frame length " + length);
+                    out.flush();
+
+                    break;
+                }
+
+                if (frame.length < length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+
+                in.readFully(frame, 0, length);
+                requests.increment();
+                handle(frame, length, out);
+
+                // pipelined requests are answered in one write once the client stops sending
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * answer a single request
+     *
+     * @param frame  the request frame
+     * @param length the length of the frame
+     * @param out    the stream responses are written to
+     * @throws IOException if the response cannot be written
+     */
+    private void handle(byte[] frame, int length, DataOutputStream out)
+            throws IOException {
+        try {
+            switch (frame[0]) {
+                case PATH: {
+                    File file = new File(new String(frame, 1, length - 1, StandardCharsets.UTF_8));
+                    respond(out, OK, Magic.getMagicResult(file, true, true).getMimeType());
+
+                    break;
+                }
+
+                case DATA: {
+                    byte[] data = new byte[length - 1];
+                    System.arraycopy(frame, 1, data, 0, data.length);
+                    respond(out, OK, Magic.getMagicResult(data, true).getMimeType());
+
+                    break;
+                }
+
+                case METRICS:
+                    respond(out, METRICS, metrics());
+
+                    break;
+
+                default:
+                    respond(out, ERROR, "unknown request type " + (frame[0] & 0xff));
+            }
+        } catch (MagicMatchNotFoundException e) {
+            respond(out, NOT_FOUND, "");
+        } catch (MagicException e) {
+            respond(out, ERROR, String.valueOf(e.getMessage()));
+        } catch (MagicParseException e) {
+            respond(out, ERROR, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static void respond(DataOutputStream out, byte status, String payload)
+            throws IOException {
+        byte[] b = payload.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length + 1);
+        out.writeByte(status);
+        out.write(b);
+    }
+
+    /**
+     * format the metrics of the daemon and the engine
+     *
+     * @return tab separated name and value lines
+     */
+    String metrics() {
+        StringBuilder s = new StringBuilder();
+        s.append("connections\t").append(connections.sum()).append('\n');
+        s.append("requests\t").append(requests.sum()).append('\n');
+
+        MagicMetrics m = Magic.getMetrics();
+
+        if (m != null) {
+            s.append("detections\t").append(m.getDetections()).append('\n');
+            s.append("notFound\t").append(m.getNotFound()).append('\n');
+
+            for (Map.Entry<String, Long> e : m.getMeanLatencies().entrySet()) {
+                s.append("meanLatencyNanos.").append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+            }
+
+            for (Map.Entry<String, Long> e : m.getMimeTypeCounts().entrySet()) {
+                s.append("mimeType.").append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+            }
+        }
+
+        return s.toString();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight recorder event for a top level detection. Like all events it is inert unless a
+ * recording is running.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@Name("gfw.Detection")
+@Label("Mime Detection")
+@Category("Mime Magic")
+@Description("A top level content type detection")
+@StackTrace(false)
+final class DetectionEvent extends Event {
+    @Label("Entry Point")
+    String entryPoint;
+
+    @Label("File")
+    String file;
+
+    @Label("Input Length")
+    @DataAmount
+    long inputLength;
+
+    @Label("Bytes Read")
+    @Description("Bytes read from the file, 0 for in-memory data")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Rules Evaluated")
+    @Description("Number of rules evaluated, including submatches")
+    int rulesEvaluated;
+
+    @Label("Rules Skipped")
+    @Description("Number of rules skipped because they would have gone over the read budget")
+    int rulesSkipped;
+
+    @Label("Mime Type")
+    String mimeType;
+
+    @Label("Rule")
+    @Description("Description of the root rule that matched")
+    String rule;
+}
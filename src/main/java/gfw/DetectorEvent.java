@@ -0,0 +1,42 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight recorder event for the invocation of a detector rule
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@Name("gfw.Detector")
+@Label("Mime Detector")
+@Category("Mime Magic")
+@Description("Invocation of a MagicDetector by a detector rule")
+@StackTrace(false)
+final class DetectorEvent extends Event {
+    @Label("Detector")
+    String detector;
+
+    @Label("Rule")
+    String rule;
+
+    @Label("Input Length")
+    @DataAmount
+    long inputLength;
+
+    @Label("Mime Type")
+    @Description("The mime type reported by the detector, null if it did not match")
+    String mimeType;
+}
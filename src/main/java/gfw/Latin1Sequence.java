@@ -0,0 +1,59 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A view of bytes as the ISO-8859-1 characters they encode, so that a regular expression can
+ * run over a window of the input without decoding it into a string first
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class Latin1Sequence implements CharSequence {
+    private final byte[] b;
+    private final int start;
+    private final int length;
+
+    /**
+     * constructor
+     *
+     * @param b      the bytes
+     * @param start  the position of the first character
+     * @param length the number of characters
+     */
+    Latin1Sequence(byte[] b, int start, int length) {
+        this.b = b;
+        this.start = start;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        if ((index < 0) || (index >= length)) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+
+        return (char) (b[start + index] & 0xff);
+    }
+
+    public CharSequence subSequence(int from, int to) {
+        if ((from < 0) || (to > length) || (from > to)) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + length);
+        }
+
+        return new Latin1Sequence(b, start + from, to - from);
+    }
+
+    public String toString() {
+        return new String(b, start, length, StandardCharsets.ISO_8859_1);
+    }
+}
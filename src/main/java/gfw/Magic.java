@@ -8,7 +8,11 @@ package gfw;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 
 /**
@@ -19,9 +23,23 @@ import java.util.*;
  */
 public class Magic {
     private static final Map<String, List<MagicMatcher>> hintMap = new HashMap<String, List<MagicMatcher>>();
+    private static final Map<String, List<MagicMatcher>> mimeTypeMap = new HashMap<String, List<MagicMatcher>>();
     // private static Log log = LogFactory.getLog(Magic.class);
     private static boolean initialized = false;
     private static MagicParser magicParser = null;
+    private static List<MagicRule> rules = null;
+    // the root matchers by first byte, for detection
+    private static RulePrefilter prefilter = null;
+    private static final String METRICS_NAME = "gfw:type=MagicMetrics";
+    // null unless metrics are enabled, the detection path only checks this field
+    private static volatile MagicMetrics metrics = null;
+    // null unless listeners are registered, replaced as a whole when they change
+    private static volatile MagicListener[] listeners = null;
+
+    // the read budget of a file detection, none unless set, see setReadBudget()
+    private static volatile long maxBytesRead = limit(Long.getLong("gfw.magic.maxBytesRead", 0));
+    private static volatile int maxReads = (int) Math.min(limit(Long.getLong("gfw.magic.maxReads", 0)),
+            Integer.MAX_VALUE);
 
     /**
      * constructor
@@ -47,6 +65,65 @@ public class Magic {
         }
     }
 
+    /**
+     * Index the given root matcher under every mime type that it or its submatchers can produce
+     *
+     * @param matcher the root matcher
+     */
+    private static void addMimeTypes(MagicMatcher matcher) {
+        Set<String> types = new HashSet<String>();
+        collectMimeTypes(matcher, types);
+
+        for (String type : types) {
+            List<MagicMatcher> a = mimeTypeMap.get(type);
+
+            if (a == null) {
+                a = new ArrayList<MagicMatcher>();
+                mimeTypeMap.put(type, a);
+            }
+
+            a.add(matcher);
+        }
+    }
+
+    /**
+     * collect the normalized mime types a matcher tree can produce
+     *
+     * @param matcher the matcher to walk
+     * @param types   the set receiving the mime types
+     */
+    private static void collectMimeTypes(MagicMatcher matcher, Set<String> types) {
+        MagicMatch match = matcher.getMatch();
+
+        if (match.getType().equals("detector")) {
+            for (String s : matcher.getDetectorTypes()) {
+                types.add(normalizeMimeType(s));
+            }
+        } else if (match.getMimeType() != null) {
+            types.add(normalizeMimeType(match.getMimeType()));
+        }
+
+        for (MagicMatcher subMatcher : matcher.getSubMatchers()) {
+            collectMimeTypes(subMatcher, types);
+        }
+    }
+
+    /**
+     * strip parameters and case from a mime type so that a Content-Type header can be looked up
+     *
+     * @param mimeType a mime type, possibly with parameters
+     * @return the bare, lower case mime type
+     */
+    private static String normalizeMimeType(String mimeType) {
+        int pos = mimeType.indexOf(';');
+
+        if (pos > -1) {
+            mimeType = mimeType.substring(0, pos);
+        }
+
+        return mimeType.trim().toLowerCase(Locale.ROOT);
+    }
+
     /**
      * create a parser and initialize it
      *
@@ -77,15 +154,141 @@ public class Magic {
                         addHint(s, matcher);
                     }
                 }
+
+                addMimeTypes(matcher);
             }
 
+            List<MagicRule> r = new ArrayList<MagicRule>();
+
+            for (MagicMatcher matcher : magicParser.getMatchers()) {
+                matcher.setIndex(r.size());
+                r.add(matcher.getRule());
+            }
+
+            rules = Collections.unmodifiableList(r);
+            prefilter = new RulePrefilter(magicParser.getMatcherList());
+
             initialized = true;
+
+            if (Boolean.getBoolean("gfw.magic.metrics")) {
+                try {
+                    setMetricsEnabled(true);
+                } catch (MagicException e) {
+                    // log.error("initialize(): failed to register metrics: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * enable or disable detection metrics. While enabled, evaluations and hits per root rule,
+     * latencies per entry point, result mime types, misses, rules skipped over the read budget and
+     * buffer pool hits are counted and published as the MBean gfw:type=MagicMetrics. Disabled
+     * metrics cost nothing. Setting the system property gfw.magic.metrics to true enables them on
+     * initialization.
+     *
+     * @param enabled whether or not to collect metrics
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      if the MBean cannot be registered
+     */
+    public static synchronized void setMetricsEnabled(boolean enabled)
+            throws MagicParseException, MagicException {
+        if (!initialized) {
+            initialize();
+        }
+
+        if (enabled == (metrics != null)) {
+            return;
         }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(METRICS_NAME);
+
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+
+            if (enabled) {
+                MagicMetrics m = new MagicMetrics(rules);
+                server.registerMBean(m, name);
+                metrics = m;
+            } else {
+                metrics = null;
+            }
+        } catch (JMException e) {
+            throw new MagicException(e);
+        }
+    }
+
+    /**
+     * limit the I/O of each file detection. The header is always read and counts as the first
+     * read. A rule whose reads would take the detection over either limit is skipped, as if it did
+     * not match, and detection goes on with the rules that fit in what is left, so the result is
+     * the first match found within the budget. Skipped rules are counted by the metrics and the flight
+     * recorder events. In-memory data is never limited. There is no limit unless one is set here or
+     * with the system properties gfw.magic.maxBytesRead and gfw.magic.maxReads, so by default every
+     * rule is evaluated against the whole file.
+     *
+     * @param maxBytes the most bytes read from a file, 0 or less for no limit
+     * @param reads    the most reads from a file, 0 or less for no limit
+     */
+    public static synchronized void setReadBudget(long maxBytes, int reads) {
+        maxBytesRead = limit(maxBytes);
+        maxReads = (int) Math.min(limit(reads), Integer.MAX_VALUE);
+    }
+
+    /**
+     * get the most bytes a file detection reads
+     *
+     * @return the limit, Long.MAX_VALUE if there is none
+     */
+    public static long getMaxBytesRead() {
+        return maxBytesRead;
+    }
+
+    /**
+     * get the most reads a file detection does
+     *
+     * @return the limit, Integer.MAX_VALUE if there is none
+     */
+    public static int getMaxReads() {
+        return maxReads;
+    }
+
+    private static long limit(long value) {
+        return (value > 0) ? value : Long.MAX_VALUE;
+    }
+
+    /**
+     * get the detection metrics
+     *
+     * @return the metrics, or null if they are not enabled
+     */
+    public static MagicMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * return the rules that were created from the magic.xml definitions. The rules are read-only
+     * and shared, so this is cheap to call.
+     *
+     * @return the root rules in the order they are evaluated
+     * @throws MagicParseException DOCUMENT ME!
+     */
+    public static List<MagicRule> getRules()
+            throws MagicParseException {
+        if (!initialized) {
+            initialize();
+        }
+
+        return rules;
     }
 
     /**
      * return the parsed MagicMatch objects that were created from the magic.xml
-     * definitions
+     * definitions. Every matcher is deep cloned on each call, use {@link #getRules()} for a
+     * read-only view that does not copy.
      *
      * @return the parsed MagicMatch objects
      * @throws MagicParseException DOCUMENT ME!
@@ -143,37 +346,84 @@ public class Magic {
             throws MagicParseException, MagicMatchNotFoundException, MagicException {
         // log.debug("getMagicMatch(byte[])");
 
+        return getMagicResult(data, onlyMimeMatch).toMagicMatch();
+    }
+
+    /**
+     * get an immutable result from a stream of data. Rules that do not match allocate nothing.
+     *
+     * @param data          the data to match content in
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the result for the first rule that matched
+     * @throws MagicParseException         DOCUMENT ME!
+     * @throws MagicMatchNotFoundException DOCUMENT ME!
+     * @throws MagicException              DOCUMENT ME!
+     */
+    public static MagicResult getMagicResult(byte[] data, boolean onlyMimeMatch)
+            throws MagicParseException, MagicMatchNotFoundException, MagicException {
+        MagicResult result = detectData(data, onlyMimeMatch);
+
+        if (result == null) {
+            throw notFound();
+        }
+
+        return result;
+    }
+
+    /**
+     * get an immutable result from a stream of data without throwing when no rule matches, which
+     * makes unknown data about as cheap as a hit
+     *
+     * @param data          the data to match content in
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the result for the first rule that matched, or an empty optional
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    public static Optional<MagicResult> findMagicResult(byte[] data, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
+        return Optional.ofNullable(detectData(data, onlyMimeMatch));
+    }
+
+    /**
+     * detect the type of data
+     *
+     * @param data          the data to match content in
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the result for the first rule that matched, or null
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    private static MagicResult detectData(byte[] data, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
         if (!initialized) {
             initialize();
         }
 
-        Collection<MagicMatcher> matchers = magicParser.getMatchers();
-        // log.debug("getMagicMatch(byte[]): have " + matchers.size() + " matchers");
-
-        MagicMatcher matcher;
-        MagicMatch match;
+        MagicMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        DetectionEvent event = new DetectionEvent();
+        event.begin();
 
-        for (MagicMatcher magicMatcher : matchers) {
-            matcher = magicMatcher;
+        DetectionContext context = DetectionContext.forData(data);
+        context.metrics = m;
+        context.listeners = listeners;
 
-            // log.debug("getMagicMatch(byte[]): trying to match: " +matcher.getMatch().getMimeType());
+        MagicResult result;
 
-            try {
-                if ((match = matcher.test(data, onlyMimeMatch)) != null) {
-                    // log.debug("getMagicMatch(byte[]): matched " + matcher.getMatch().getMimeType());
+        try {
+            result = detect(context, null, onlyMimeMatch);
+        } finally {
+            context.close();
+        }
 
-                    return match;
-                }
-            } catch (IOException e) {
-                // log.error("getMagicMatch(byte[]): " + e);
-                throw new MagicException(e);
-            } catch (UnsupportedTypeException e) {
-                // log.error("getMagicMatch(byte[]): " + e);
-                throw new MagicException(e);
-            }
+        if (m != null) {
+            m.detected(MagicMetrics.BYTES, System.nanoTime() - start, result, context.rulesSkipped);
         }
 
-        throw new MagicMatchNotFoundException();
+        commit(event, "byte[]", null, context, result);
+
+        return result;
     }
 
     /**
@@ -206,126 +456,704 @@ public class Magic {
             throws MagicParseException, MagicMatchNotFoundException, MagicException {
         // log.debug("getMagicMatch(File)");
 
+        return getMagicResult(file, extensionHints, onlyMimeMatch).toMagicMatch();
+    }
+
+    /**
+     * get an immutable result from a file. The file is opened once and its header is shared by
+     * all rules.
+     *
+     * @param file           the file to match content in
+     * @param extensionHints whether or not to use extension to optimize order of content tests
+     * @param onlyMimeMatch  only try to get mime type, no submatches are processed when true
+     * @return the result for the first rule that matched
+     * @throws MagicParseException         DOCUMENT ME!
+     * @throws MagicMatchNotFoundException DOCUMENT ME!
+     * @throws MagicException              DOCUMENT ME!
+     */
+    public static MagicResult getMagicResult(File file, boolean extensionHints, boolean onlyMimeMatch)
+            throws MagicParseException, MagicMatchNotFoundException, MagicException {
+        MagicResult result = detectFile(file, extensionHints, onlyMimeMatch);
+
+        if (result == null) {
+            throw notFound();
+        }
+
+        return result;
+    }
+
+    /**
+     * get an immutable result from a file without throwing when no rule matches, which makes
+     * unknown files about as cheap as a hit
+     *
+     * @param file           the file to match content in
+     * @param extensionHints whether or not to use extension to optimize order of content tests
+     * @param onlyMimeMatch  only try to get mime type, no submatches are processed when true
+     * @return the result for the first rule that matched, or an empty optional
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    public static Optional<MagicResult> findMagicResult(File file, boolean extensionHints, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
+        return Optional.ofNullable(detectFile(file, extensionHints, onlyMimeMatch));
+    }
+
+    /**
+     * detect the type of a file
+     *
+     * @param file           the file to match content in
+     * @param extensionHints whether or not to use extension to optimize order of content tests
+     * @param onlyMimeMatch  only try to get mime type, no submatches are processed when true
+     * @return the result for the first rule that matched, or null
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    private static MagicResult detectFile(File file, boolean extensionHints, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
         if (!initialized) {
             initialize();
         }
 
-        // long start = System.currentTimeMillis();
+        MagicMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        DetectionEvent event = new DetectionEvent();
+        event.begin();
 
-        MagicMatcher matcher;
-        MagicMatch match;
+        DetectionContext context = openContext(file, m);
+        context.listeners = listeners;
 
-        // check for extension hints
-        List<MagicMatcher> checked = new ArrayList<MagicMatcher>();
+        try {
+            // check for extension hints
+            List<MagicMatcher> hints = extensionHints ? hintMap.get(getExtension(file)) : null;
+            MagicResult result = detect(context, hints, onlyMimeMatch);
 
-        if (extensionHints) {
-            // log.debug("trying to use hints first");
+            if (m != null) {
+                m.detected(extensionHints ? MagicMetrics.FILE_HINTED : MagicMetrics.FILE,
+                        System.nanoTime() - start, result, context.rulesSkipped);
+            }
 
-            String name = file.getName();
-            int pos = name.lastIndexOf('.');
+            commit(event, extensionHints ? "File with hints" : "File", file, context, result);
 
-            if (pos > -1) {
-                String ext = name.substring(pos + 1);
+            return result;
+        } finally {
+            context.close();
+        }
+    }
 
-                if (!ext.equals("")) {
+    /**
+     * get the results of every root rule that matches a stream of data, or the strongest few,
+     * in one pass over the rules. Results are ranked by {@link MagicResult#getStrength()}, the
+     * earlier rule first among equally strong ones. When only the strongest are asked for, rules
+     * that cannot beat the weakest of them are not evaluated.
+     *
+     * @param data          the data to match content in
+     * @param limit         the number of results wanted, 0 or less for all of them
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the results, strongest first, empty if no rule matched
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    public static List<MagicResult> getMagicResults(byte[] data, int limit, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
+        if (!initialized) {
+            initialize();
+        }
+
+        MagicMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        DetectionEvent event = new DetectionEvent();
+        event.begin();
 
-                    Collection<MagicMatcher> c = hintMap.get(ext);
+        DetectionContext context = DetectionContext.forData(data);
+        context.metrics = m;
+        context.listeners = listeners;
 
-                    if (c != null) {
+        List<MagicResult> results;
 
-                        for (MagicMatcher magicMatcher : c) {
-                            matcher = magicMatcher;
+        try {
+            results = rank(context, limit, onlyMimeMatch);
+        } finally {
+            context.close();
+        }
 
-                            // log.debug("getMagicMatch(File): trying to match: " +matcher.getMatch().getDescription());
+        MagicResult best = results.isEmpty() ? null : results.get(0);
 
-                            try {
-                                if ((match = matcher.test(file, onlyMimeMatch)) != null) {
-                                    // log.debug("getMagicMatch(File): matched " +matcher.getMatch().getDescription());
+        if (m != null) {
+            m.detected(MagicMetrics.BYTES, System.nanoTime() - start, best, context.rulesSkipped);
+        }
 
+        commit(event, "byte[] ranked", null, context, best);
 
-                                    return match;
-                                }
-                            } catch (UnsupportedTypeException e) {
-                                // log.error("getMagicMatch(File): " + e);
-                                throw new MagicException(e);
-                            } catch (IOException e) {
-                                // log.error("getMagicMatch(File): " + e);
-                                throw new MagicException(e);
-                            }
+        return results;
+    }
 
-                            // add to the already checked list
-                            checked.add(matcher);
-                        }
-                    }
+    /**
+     * get the results of every root rule that matches a file, or the strongest few, in one pass
+     * over the rules
+     *
+     * @param file          the file to match content in
+     * @param limit         the number of results wanted, 0 or less for all of them
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the results, strongest first, empty if no rule matched
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     * @see #getMagicResults(byte[], int, boolean)
+     */
+    public static List<MagicResult> getMagicResults(File file, int limit, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
+        if (!initialized) {
+            initialize();
+        }
+
+        MagicMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        DetectionEvent event = new DetectionEvent();
+        event.begin();
+
+        DetectionContext context = openContext(file, m);
+        context.listeners = listeners;
+
+        try {
+            List<MagicResult> results = rank(context, limit, onlyMimeMatch);
+            MagicResult best = results.isEmpty() ? null : results.get(0);
+
+            if (m != null) {
+                m.detected(MagicMetrics.FILE, System.nanoTime() - start, best, context.rulesSkipped);
+            }
+
+            commit(event, "File ranked", file, context, best);
+
+            return results;
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * detect the type of a stream of data and record every rule that was tried on the way. This
+     * is slower than {@link #getMagicResult(byte[], boolean)} and meant for finding out why a
+     * detection gives a certain result or takes long.
+     *
+     * @param data          the data to match content in
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the explanation, with a null result if nothing matched
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    public static MagicExplanation explain(byte[] data, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
+        if (!initialized) {
+            initialize();
+        }
+
+        MagicExplanation.Recorder recorder = new MagicExplanation.Recorder();
+        long start = System.nanoTime();
+
+        DetectionContext context = DetectionContext.forData(data);
+        context.listeners = withListener(recorder);
+
+        MagicResult result;
+
+        try {
+            result = detect(context, null, onlyMimeMatch);
+        } finally {
+            context.close();
+        }
+
+        return new MagicExplanation(result, recorder, data.length, 0, System.nanoTime() - start);
+    }
+
+    /**
+     * detect the type of a file and record every rule that was tried on the way
+     *
+     * @param file           the file to match content in
+     * @param extensionHints whether or not to use extension to optimize order of content tests
+     * @param onlyMimeMatch  only try to get mime type, no submatches are processed when true
+     * @return the explanation, with a null result if nothing matched
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     * @see #explain(byte[], boolean)
+     */
+    public static MagicExplanation explain(File file, boolean extensionHints, boolean onlyMimeMatch)
+            throws MagicParseException, MagicException {
+        if (!initialized) {
+            initialize();
+        }
+
+        MagicExplanation.Recorder recorder = new MagicExplanation.Recorder();
+        long start = System.nanoTime();
+
+        DetectionContext context = openContext(file, null);
+        context.listeners = withListener(recorder);
+
+        try {
+            List<MagicMatcher> hints = extensionHints ? hintMap.get(getExtension(file)) : null;
+            MagicResult result = detect(context, hints, onlyMimeMatch);
+
+            return new MagicExplanation(result, recorder, context.bytesRead, context.rulesSkipped,
+                    System.nanoTime() - start);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * register a listener that is called for every rule evaluated by any detection
+     *
+     * @param listener the listener
+     */
+    public static synchronized void addListener(MagicListener listener) {
+        listeners = withListener(listener);
+    }
+
+    /**
+     * remove a listener registered with {@link #addListener(MagicListener)}
+     *
+     * @param listener the listener
+     */
+    public static synchronized void removeListener(MagicListener listener) {
+        MagicListener[] l = listeners;
+
+        if (l == null) {
+            return;
+        }
+
+        List<MagicListener> remaining = new ArrayList<MagicListener>(Arrays.asList(l));
+        remaining.remove(listener);
+        listeners = remaining.isEmpty() ? null : remaining.toArray(new MagicListener[remaining.size()]);
+    }
+
+    /**
+     * get the registered listeners with one more added
+     *
+     * @param listener the listener to add
+     * @return a new array of listeners
+     */
+    private static MagicListener[] withListener(MagicListener listener) {
+        MagicListener[] l = listeners;
+
+        if (l == null) {
+            return new MagicListener[] {listener};
+        }
+
+        l = Arrays.copyOf(l, l.length + 1);
+        l[l.length - 1] = listener;
+
+        return l;
+    }
+
+    /**
+     * fill in and commit a detection event, if a recording wants it
+     *
+     * @param event      the event, begun when the detection started
+     * @param entryPoint the name of the entry point
+     * @param file       the file, or null for in-memory data
+     * @param context    the per-detection state
+     * @param result     the result, or null if nothing matched
+     */
+    private static void commit(DetectionEvent event, String entryPoint, File file, DetectionContext context,
+                               MagicResult result) {
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.entryPoint = entryPoint;
+            event.file = (file != null) ? file.getPath() : null;
+            event.inputLength = context.length();
+            event.bytesRead = context.bytesRead;
+            event.rulesEvaluated = context.rulesEvaluated;
+            event.rulesSkipped = context.rulesSkipped;
+
+            if (result != null) {
+                event.mimeType = result.getMimeType();
+                event.rule = result.getDescription();
+            }
+
+            event.commit();
+        }
+    }
+
+    /**
+     * create the exception for input no rule matches. It carries no stack trace, since not
+     * finding a match is an expected outcome rather than an error.
+     *
+     * @return the exception
+     */
+    private static MagicMatchNotFoundException notFound() {
+        return new MagicMatchNotFoundException(null, false);
+    }
+
+    /**
+     * run the root matchers against the input of a context, the hinted ones first. Matchers that
+     * cannot match the first byte or length of the input are passed over without being tested.
+     *
+     * @param context       the per-detection state
+     * @param hints         the matchers to try first, or null
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the result for the first matcher that matched, or null
+     * @throws MagicException DOCUMENT ME!
+     */
+    private static MagicResult detect(DetectionContext context, List<MagicMatcher> hints, boolean onlyMimeMatch)
+            throws MagicException {
+        MagicResult result;
+        int first = context.firstByte();
+        long length = context.length();
+
+        if (hints != null) {
+            // log.debug("trying to use hints first");
+
+            for (int i = 0; i < hints.size(); i++) {
+                MagicMatcher matcher = hints.get(i);
+
+                if (RulePrefilter.admits(matcher, first, length)
+                        && ((result = test(matcher, context, onlyMimeMatch)) != null)) {
+                    return result;
                 }
             }
         }
 
-        Collection<MagicMatcher> matchers = magicParser.getMatchers();
-        // log.debug("getMagicMatch(File): have " + matchers.size() + " matches");
+        MagicMatcher[] matchers = prefilter.candidates(first);
+        // log.debug("detect(): have " + matchers.length + " matchers");
 
-        for (MagicMatcher magicMatcher : matchers) {
-            matcher = magicMatcher;
+        for (int i = 0; i < matchers.length; i++) {
+            MagicMatcher matcher = matchers[i];
 
-            if (!checked.contains(matcher)) {
+            if ((matcher.getMinLength() <= length) && ((hints == null) || !hints.contains(matcher))) {
+                if ((result = test(matcher, context, onlyMimeMatch)) != null) {
+                    return result;
+                }
+            }
+        }
 
-                try {
-                    if ((match = matcher.test(file, onlyMimeMatch)) != null) {
+        return null;
+    }
 
-                        return match;
-                    }
-                } catch (UnsupportedTypeException e) {
-                    // log.error("getMagicMatch(File): " + e);
-                    throw new MagicException(e);
-                } catch (IOException e) {
-                    // log.error("getMagicMatch(File): " + e);
-                    throw new MagicException(e);
+    /**
+     * run the root matchers against the input of a context, the ones that can produce the
+     * strongest results first, and keep the strongest results
+     *
+     * @param context       the per-detection state
+     * @param limit         the number of results to keep, 0 or less for all of them
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the results, strongest first
+     * @throws MagicException DOCUMENT ME!
+     */
+    private static List<MagicResult> rank(DetectionContext context, int limit, boolean onlyMimeMatch)
+            throws MagicException {
+        List<MagicResult> results = new ArrayList<MagicResult>();
+        int first = context.firstByte();
+        long length = context.length();
+        MagicMatcher[] matchers = prefilter.strongestCandidates(first);
+
+        for (int i = 0; i < matchers.length; i++) {
+            MagicMatcher matcher = matchers[i];
+
+            if ((limit > 0) && (results.size() == limit)) {
+                MagicResult weakest = results.get(limit - 1);
+                int bound = matcher.getMaxStrength();
+
+                if (bound < weakest.getStrength()) {
+                    // the matchers are in order of this bound, none of the rest can do better
+                    break;
+                }
+
+                if ((bound == weakest.getStrength()) && (matcher.getIndex() > weakest.getMatcher().getIndex())) {
+                    continue;
                 }
             }
+
+            if (matcher.getMinLength() > length) {
+                continue;
+            }
+
+            MagicResult result = test(matcher, context, onlyMimeMatch);
+
+            if (result == null) {
+                continue;
+            }
+
+            int strength = result.getStrength();
+            int index = matcher.getIndex();
+            int pos = results.size();
+
+            while ((pos > 0) && ((results.get(pos - 1).getStrength() < strength)
+                    || ((results.get(pos - 1).getStrength() == strength)
+                    && (results.get(pos - 1).getMatcher().getIndex() > index)))) {
+                pos--;
+            }
+
+            results.add(pos, result);
+
+            if ((limit > 0) && (results.size() > limit)) {
+                results.remove(limit);
+            }
         }
 
-        throw new MagicMatchNotFoundException();
+        return results;
     }
 
     /**
-     * print the contents of a magic file
+     * get the extension of a file name
      *
-     * @param stream DOCUMENT ME!
+     * @param file the file
+     * @return the extension, or an empty string
+     */
+    private static String getExtension(File file) {
+        String name = file.getName();
+        int pos = name.lastIndexOf('.');
+
+        return (pos > -1) ? name.substring(pos + 1) : "";
+    }
+
+    /**
+     * open a detection context on a file
+     *
+     * @param file    the file
+     * @param metrics the metrics, or null
+     * @return the context
+     * @throws MagicException if the file cannot be read
+     */
+    private static DetectionContext openContext(File file, MagicMetrics metrics)
+            throws MagicException {
+        try {
+            DetectionContext context = DetectionContext.forFile(file, metrics);
+            context.maxBytesRead = maxBytesRead;
+            context.maxReads = maxReads;
+
+            return context;
+        } catch (IOException e) {
+            // log.error("getMagicMatch(File): " + e);
+            throw new MagicException(e);
+        }
+    }
+
+    /**
+     * test a root matcher, wrapping the checked exceptions of the rule engine
+     *
+     * @param matcher       the root matcher
+     * @param context       the per-detection state
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the result, or null if the matcher does not match
+     * @throws MagicException DOCUMENT ME!
+     */
+    private static MagicResult test(MagicMatcher matcher, DetectionContext context, boolean onlyMimeMatch)
+            throws MagicException {
+        // log.debug("test(): trying to match: " + matcher.getMatch().getMimeType());
+
+        try {
+            MagicResult result = matcher.test(context, onlyMimeMatch);
+
+            if (context.metrics != null) {
+                context.metrics.ruleEvaluated(matcher.getIndex(), result != null);
+            }
+
+            return result;
+        } catch (IOException e) {
+            // log.error("test(): " + e);
+            throw new MagicException(e);
+        } catch (UnsupportedTypeException e) {
+            // log.error("test(): " + e);
+            throw new MagicException(e);
+        }
+    }
+
+    /**
+     * verify that data is of the claimed mime type. Only the rules that can produce the claimed
+     * type are evaluated, so this is much cheaper than a full detection when the claim is correct.
+     *
+     * @param data            the data to check
+     * @param claimedMimeType the mime type claimed for the data, parameters are ignored
+     * @return whether or not the data matches a rule for the claimed mime type
      * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
      */
-    public static void printMagicFile(PrintStream stream)
-            throws MagicParseException {
+    public static boolean verify(byte[] data, String claimedMimeType)
+            throws MagicParseException, MagicException {
+        return verify(data, claimedMimeType, false).isVerified();
+    }
+
+    /**
+     * verify that data is of the claimed mime type
+     *
+     * @param data            the data to check
+     * @param claimedMimeType the mime type claimed for the data, parameters are ignored
+     * @param resolveActual   run a full detection when the claim does not hold
+     * @return the outcome of the verification
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    public static MagicVerification verify(byte[] data, String claimedMimeType, boolean resolveActual)
+            throws MagicParseException, MagicException {
         if (!initialized) {
             initialize();
         }
 
-        Collection<MagicMatcher> matchers = Magic.getMatchers();
-        // log.debug("have " + matchers.size() + " matches");
+        String claimed = normalizeMimeType(claimedMimeType);
+        List<MagicMatcher> c = mimeTypeMap.get(claimed);
+
+        if (c != null) {
+            DetectionContext context = DetectionContext.forData(data);
+            context.listeners = listeners;
+
+            try {
+                MagicResult result = verify(context, c, claimed);
+
+                if (result != null) {
+                    return new MagicVerification(claimedMimeType, true, result.toMagicMatch());
+                }
+            } finally {
+                context.close();
+            }
+        }
+
+        MagicMatch actual = null;
 
-        MagicMatcher matcher;
+        if (resolveActual) {
+            try {
+                actual = getMagicMatch(data, false);
+            } catch (MagicMatchNotFoundException e) {
+                // no rule matches, the actual type stays unknown
+            }
+        }
 
-        for (MagicMatcher magicMatcher : matchers) {
-            matcher = magicMatcher;
+        return new MagicVerification(claimedMimeType, false, actual);
+    }
+
+    /**
+     * verify that a file is of the claimed mime type
+     *
+     * @param file            the file to check
+     * @param claimedMimeType the mime type claimed for the file, parameters are ignored
+     * @return whether or not the file matches a rule for the claimed mime type
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    public static boolean verify(File file, String claimedMimeType)
+            throws MagicParseException, MagicException {
+        return verify(file, claimedMimeType, false).isVerified();
+    }
+
+    /**
+     * verify that a file is of the claimed mime type
+     *
+     * @param file            the file to check
+     * @param claimedMimeType the mime type claimed for the file, parameters are ignored
+     * @param resolveActual   run a full detection when the claim does not hold
+     * @return the outcome of the verification
+     * @throws MagicParseException DOCUMENT ME!
+     * @throws MagicException      DOCUMENT ME!
+     */
+    public static MagicVerification verify(File file, String claimedMimeType, boolean resolveActual)
+            throws MagicParseException, MagicException {
+        if (!initialized) {
+            initialize();
+        }
+
+        String claimed = normalizeMimeType(claimedMimeType);
+        List<MagicMatcher> c = mimeTypeMap.get(claimed);
+
+        if (c != null) {
+            DetectionContext context = openContext(file, null);
+            context.listeners = listeners;
+
+            try {
+                MagicResult result = verify(context, c, claimed);
+
+                if (result != null) {
+                    return new MagicVerification(claimedMimeType, true, result.toMagicMatch());
+                }
+            } finally {
+                context.close();
+            }
+        }
+
+        MagicMatch actual = null;
+
+        if (resolveActual) {
+            try {
+                actual = getMagicMatch(file, true, false);
+            } catch (MagicMatchNotFoundException e) {
+                // no rule matches, the actual type stays unknown
+            }
+        }
+
+        return new MagicVerification(claimedMimeType, false, actual);
+    }
+
+    /**
+     * run the root matchers that can produce a mime type against the input of a context. Matchers
+     * that cannot match the first byte or length of the input are passed over without being tested.
+     *
+     * @param context  the per-detection state
+     * @param matchers the root matchers for the mime type
+     * @param claimed  the normalized mime type
+     * @return the first result of the mime type, or null
+     * @throws MagicException DOCUMENT ME!
+     */
+    private static MagicResult verify(DetectionContext context, List<MagicMatcher> matchers, String claimed)
+            throws MagicException {
+        int first = context.firstByte();
+        long length = context.length();
+
+        for (int i = 0; i < matchers.size(); i++) {
+            MagicMatcher matcher = matchers.get(i);
+
+            if (RulePrefilter.admits(matcher, first, length)) {
+                MagicResult result = test(matcher, context, ownsMimeType(matcher, claimed));
+
+                if ((result != null) && result.mimeTypeMatches(claimed)) {
+                    return result;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * whether the root matcher itself yields the mime type, in which case its submatchers do not
+     * need to be evaluated
+     *
+     * @param matcher the root matcher
+     * @param claimed the normalized mime type
+     * @return true if the submatchers can be skipped
+     */
+    private static boolean ownsMimeType(MagicMatcher matcher, String claimed) {
+        MagicMatch match = matcher.getMatch();
+
+        return match.getType().equals("detector")
+                || ((match.getMimeType() != null) && normalizeMimeType(match.getMimeType()).equals(claimed));
+    }
+
+    /**
+     * print the contents of a magic file
+     *
+     * @param stream DOCUMENT ME!
+     * @throws MagicParseException DOCUMENT ME!
+     */
+    public static void printMagicFile(PrintStream stream)
+            throws MagicParseException {
+        List<MagicRule> rules = Magic.getRules();
+        // log.debug("have " + rules.size() + " matches");
+
+        for (MagicRule rule : rules) {
             // log.debug("printing");
-            printMagicMatcher(stream, matcher, "");
+            printMagicRule(stream, rule, "");
         }
     }
 
     /**
-     * print a magic match
+     * print a magic rule
      *
      * @param stream  DOCUMENT ME!
-     * @param matcher DOCUMENT ME!
+     * @param rule    DOCUMENT ME!
      * @param spacing DOCUMENT ME!
      */
-    private static void printMagicMatcher(PrintStream stream, MagicMatcher matcher, String spacing) {
-        stream.println(spacing + "name: " + matcher.getMatch().getDescription());
+    private static void printMagicRule(PrintStream stream, MagicRule rule, String spacing) {
+        stream.println(spacing + "name: " + rule.getDescription());
         stream.println(spacing + "children: ");
 
-        Collection<MagicMatcher> matchers = matcher.getSubMatchers();
-
-        for (MagicMatcher magicMatcher : matchers) {
-            printMagicMatcher(stream, magicMatcher, spacing + "  ");
+        for (MagicRule child : rule.getChildren()) {
+            printMagicRule(stream, child, spacing + "  ");
         }
     }
 
@@ -357,14 +1185,25 @@ public class Magic {
     }
 
     /**
-     * DOCUMENT ME!
+     * print the match of a single file, or with -batch detect many files and print one line each,
+     * or with -daemon serve detections over a Unix domain socket
      *
      * @param args DOCUMENT ME!
      */
     public static void main(String[] args) {
+        if ((args.length > 0) && args[0].equals("-batch")) {
+            System.exit(BatchDetection.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        if ((args.length > 0) && args[0].equals("-daemon")) {
+            System.exit(DetectionDaemon.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
         try {
             if (args.length == 0) {
                 System.err.println("usage: test <file>");
+                System.err.println("       " + BatchDetection.USAGE.substring("usage: ".length()));
+                System.err.println("       " + DetectionDaemon.USAGE.substring("usage: ".length()));
                 System.exit(1);
             }
             File f = new File(args[0]);
@@ -0,0 +1,262 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The result of an explained detection, together with the rules that were tried to get it
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public final class MagicExplanation {
+    private final MagicResult result;
+    private final List<Step> steps;
+    private final long bytesRead;
+    private final int rulesSkipped;
+    private final long nanos;
+
+    /**
+     * constructor
+     *
+     * @param result    the result, or null if nothing matched
+     * @param recorder  the recorder that listened to the detection
+     * @param bytesRead    the number of bytes read from the input
+     * @param rulesSkipped the number of rules skipped for the read budget
+     * @param nanos        the time the detection took
+     */
+    MagicExplanation(MagicResult result, Recorder recorder, long bytesRead, int rulesSkipped, long nanos) {
+        this.result = result;
+        this.steps = Collections.unmodifiableList(recorder.steps());
+        this.bytesRead = bytesRead;
+        this.rulesSkipped = rulesSkipped;
+        this.nanos = nanos;
+    }
+
+    /**
+     * get the result of the detection
+     *
+     * @return the result, or null if no rule matched
+     */
+    public MagicResult getResult() {
+        return result;
+    }
+
+    /**
+     * get the rules that were evaluated, in the order they were tried. A submatch follows the
+     * rule it belongs to.
+     *
+     * @return a read-only list of steps
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * get the number of bytes read from a file, or the length of in-memory data
+     *
+     * @return the number of bytes
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * get the number of rules that were skipped because their reads would have gone over the
+     * read budget. They are among the steps as rules that did not match.
+     *
+     * @return the number of rules
+     * @see Magic#setReadBudget(long, int)
+     */
+    public int getRulesSkipped() {
+        return rulesSkipped;
+    }
+
+    /**
+     * get the time the whole detection took
+     *
+     * @return the time in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append((result != null) ? result.toString() : "no match").append(", ").append(steps.size())
+                .append(" rules, ").append(bytesRead).append(" bytes, ").append(nanos).append(" ns");
+
+        if (rulesSkipped > 0) {
+            s.append(", ").append(rulesSkipped).append(" skipped over the read budget");
+        }
+
+        s.append('\n');
+
+        for (int i = 0; i < steps.size(); i++) {
+            s.append(steps.get(i)).append('\n');
+        }
+
+        return s.toString();
+    }
+
+    /**
+     * A single rule evaluation
+     */
+    public static final class Step {
+        private final MagicRule rule;
+        private final int depth;
+        private final int offset;
+        private final boolean matched;
+        private final long bytesInspected;
+        private final long nanos;
+
+        Step(MagicRule rule, int depth, int offset, boolean matched, long bytesInspected, long nanos) {
+            this.rule = rule;
+            this.depth = depth;
+            this.offset = offset;
+            this.matched = matched;
+            this.bytesInspected = bytesInspected;
+            this.nanos = nanos;
+        }
+
+        /**
+         * get the rule that was evaluated
+         *
+         * @return the rule
+         */
+        public MagicRule getRule() {
+            return rule;
+        }
+
+        /**
+         * get the nesting level of the rule
+         *
+         * @return 0 for root rules
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * get the offset the rule was tested at. For a rule with an indirect or relative offset
+         * this is where the offset resolved to in this input.
+         *
+         * @return the offset, -1 if an indirect offset could not be resolved
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * get the type of test of the rule
+         *
+         * @return the test type
+         */
+        public String getType() {
+            return rule.getType();
+        }
+
+        /**
+         * whether or not the test of the rule held
+         *
+         * @return true if it matched
+         */
+        public boolean isMatched() {
+            return matched;
+        }
+
+        /**
+         * get the number of input bytes the test of the rule looked at, not counting submatches
+         *
+         * @return the number of bytes
+         */
+        public long getBytesInspected() {
+            return bytesInspected;
+        }
+
+        /**
+         * get the time spent on the rule, including its submatches
+         *
+         * @return the time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+
+            for (int i = 0; i < depth; i++) {
+                s.append("  ");
+            }
+
+            s.append(matched ? "+ " : "- ").append(rule.getDescription()).append(" (").append(rule.getType())
+                    .append(" at ").append(offset);
+
+            if (rule.getOffsetExpression() != null) {
+                s.append(" from ").append(rule.getOffsetExpression());
+            }
+
+            return s.append(", ").append(bytesInspected).append(" bytes, ")
+                    .append(nanos).append(" ns)").toString();
+        }
+    }
+
+    /**
+     * Collects the steps of one detection. Listeners are called when a rule is complete, so the
+     * steps arrive with submatches first and are put back in the order they were tried.
+     */
+    static final class Recorder implements MagicListener {
+        private final List<Step> completed = new ArrayList<Step>();
+
+        public void ruleEvaluated(MagicRule rule, int depth, int offset, boolean matched, long bytesInspected,
+                long nanos) {
+            completed.add(new Step(rule, depth, offset, matched, bytesInspected, nanos));
+        }
+
+        /**
+         * get the steps in the order they were tried
+         *
+         * @return a new list of steps
+         */
+        List<Step> steps() {
+            // each pending entry is a subtree already in order, the children of a step are the
+            // subtrees one level deeper that completed right before it
+            List<List<Step>> pending = new ArrayList<List<Step>>();
+
+            for (int i = 0; i < completed.size(); i++) {
+                Step step = completed.get(i);
+                int first = pending.size();
+
+                while ((first > 0) && (pending.get(first - 1).get(0).depth > step.depth)) {
+                    first--;
+                }
+
+                List<Step> tree = new ArrayList<Step>();
+                tree.add(step);
+
+                for (int j = first; j < pending.size(); j++) {
+                    tree.addAll(pending.get(j));
+                }
+
+                pending.subList(first, pending.size()).clear();
+                pending.add(tree);
+            }
+
+            List<Step> ordered = new ArrayList<Step>(completed.size());
+
+            for (int i = 0; i < pending.size(); i++) {
+                ordered.addAll(pending.get(i));
+            }
+
+            return ordered;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.io.IOException;
+
+
+/**
+ * Positional read access to the input of a detection, for detectors that only need a few
+ * pieces of a possibly large file
+ *
+ * @author $Author$
+ * @version $Revision$
+ * @see RandomAccessDetector
+ */
+public interface MagicInput {
+    /**
+     * get the length of the input
+     *
+     * @return the number of bytes in the input
+     */
+    long length();
+
+    /**
+     * read bytes at a position. Fewer bytes than asked for are only returned at the end of the
+     * input.
+     *
+     * @param position the position in the input
+     * @param b        the buffer to read into
+     * @param off      the offset in the buffer
+     * @param len      the number of bytes to read
+     * @return the number of bytes read, 0 at or past the end of the input
+     * @throws IOException if the input cannot be read, or the read would go over the read budget of
+     *                     the detection, in which case the rule is skipped
+     */
+    int read(long position, byte[] b, int off, int len)
+            throws IOException;
+
+    /**
+     * get a buffer of at least size bytes, which may hold old data. The engine takes it from a
+     * pool and takes it back when the detection ends, so it must not be kept any longer.
+     *
+     * @param size the number of bytes needed
+     * @return the buffer
+     */
+    byte[] buffer(int size);
+}
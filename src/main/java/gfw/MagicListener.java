@@ -0,0 +1,30 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+/**
+ * Receives a callback for every rule evaluated during detection. Listeners are registered with
+ * {@link Magic#addListener(MagicListener)}; when none are registered the engine does not look at
+ * the clock or make any calls.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public interface MagicListener {
+    /**
+     * called when the evaluation of a rule is complete. Submatches are reported before the rule
+     * they belong to, since the time of a rule includes its submatches.
+     *
+     * @param rule           the rule that was evaluated
+     * @param depth          0 for root rules, the nesting level for submatches
+     * @param offset         the offset the test read at, resolved for indirect and relative offsets,
+     *                       or -1 if it could not be resolved
+     * @param matched        whether or not the test of the rule held
+     * @param bytesInspected the number of input bytes the test of the rule looked at, not counting submatches
+     * @param nanos          the time spent on the rule and its submatches
+     */
+    void ruleEvaluated(MagicRule rule, int depth, int offset, boolean matched, long bytesInspected, long nanos);
+}
@@ -23,6 +23,8 @@ public class MagicMatch implements Cloneable {
     private String description = null;
     private ByteBuffer test = null;
     private int offset = 0;
+    // an indirect or relative offset, null when the offset is fixed
+    private String offsetExpression = null;
     private int length = 0;
     // possible types:
     //     byte, short, long, string, date, beshort, belong, bedate, leshort,
@@ -30,6 +32,8 @@ public class MagicMatch implements Cloneable {
     private String type = "";
     private long bitmask = 0xFFFFFFFFL;
     private char comparator = '\0';
+    // added to the computed strength when ranking matches, like !:strength in libmagic
+    private int strength = 0;
     private Map<String, String> properties;
 
     /**
@@ -50,13 +54,18 @@ public class MagicMatch implements Cloneable {
         string.append("mime type: ").append(mimeType).append("\n");
         string.append("description: ").append(description).append("\n");
         string.append("extension: ").append(extension).append("\n");
-        string.append("offset: ").append(offset).append("\n");
+        string.append("offset: ").append((offsetExpression != null) ? offsetExpression : String.valueOf(offset))
+                .append("\n");
         string.append("length: ").append(length).append("\n");
         string.append("test: ").append(new String(test.array())).append("\n");
         string.append("type: ").append(type).append("\n");
         string.append("comparator: ").append(comparator).append("\n");
         string.append("bitmask: ").append(bitmask);
 
+        if (strength != 0) {
+            string.append("\n").append("strength: ").append((strength > 0) ? "+" : "").append(strength);
+        }
+
         return string.toString();
     }
 
@@ -150,6 +159,45 @@ public class MagicMatch implements Cloneable {
         this.offset = value;
     }
 
+    /**
+     * get the indirect or relative offset of this magic match, in the notation of libmagic such as
+     * (0x3c.l+4) or &amp;2
+     *
+     * @return the offset expression, or null if the offset is fixed
+     */
+    public String getOffsetExpression() {
+        return offsetExpression;
+    }
+
+    /**
+     * set an indirect or relative offset for this magic match, which takes the place of the fixed
+     * offset
+     *
+     * @param value the offset expression, or null
+     */
+    public void setOffsetExpression(String value) {
+        this.offsetExpression = value;
+    }
+
+    /**
+     * get the adjustment of the strength of this magic match
+     *
+     * @return the number added to the strength computed from the test
+     */
+    public int getStrength() {
+        return strength;
+    }
+
+    /**
+     * set the adjustment of the strength of this magic match, for ranking a rule above or below
+     * what its test alone suggests
+     *
+     * @param value the number added to the strength computed from the test
+     */
+    public void setStrength(int value) {
+        this.strength = value;
+    }
+
     /**
      * get the length we are restricting the comparison to for this magic match
      *
@@ -325,42 +373,42 @@ public class MagicMatch implements Cloneable {
     }
 
     /**
-     * DOCUMENT ME!
+     * copy this match without going through the string based setters
      *
-     * @return DOCUMENT ME!
-     * @throws CloneNotSupportedException DOCUMENT ME!
+     * @return a copy of this match, sharing the test buffer
      */
-    protected Object clone()
-            throws CloneNotSupportedException {
-        MagicMatch clone = new MagicMatch();
-        clone.setBitmask(Long.toString(bitmask, 8));
-        clone.setComparator("" + comparator);
-        clone.setDescription(description);
-        clone.setExtension(extension);
-        clone.setLength(length);
-        clone.setMimeType(mimeType);
-        clone.setOffset(offset);
+    MagicMatch copy() {
+        MagicMatch copy = new MagicMatch();
+        copy.bitmask = bitmask;
+        copy.comparator = comparator;
+        copy.description = description;
+        copy.extension = extension;
+        copy.length = length;
+        copy.mimeType = mimeType;
+        copy.offset = offset;
+        copy.offsetExpression = offsetExpression;
+        copy.strength = strength;
 
         // these properties should only be String types, so we shouldn't have to clone them
         if (properties != null) {
-            Map<String, String> m = new HashMap<String, String>(properties);
-            clone.setProperties(m);
-        }
-
-        Iterator<MagicMatch> i = subMatches.iterator();
-        List<MagicMatch> a = new ArrayList<MagicMatch>();
-
-        while (i.hasNext()) {
-            MagicMatch mm = i.next();
-            a.add(mm);
+            copy.properties = new HashMap<String, String>(properties);
         }
 
-        clone.setSubMatches(a);
+        copy.subMatches.addAll(subMatches);
+        copy.test = test;
+        copy.type = type;
 
-        clone.setTest(test);
-        clone.setType(type);
+        return copy;
+    }
 
-        // TODO Auto-generated method stub
-        return clone;
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     * @throws CloneNotSupportedException DOCUMENT ME!
+     */
+    protected Object clone()
+            throws CloneNotSupportedException {
+        return copy();
     }
 }
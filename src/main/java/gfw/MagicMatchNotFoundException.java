@@ -46,4 +46,15 @@ public class MagicMatchNotFoundException extends Exception {
     public MagicMatchNotFoundException(String message, Throwable cause) {
         super(message, cause);
     }
+
+    /**
+     * Create an exception that may skip filling in its stack trace, for the engine to report
+     * input no rule matches without the cost of one
+     *
+     * @param message            The error message for this exception
+     * @param writableStackTrace whether or not the stack trace is filled in
+     */
+    MagicMatchNotFoundException(String message, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+    }
 }
@@ -7,14 +7,17 @@ package gfw;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 
 /**
@@ -25,8 +28,57 @@ import java.util.regex.Pattern;
  */
 public class MagicMatcher implements Cloneable {
     // private static Log log = LogFactory.getLog(MagicMatcher.class);
+    private static final int UNSUPPORTED = 0;
+    private static final int BYTE = 1;
+    private static final int BESHORT = 2;
+    private static final int LESHORT = 3;
+    private static final int BELONG = 4;
+    private static final int LELONG = 5;
+    private static final int STRING = 6;
+    private static final int REGEX = 7;
+    private static final int DETECTOR = 8;
+    private static final int SEARCH = 9;
+    private static final ByteKernels KERNELS = ByteKernels.getInstance();
+    // the unit of strength, as in libmagic; a matched submatch level is worth one
+    static final int STRENGTH_UNIT = 10;
+    // regex rules on files run the automaton over windows of this size past the header, and what
+    // java.util.regex and the detectors that take a whole array see is capped at the largest
+    // pooled size
+    private static final int REGEX_WINDOW = 1 << 16;
+    private static final int MAX_VIEW = 1 << BufferPool.MAX_SHIFT;
     private final List<MagicMatcher> subMatchers = new ArrayList<MagicMatcher>(0);
     private MagicMatch match = null;
+    // the decoded test, see compile()
+    private volatile boolean compiled = false;
+    private int testType = UNSUPPORTED;
+    private int testLength = 0;
+    private boolean testValid = false;
+    private byte[] testBytes = null;
+    private long testValue = 0;
+    // regex tests run on the automaton when the pattern allows, otherwise on the pattern
+    private ByteRegex testAutomaton = null;
+    private Pattern testPattern = null;
+    // the Horspool shift for each byte value, for search tests
+    private int[] searchShift = null;
+    private MagicDetector detector = null;
+    // null when the offset is fixed
+    private MagicOffset offsetExpression = null;
+    // the bytes a match of a fixed size test covers, for the offsets of relative submatches
+    private int matchWidth = 0;
+    // the bytes the input may start with if the test needs particular ones, otherwise null, and
+    // the shortest input the test can match, see compile(); detectors declare theirs
+    private int[] firstBytes = null;
+    private int[] detectorFirstBytes = null;
+    private long minLength = 0;
+    // how specific the test is, see strength(), and the depth of the submatchers below this one
+    private int strength = 0;
+    private volatile int maxDepth = -1;
+    private Map<String, String> properties = null;
+    private volatile MagicRule rule = null;
+    // the last type reported by the detector, parsed
+    private volatile DetectedType detectedType = null;
+    // position among the root matchers, -1 for submatchers
+    private int index = -1;
 
     /**
      * constructor
@@ -54,6 +106,26 @@ public class MagicMatcher implements Cloneable {
     public void setMatch(MagicMatch match) {
         // log.debug("setMatch()");
         this.match = match;
+        this.compiled = false;
+        this.rule = null;
+    }
+
+    /**
+     * get the position of this matcher among the root matchers
+     *
+     * @return the index, or -1 if this is not a root matcher
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * set the position of this matcher among the root matchers
+     *
+     * @param index the index
+     */
+    void setIndex(int index) {
+        this.index = index;
     }
 
     /**
@@ -84,6 +156,8 @@ public class MagicMatcher implements Cloneable {
     public void addSubMatcher(MagicMatcher m) {
         // log.debug("addSubMatcher()");
         subMatchers.add(m);
+        rule = null;
+        maxDepth = -1;
     }
 
     /**
@@ -106,6 +180,25 @@ public class MagicMatcher implements Cloneable {
         // log.debug("setSubMatchers(): for match '" + match.getDescription() + "'");
         subMatchers.clear();
         subMatchers.addAll(a);
+        rule = null;
+        maxDepth = -1;
+    }
+
+    /**
+     * get a read-only view of this matcher and its submatchers. The view is created once and
+     * shared, it reflects the matcher as it was when the view was first requested.
+     *
+     * @return the rule
+     */
+    public MagicRule getRule() {
+        MagicRule r = rule;
+
+        if (r == null) {
+            r = new MagicRule(this);
+            rule = r;
+        }
+
+        return r;
     }
 
     /**
@@ -121,302 +214,635 @@ public class MagicMatcher implements Cloneable {
             throws IOException, UnsupportedTypeException {
         // log.debug("test(File)");
 
-        int offset = match.getOffset();
-        String type = match.getType();
+        DetectionContext context = DetectionContext.forFile(f);
+
+        try {
+            MagicResult result = test(context, onlyMimeMatch);
 
-        // log.debug("test(File): testing '" + f.getName() + "' for '" + description + "'");
+            return (result != null) ? result.toMagicMatch() : null;
+        } finally {
+            context.close();
+        }
+    }
 
-        // log.debug("test(File): \n=== BEGIN MATCH INFO ==");
-        // log.debug(match.print());
-        // log.debug("test(File): \n=== END MATCH INFO ====\n");
+    /**
+     * test to see if this match or any submatches match
+     *
+     * @param data          the data that should be used to test the match
+     * @param onlyMimeMatch DOCUMENT ME!
+     * @return the deepest magic match object that matched
+     * @throws IOException              DOCUMENT ME!
+     * @throws UnsupportedTypeException DOCUMENT ME!
+     */
+    public MagicMatch test(byte[] data, boolean onlyMimeMatch)
+            throws IOException, UnsupportedTypeException {
+        // log.debug("test(byte[])");
 
-        RandomAccessFile file = new RandomAccessFile(f, "r");
+        DetectionContext context = DetectionContext.forData(data);
 
         try {
-            int length;
-            if (type.equals("byte")) {
-                length = 1;
-            } else if (type.equals("short") || type.equals("leshort") || type.equals("beshort")) {
-                length = 4;
-            } else if (type.equals("long") || type.equals("lelong") || type.equals("belong")) {
-                length = 8;
-            } else if (type.equals("string")) {
-                length = match.getTest().capacity();
-            } else if (type.equals("regex")) {
-
-
-                final int matchLength = match.getLength();
-                length = (matchLength == 0) ? (int) file.length() - offset : matchLength;
-
-                if (length < 0) {
-                    length = 0;
-                }
-            } else if (type.equals("detector")) {
-                length = (int) file.length() - offset;
+            MagicResult result = test(context, onlyMimeMatch);
 
-                if (length < 0) {
-                    length = 0;
-                }
-            } else {
-                throw new UnsupportedTypeException("unsupported test type '" + type + "'");
-            }
+            return (result != null) ? result.toMagicMatch() : null;
+        } finally {
+            context.close();
+        }
+    }
 
-            // we know this match won't work since there isn't enough data for the test
-            if (length > (file.length() - offset)) {
-                return null;
-            }
+    /**
+     * test to see if this match or any submatches match. Nothing is allocated unless the rule
+     * matches. A rule that would go over the read budget of the detection does not match and is
+     * counted in the rules skipped by the context.
+     *
+     * @param context       the per-detection state holding the input
+     * @param onlyMimeMatch only try to get mime type, no submatches are processed when true
+     * @return the result, or null if this match does not match
+     * @throws IOException              DOCUMENT ME!
+     * @throws UnsupportedTypeException DOCUMENT ME!
+     */
+    MagicResult test(DetectionContext context, boolean onlyMimeMatch)
+            throws IOException, UnsupportedTypeException {
+        if (!compiled) {
+            compile();
+        }
 
-            byte[] buf = new byte[length];
-            file.seek(offset);
+        context.rulesEvaluated++;
 
-            int bytesRead = 0;
-            int size;
-            boolean done = false;
+        MagicListener[] listeners = context.listeners;
+        long start = (listeners != null) ? System.nanoTime() : 0;
 
-            while (!done) {
-                size = file.read(buf, 0, length - bytesRead);
+        context.inspected = 0;
 
-                if (size == -1) {
-                    throw new IOException("reached end of file before all bytes were read");
-                }
+        int offset = -1;
+        boolean matched;
 
-                bytesRead += size;
+        try {
+            offset = (offsetExpression != null) ? offsetExpression.resolve(context) : match.getOffset();
+            matched = (offset >= 0) && testInternal(context, offset);
+        } catch (ReadBudgetExceededException e) {
+            // the detection goes on with the rules that fit in what is left of the budget
+            // log.debug("test(): skipping rule: " + e.getMessage());
+            context.rulesSkipped++;
+            matched = false;
+        }
 
-                if (bytesRead == length) {
-                    done = true;
-                }
+        if (!matched) {
+            if (listeners != null) {
+                notify(listeners, context.depth, offset, false, context.inspected, System.nanoTime() - start);
             }
 
-            // log.debug("test(File): stream size is '" + buf.length + "'");
-
-            MagicMatch match = null;
-            MagicMatch submatch;
-
-            if (testInternal(buf)) {
-                // set the top level match to this one
-                try {
-                    match = getMatch() != null ? (MagicMatch) getMatch()
-                            .clone() : null;
-                } catch (CloneNotSupportedException e) {
-                    // noop
-                }
-
-                // log.debug("test(File): testing matched '" + description + "'");
+            return null;
+        }
 
-                // set the data on this match
-                if (!onlyMimeMatch && subMatchers.size() > 0) {
+        int inspected = context.inspected;
+        String mimeType = (testType == DETECTOR) ? context.detectedMimeType : match.getMimeType();
+        Map<String, String> resultProperties = (testType == DETECTOR) ? context.detectedProperties : properties;
+        List<MagicResult> subResults = null;
 
+        if (!onlyMimeMatch) {
+            int end = offset + (((testType == REGEX) || (testType == SEARCH)) ? context.matchLength : matchWidth);
+            int parentEnd = context.parentEnd;
+            context.depth++;
 
-                    for (MagicMatcher subMatcher : subMatchers) {
-                        // log.debug("test(File): testing submatch " + i);
+            for (int i = 0; i < subMatchers.size(); i++) {
+                context.parentEnd = end;
 
-                        if ((submatch = subMatcher.test(f, false)) != null) {
+                MagicResult subResult = subMatchers.get(i).test(context, false);
 
-                            assert match != null;
-                            match.addSubMatch(submatch);
-                        }
+                if (subResult != null) {
+                    if (subResults == null) {
+                        subResults = new ArrayList<MagicResult>(2);
                     }
+
+                    subResults.add(subResult);
                 }
             }
 
-            return match;
-        } finally {
-            try {
-                file.close();
-            } catch (Exception fce) {
-            }
+            context.depth--;
+            context.parentEnd = parentEnd;
         }
+
+        if (listeners != null) {
+            notify(listeners, context.depth, offset, true, inspected, System.nanoTime() - start);
+        }
+
+        return new MagicResult(this, mimeType, resultProperties, subResults);
     }
 
     /**
-     * test to see if this match or any submatches match
+     * report the evaluation of this matcher to the listeners
      *
-     * @param data          the data that should be used to test the match
-     * @param onlyMimeMatch DOCUMENT ME!
-     * @return the deepest magic match object that matched
-     * @throws IOException              DOCUMENT ME!
-     * @throws UnsupportedTypeException DOCUMENT ME!
+     * @param listeners      the listeners
+     * @param depth          the nesting level
+     * @param offset         the resolved offset, -1 if there is none
+     * @param matched        whether or not the test held
+     * @param bytesInspected the bytes the test looked at
+     * @param nanos          the time spent, including submatches
      */
-    public MagicMatch test(byte[] data, boolean onlyMimeMatch)
-            throws IOException, UnsupportedTypeException {
-        // log.debug("test(byte[])");
+    private void notify(MagicListener[] listeners, int depth, int offset, boolean matched, long bytesInspected,
+            long nanos) {
+        MagicRule r = getRule();
 
-        int offset = match.getOffset();
-        String type = match.getType();
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].ruleEvaluated(r, depth, offset, matched, bytesInspected, nanos);
+        }
+    }
 
-        // log.debug("test(byte[]): testing byte[] data for '" + description + "'");
+    /**
+     * decode the test of the match once, so that evaluating it needs no parsing or allocation
+     */
+    synchronized void compile() {
+        if (compiled) {
+            return;
+        }
 
-        // log.debug("test(byte[]): \n=== BEGIN MATCH INFO ==");
-        // log.debug(match.print());
-        // log.debug("test(byte[]): \n=== END MATCH INFO ====\n");
+        String type = match.getType();
+        byte[] t = (match.getTest() != null) ? match.getTest().array() : new byte[0];
+        String test = new String(t);
 
-        int length;
+        testBytes = t;
+        testValid = t.length > 0;
+        testAutomaton = null;
+        testPattern = null;
+        searchShift = null;
+        detector = null;
+        offsetExpression = null;
 
         if (type.equals("byte")) {
-            length = 1;
-        } else if (type.equals("short") || type.equals("leshort") || type.equals("beshort")) {
-            length = 4;
-        } else if (type.equals("long") || type.equals("lelong") || type.equals("belong")) {
-            length = 8;
+            testType = BYTE;
+            testLength = 1;
+        } else if (type.equals("short")) {
+            testType = BESHORT;
+            testLength = 4;
+        } else if (type.equals("beshort")) {
+            testType = BESHORT;
+            testLength = 4;
+        } else if (type.equals("leshort")) {
+            testType = LESHORT;
+            testLength = 4;
+        } else if (type.equals("long")) {
+            testType = BELONG;
+            testLength = 8;
+        } else if (type.equals("belong")) {
+            testType = BELONG;
+            testLength = 8;
+        } else if (type.equals("lelong")) {
+            testType = LELONG;
+            testLength = 8;
         } else if (type.equals("string")) {
-            length = match.getTest().capacity();
+            testType = STRING;
+            testLength = t.length;
         } else if (type.equals("regex")) {
-            // FIXME - something wrong here, shouldn't have to subtract 1???
-            length = data.length - offset - 1;
+            testType = REGEX;
+            testLength = match.getLength();
+        } else if (type.equals("detector")) {
+            testType = DETECTOR;
+            testLength = 0;
+        } else if (type.equals("search")) {
+            testType = SEARCH;
+            testLength = t.length;
+        } else {
+            testType = UNSUPPORTED;
+        }
+
+        matchWidth = ((testType == BYTE) || (testType == STRING)) ? testLength
+                : ((testType == BESHORT) || (testType == LESHORT)) ? 2
+                : ((testType == BELONG) || (testType == LELONG)) ? 4 : 0;
 
-            if (length < 0) {
-                length = 0;
+        // a test that cannot be decoded never matches
+        try {
+            if (match.getOffsetExpression() != null) {
+                offsetExpression = MagicOffset.parse(match.getOffsetExpression());
             }
-        } else if (type.equals("detector")) {
-            // FIXME - something wrong here, shouldn't have to subtract 1???
-            length = data.length - offset - 1;
 
-            if (length < 0) {
-                length = 0;
+            if (testValid) {
+                if (testType == BYTE) {
+                    testValue = (byte) (Integer.decode(test).byteValue() & 0xff);
+                } else if ((testType == BESHORT) || (testType == LESHORT)) {
+                    testValue = Integer.decode(test).shortValue();
+                } else if ((testType == BELONG) || (testType == LELONG)) {
+                    testValue = Long.decode(test);
+                } else if (testType == REGEX) {
+                    // regex rules see a character per byte
+                    String regex = new String(t, StandardCharsets.ISO_8859_1);
+                    testAutomaton = ByteRegex.compile(regex);
+
+                    if (testAutomaton == null) {
+                        testPattern = Pattern.compile(regex);
+                    }
+                } else if (testType == SEARCH) {
+                    searchShift = shiftTable(t);
+                } else if (testType == DETECTOR) {
+                    detector = (MagicDetector) Class.forName(test).getDeclaredConstructor().newInstance();
+                }
             }
-        } else {
-            throw new UnsupportedTypeException("unsupported test type " + type);
+        } catch (NumberFormatException e) {
+            testValid = false;
+        } catch (PatternSyntaxException e) {
+            testValid = false;
+        } catch (ClassNotFoundException e) {
+            // log.error("failed to load detector: " + detectorClass, e);
+            testValid = false;
+        } catch (ReflectiveOperationException e) {
+            // log.error("specified class is not a valid detector class: " + detectorClass, e);
+            testValid = false;
+        } catch (ClassCastException e) {
+            testValid = false;
         }
 
-        byte[] buf = new byte[length];
+        prefilter();
+        strength = strength();
+        properties = (match.getProperties() != null) ? Collections.unmodifiableMap(match.getProperties())
+                : Collections.<String, String>emptyMap();
+        compiled = true;
+    }
 
+    /**
+     * work out what the input must look like for a fixed size test to have a chance, so that
+     * the engine can pass over the matcher without testing it
+     */
+    private void prefilter() {
+        firstBytes = null;
+        minLength = 0;
 
-        if ((offset + length) < data.length) {
-            System.arraycopy(data, offset, buf, 0, length);
+        if ((testType == DETECTOR) && testValid && (offsetExpression == null) && (match.getOffset() == 0)) {
+            firstBytes = detectorFirstBytes;
 
-            // log.debug("test(byte[]): stream size is '" + buf.length + "'");
+            return;
+        }
 
-            MagicMatch match = null;
-            MagicMatch submatch;
+        if ((testType < BYTE) || (testType > STRING) || (offsetExpression != null)) {
+            return;
+        }
 
-            if (testInternal(buf)) {
-                // set the top level match to this one
-                try {
-                    match = getMatch() != null ? (MagicMatch) getMatch()
-                            .clone() : null;
-                } catch (CloneNotSupportedException e) {
-                    // noop
-                }
+        if (!testValid) {
+            // never matches
+            minLength = Long.MAX_VALUE;
+
+            return;
+        }
+
+        minLength = (long) match.getOffset() + testLength;
+
+        if ((match.getOffset() != 0) || (match.getComparator() != '=')) {
+            return;
+        }
+
+        // the byte at offset 0 holds these bits of the tested value; it is only known when the
+        // bitmask keeps all of them
+        long mask = match.getBitmask();
+        int shift = ((testType == BESHORT) ? 8 : (testType == BELONG) ? 24 : 0);
+
+        if (testType == STRING) {
+            firstBytes = new int[] {testBytes[0] & 0xff};
+        } else if (((mask >> shift) & 0xff) == 0xff) {
+            firstBytes = new int[] {(int) ((testValue >> shift) & 0xff)};
+        }
+    }
+
+    /**
+     * score how specific the test is, the way libmagic does: longer literals and wider numbers
+     * score higher, exact comparisons add to the score, ranges and partial bitmasks take from it
+     * and a negated test scores nothing. The adjustment of the match is added last.
+     *
+     * @return the strength, at least 1
+     */
+    private int strength() {
+        int val = 2 * STRENGTH_UNIT;
+        int length = testBytes.length;
+
+        switch (testType) {
+            case BYTE:
+                val += STRENGTH_UNIT;
+                break;
+
+            case BESHORT:
+            case LESHORT:
+                val += 2 * STRENGTH_UNIT;
+                break;
+
+            case BELONG:
+            case LELONG:
+                val += 4 * STRENGTH_UNIT;
+                break;
+
+            case STRING:
+                val += length * STRENGTH_UNIT;
+                break;
+
+            case SEARCH:
+                // a literal that may be anywhere in a range says less than one at an offset
+                val += length * Math.max(STRENGTH_UNIT / Math.max(length, 1), 1);
+                break;
+
+            case REGEX: {
+                int literals = literals(testBytes);
+                val += literals * Math.max(STRENGTH_UNIT / Math.max(literals, 1), 1);
+                break;
+            }
+
+            default:
+                // detectors are ranked by their adjustment
+                break;
+        }
+
+        switch (match.getComparator()) {
+            case '=':
+                val += STRENGTH_UNIT;
+                break;
 
-                // log.debug("test(byte[]): testing matched '" + description + "'");
+            case '!':
+                val = 0;
+                break;
 
-                // set the data on this match
-                if (!onlyMimeMatch && subMatchers.size() > 0) {
+            case '>':
+            case '<':
+                val -= 2 * STRENGTH_UNIT;
+                break;
+        }
 
+        long mask = match.getBitmask();
+        long full = (testType == BYTE) ? 0xffL : ((testType == BESHORT) || (testType == LESHORT)) ? 0xffffL
+                : ((testType == BELONG) || (testType == LELONG)) ? 0xffffffffL : 0;
 
-                    for (MagicMatcher subMatcher : subMatchers) {
-                        // log.debug("test(byte[]): testing submatch " + i);
+        if ((mask & full) != full) {
+            val -= STRENGTH_UNIT;
+        }
 
-                        if ((submatch = subMatcher.test(data, false)) != null) {
+        return Math.max(val + match.getStrength(), 1);
+    }
 
-                            assert match != null;
-                            match.addSubMatch(submatch);
-                        }
+    /**
+     * count the characters of a regex that stand for themselves
+     *
+     * @param regex the regex
+     * @return the number of literal characters
+     */
+    private static int literals(byte[] regex) {
+        int n = 0;
+
+        for (int i = 0; i < regex.length; i++) {
+            switch (regex[i]) {
+                case '\\':
+                    // an escaped character is literal unless it is a class such as \d
+                    if ((i + 1) < regex.length) {
+                        i++;
+                        n += Character.isLetter((char) regex[i]) ? 0 : 1;
                     }
-                }
+
+                    break;
+
+                case '.':
+                case '[':
+                case ']':
+                case '(':
+                case ')':
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                case '}':
+                case '|':
+                case '^':
+                case '$':
+                    break;
+
+                default:
+                    n++;
             }
+        }
 
-            return match;
-        } else {
-            return null;
+        return n;
+    }
+
+    /**
+     * get the strength of the test of this matcher
+     *
+     * @return the strength, at least 1
+     */
+    int getStrength() {
+        if (!compiled) {
+            compile();
         }
+
+        return strength;
     }
 
     /**
-     * internal test switch
+     * get the strongest result this matcher can produce, for passing over matchers that cannot
+     * beat the results found so far
      *
-     * @param data DOCUMENT ME!
-     * @return DOCUMENT ME!
+     * @return the strength of this test plus a unit for each level of submatchers below it
      */
-    private boolean testInternal(byte[] data) {
-        // log.debug("testInternal(byte[])");
+    int getMaxStrength() {
+        return getStrength() + (STRENGTH_UNIT * getMaxDepth());
+    }
 
-        if (data.length == 0) {
-            return false;
+    private int getMaxDepth() {
+        int depth = maxDepth;
+
+        if (depth < 0) {
+            depth = 0;
+
+            for (int i = 0; i < subMatchers.size(); i++) {
+                depth = Math.max(depth, subMatchers.get(i).getMaxDepth() + 1);
+            }
+
+            maxDepth = depth;
         }
 
-        String type = match.getType();
-        String test = new String(match.getTest().array());
+        return depth;
+    }
+
+    /**
+     * get the bytes the input must start with one of for this matcher to match
+     *
+     * @return the bytes, shared and not to be modified, or null if any will do
+     */
+    int[] getFirstBytes() {
+        if (!compiled) {
+            compile();
+        }
+
+        return firstBytes;
+    }
+
+    /**
+     * declare the bytes the input must start with for the detector of this matcher to find
+     * anything at offset 0, so that the engine does not call it for other input
+     *
+     * @param bytes the bytes, or null if any will do
+     */
+    synchronized void setFirstBytes(int[] bytes) {
+        this.detectorFirstBytes = bytes;
+        this.compiled = false;
+    }
+
+    /**
+     * get the shortest input this matcher can match
+     *
+     * @return the length in bytes, 0 if there is no lower bound
+     */
+    long getMinLength() {
+        if (!compiled) {
+            compile();
+        }
+
+        return minLength;
+    }
+
+    /**
+     * get the properties of the match as a read-only map
+     *
+     * @return the properties, never null
+     */
+    Map<String, String> getProperties() {
+        if (!compiled) {
+            compile();
+        }
 
-        ByteBuffer buffer = ByteBuffer.allocate(data.length);
-
-        if (type != null && test.length() > 0) {
-            if (type.equals("string")) {
-                buffer = buffer.put(data);
-
-                return testString(buffer);
-            } else if (type.equals("byte")) {
-                buffer = buffer.put(data);
-
-                return testByte(buffer);
-            } else if (type.equals("short")) {
-                buffer = buffer.put(data);
-
-                return testShort(buffer);
-            } else if (type.equals("leshort")) {
-                buffer = buffer.put(data);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-                return testShort(buffer);
-            } else if (type.equals("beshort")) {
-                buffer = buffer.put(data);
-                buffer.order(ByteOrder.BIG_ENDIAN);
-
-                return testShort(buffer);
-            } else if (type.equals("long")) {
-                buffer = buffer.put(data);
-
-                return testLong(buffer);
-            } else if (type.equals("lelong")) {
-                buffer = buffer.put(data);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-                return testLong(buffer);
-            } else if (type.equals("belong")) {
-                buffer = buffer.put(data);
-                buffer.order(ByteOrder.BIG_ENDIAN);
-
-                return testLong(buffer);
-            } else if (type.equals("regex")) {
-                return testRegex(new String(data));
-            } else if (type.equals("detector")) {
-                buffer = buffer.put(data);
-
-                return testDetector(buffer);
-
-                //			} else if (type.equals("date")) {
-                //				return testDate(data, BIG_ENDIAN);
-                //			} else if (type.equals("ledate")) {
-                //				return testDate(data, LITTLE_ENDIAN);
-                //			} else if (type.equals("bedate")) {
-                //				return testDate(data, BIG_ENDIAN);
+        return properties;
+    }
+
+    /**
+     * internal test switch
+     *
+     * @param context the per-detection state holding the input
+     * @param offset  the offset of the test in the input
+     * @return whether the test of this match holds
+     * @throws IOException              DOCUMENT ME!
+     * @throws UnsupportedTypeException DOCUMENT ME!
+     */
+    private boolean testInternal(DetectionContext context, int offset)
+            throws IOException, UnsupportedTypeException {
+        // log.debug("testInternal()");
+
+        switch (testType) {
+            case BYTE:
+            case BESHORT:
+            case LESHORT:
+            case BELONG:
+            case LELONG:
+            case STRING:
+                if (!testValid || !context.fetch(offset, testLength)) {
+                    return false;
+                }
+
+                context.inspected = testLength;
+
+                return testNumberOrString(context.buffer, context.position);
+
+            case REGEX: {
+                if (context.isFile() && (testAutomaton != null)) {
+                    return testValid && testRegex(context, offset);
+                }
+
+                int length = context.isFile() && (testLength != 0) ? testLength : context.remaining(offset);
+
+                if (context.isFile()) {
+                    length = Math.min(length, MAX_VIEW);
+                }
+
+                if (!testValid || (length == 0) || !context.fetch(offset, length)) {
+                    return false;
+                }
+
+                context.inspected = length;
+                // a regex covers all of the data it was given
+                context.matchLength = length;
+
+                return testRegex(context.buffer, context.position, length);
+            }
+
+            case SEARCH: {
+                // every start position in the range, the header when no range is given; the
+                // window runs to the end of the input for in-memory data as well as for files
+                int range = (match.getLength() > 0) ? match.getLength() : DetectionContext.HEADER_SIZE;
+                int length = (int) Math.min((long) range + testLength - 1, Math.max(context.length() - offset, 0));
+
+                if (!testValid || (length < testLength) || !context.fetchWindow(offset, length)) {
+                    return false;
+                }
+
+                context.inspected = length;
+
+                return testSearch(context, length);
+            }
+
+            case DETECTOR: {
+                if (testValid && (detector instanceof RandomAccessDetector)) {
+                    return (offset < context.length()) && testRandomAccessDetector(context, offset);
+                }
+
+                // a detector that takes a whole array sees at most MAX_VIEW bytes, which come
+                // from the pool when there are that many
+                int length = Math.min(context.remaining(offset), MAX_VIEW);
+
+                if (!testValid || (length == 0)) {
+                    return false;
+                }
+
+                byte[] data = context.copy(offset, length);
+
+                if (data == null) {
+                    return false;
+                }
+
+                context.inspected = length;
+
+                return testDetector(context, data, offset);
             }
+
+            default:
+                throw new UnsupportedTypeException("unsupported test type '" + match.getType() + "'");
         }
+    }
 
-        return false;
+    /**
+     * dispatch the fixed size tests
+     *
+     * @param b   the buffer holding the data
+     * @param pos the position of the tested bytes in the buffer
+     * @return if we have a match
+     */
+    private boolean testNumberOrString(byte[] b, int pos) {
+        switch (testType) {
+            case BYTE:
+                return testByte(b[pos]);
+
+            case BESHORT:
+                return testShort((short) ((b[pos] << 8) | (b[pos + 1] & 0xff)));
+
+            case LESHORT:
+                return testShort((short) ((b[pos + 1] << 8) | (b[pos] & 0xff)));
+
+            case BELONG:
+                return testLong(((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+                        | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff));
+
+            case LELONG:
+                return testLong(((b[pos + 3] & 0xff) << 24) | ((b[pos + 2] & 0xff) << 16)
+                        | ((b[pos + 1] & 0xff) << 8) | (b[pos] & 0xff));
+
+            default:
+                return testString(b, pos);
+        }
     }
 
     /**
      * test the data against the test byte
      *
-     * @param data the data we are testing
+     * @param b the byte we are testing
      * @return if we have a match
      */
-    private boolean testByte(ByteBuffer data) {
+    private boolean testByte(byte b) {
         // log.debug("testByte()");
 
-        String test = new String(match.getTest().array());
-        char comparator = match.getComparator();
-        long bitmask = match.getBitmask();
-
-        byte b = data.get(0);
-        b = (byte) (b & bitmask);
-        // log.debug("testByte(): decoding '" + test + "' to byte");
+        b = (byte) (b & match.getBitmask());
 
-        int tst = Integer.decode(test).byteValue();
-        byte t = (byte) (tst & 0xff);
+        byte t = (byte) testValue;
 
-        switch (comparator) {
+        switch (match.getComparator()) {
             case '=':
                 return t == b;
 
@@ -436,31 +862,19 @@ public class MagicMatcher implements Cloneable {
     /**
      * test the data against the byte array
      *
-     * @param data the data we are testing
+     * @param b   the buffer holding the data
+     * @param pos the position of the tested bytes in the buffer
      * @return if we have a match
      */
-    private boolean testString(ByteBuffer data) {
+    private boolean testString(byte[] b, int pos) {
         // log.debug("testString()");
 
-        ByteBuffer test = match.getTest();
-        char comparator = match.getComparator();
-
-        byte[] b = data.array();
-        byte[] t = test.array();
-
-        boolean diff = false;
-        int i;
+        byte[] t = testBytes;
 
-        for (i = 0; i < t.length; i++) {
-
-            if (t[i] != b[i]) {
-                diff = true;
-
-                break;
-            }
-        }
+        int i = KERNELS.mismatch(t, 0, b, pos, t.length);
+        boolean diff = i >= 0;
 
-        switch (comparator) {
+        switch (match.getComparator()) {
             case '=':
                 return !diff;
 
@@ -468,10 +882,10 @@ public class MagicMatcher implements Cloneable {
                 return diff;
 
             case '>':
-                return t[i] > b[i];
+                return diff && (t[i] > b[pos + i]);
 
             case '<':
-                return t[i] < b[i];
+                return diff && (t[i] < b[pos + i]);
         }
 
         return false;
@@ -480,38 +894,18 @@ public class MagicMatcher implements Cloneable {
     /**
      * test the data against a short
      *
-     * @param data the data we are testing
+     * @param val the value we are testing
      * @return if we have a match
      */
-    private boolean testShort(ByteBuffer data) {
+    private boolean testShort(short val) {
         // log.debug("testShort()");
 
-        short val;
-        String test = new String(match.getTest().array());
-        char comparator = match.getComparator();
-        long bitmask = match.getBitmask();
-
-        val = byteArrayToShort(data);
+        short tst = (short) testValue;
 
         // apply bitmask before the comparison
-        val = (short) (val & (short) bitmask);
-
-        short tst;
+        val = (short) (val & (short) match.getBitmask());
 
-        try {
-            tst = Integer.decode(test).shortValue();
-        } catch (NumberFormatException e) {
-            // log.error("testShort(): " + e);
-
-            return false;
-
-            //if (test.length() == 1) {	
-            //	tst = new Integer(Character.getNumericValue(test.charAt(0))).shortValue();
-            //}
-        }
-
-
-        switch (comparator) {
+        switch (match.getComparator()) {
             case '=':
                 return val == tst;
 
@@ -531,26 +925,18 @@ public class MagicMatcher implements Cloneable {
     /**
      * test the data against a long
      *
-     * @param data the data we are testing
+     * @param data the value we are testing
      * @return if we have a match
      */
-    private boolean testLong(ByteBuffer data) {
+    private boolean testLong(int data) {
         // log.debug("testLong()");
 
-        long val;
-        String test = new String(match.getTest().array());
-        char comparator = match.getComparator();
-        long bitmask = match.getBitmask();
-
-        val = byteArrayToLong(data);
+        long tst = testValue;
 
         // apply bitmask before the comparison
-        val = val & bitmask;
-
-        long tst = Long.decode(test);
+        long val = data & match.getBitmask();
 
-
-        switch (comparator) {
+        switch (match.getComparator()) {
             case '=':
                 return val == tst;
 
@@ -567,61 +953,218 @@ public class MagicMatcher implements Cloneable {
         return false;
     }
 
+    /**
+     * look for the test bytes in the window fetched into the context
+     *
+     * @param context the per-detection state holding the window
+     * @param length  the length of the window
+     * @return if we have a match
+     */
+    private boolean testSearch(DetectionContext context, int length) {
+        // log.debug("testSearch()");
+
+        byte[] b = context.buffer;
+        byte[] t = testBytes;
+        int[] shift = searchShift;
+        int last = t.length - 1;
+        int start = context.position;
+        int limit = (start + length) - last;
+        int found = -1;
+
+        for (int i = start; i < limit; i += shift[b[i + last] & 0xff]) {
+            if ((b[i + last] == t[last]) && (KERNELS.mismatch(t, 0, b, i, last) < 0)) {
+                found = i - start;
+                break;
+            }
+        }
+
+        context.matchLength = (found >= 0) ? (found + t.length) : 0;
+
+        switch (match.getComparator()) {
+            case '=':
+                return found >= 0;
+
+            case '!':
+                return found < 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * build the table of how far a Boyer-Moore-Horspool search may move on, by the byte at the
+     * end of the current window
+     *
+     * @param t the bytes searched for
+     * @return the table
+     */
+    private static int[] shiftTable(byte[] t) {
+        int[] shift = new int[256];
+        Arrays.fill(shift, t.length);
+
+        for (int i = 0; i < (t.length - 1); i++) {
+            shift[t[i] & 0xff] = t.length - 1 - i;
+        }
+
+        return shift;
+    }
+
     /**
      * test the data against a regex
      *
-     * @param text the data we are testing
+     * @param b      the buffer holding the data
+     * @param pos    the position of the data in the buffer
+     * @param length the length of the data
      * @return if we have a match
      */
-    private boolean testRegex(String text) {
+    private boolean testRegex(byte[] b, int pos, int length) {
         // log.debug("testRegex()");
 
-        String test = new String(match.getTest().array());
         char comparator = match.getComparator();
 
-        // log.debug("testRegex(): searching for '" + test + "'");
+        if ((comparator != '=') && (comparator != '!')) {
+            return false;
+        }
+
+        boolean matches = (testAutomaton != null) ? testAutomaton.matches(b, pos, length)
+                : testPattern.matcher(new Latin1Sequence(b, pos, length)).matches();
+
+        return matches == (comparator == '=');
+    }
+
+    /**
+     * test a file against a regex the automaton runs, a window at a time, so that a rule without
+     * a length never needs the rest of a large file in one array
+     *
+     * @param context the per-detection state holding the input
+     * @param offset  the offset of the test in the input
+     * @return if we have a match
+     * @throws IOException if the file cannot be read, or the read would go over the read budget
+     */
+    private boolean testRegex(DetectionContext context, int offset)
+            throws IOException {
+        char comparator = match.getComparator();
 
-        if (comparator == '=') {
-            return Pattern.matches(test, text);
-        } else if (comparator == '!') {
-            return !Pattern.matches(test, text);
+        if ((comparator != '=') && (comparator != '!')) {
+            return false;
         }
 
-        return false;
+        long available = context.length() - offset;
+        // offsets are ints, so the input ends at Integer.MAX_VALUE as far as rules are concerned
+        int length = (int) Math.min((testLength != 0) ? testLength : available, Integer.MAX_VALUE - (long) offset);
+
+        if ((length <= 0) || (length > available)) {
+            return false;
+        }
+
+        int state = testAutomaton.start();
+        int done = 0;
+
+        while ((done < length) && !testAutomaton.isFinal(state)) {
+            int position = offset + done;
+            // the first window ends with the header, so it is not read again
+            int n = Math.min((position < DetectionContext.HEADER_SIZE)
+                    ? DetectionContext.HEADER_SIZE - position : REGEX_WINDOW, length - done);
+
+            if (!context.fetch(position, n)) {
+                return false;
+            }
+
+            state = testAutomaton.step(state, context.buffer, context.position, n);
+            done += n;
+        }
+
+        context.inspected = done;
+        // a regex covers all of the data it was given
+        context.matchLength = length;
+
+        return testAutomaton.accepts(state) == (comparator == '=');
     }
 
     /**
      * test the data using a detector
      *
-     * @param data the data we are testing
+     * @param context the per-detection state receiving the detected mime type
+     * @param data    the data we are testing
+     * @param offset  the offset of the data in the input
      * @return if we have a match
      */
-    private boolean testDetector(ByteBuffer data) {
+    private boolean testDetector(DetectionContext context, byte[] data, int offset) {
         // log.debug("testDetector()");
 
-        String detectorClass = new String(match.getTest().array());
+        DetectorEvent event = new DetectorEvent();
+        event.begin();
 
-        try {
-            // log.debug("loading class: " + detectorClass);
+        String[] types = detector.process(data, offset, match.getLength(),
+                match.getBitmask(), match.getComparator(), match.getMimeType(),
+                match.getProperties());
+
+        event.end();
 
-            Class<?> c = Class.forName(detectorClass);
-            MagicDetector detector = (MagicDetector) c.newInstance();
-            String[] types = detector.process(data.array(), match.getOffset(), match.getLength(),
-                    match.getBitmask(), match.getComparator(), match.getMimeType(),
-                    match.getProperties());
+        if (event.shouldCommit()) {
+            event.detector = detector.getClass().getName();
+            event.rule = match.getDescription();
+            event.inputLength = data.length;
+            event.mimeType = ((types != null) && (types.length > 0)) ? types[0] : null;
+            event.commit();
+        }
+
+        return accept(context, types);
+    }
+
+    /**
+     * test the input using a detector that reads the parts it needs itself
+     *
+     * @param context the per-detection state, which is also the input
+     * @param offset  the offset of the rule in the input
+     * @return if we have a match
+     * @throws IOException if the input cannot be read
+     */
+    private boolean testRandomAccessDetector(DetectionContext context, int offset)
+            throws IOException {
+        DetectorEvent event = new DetectorEvent();
+        event.begin();
+
+        long read = context.inputRead;
+        String[] types = ((RandomAccessDetector) detector).process(context, offset, match.getLength(),
+                match.getBitmask(), match.getComparator(), match.getMimeType(), match.getProperties());
+
+        context.inspected = (int) (context.inputRead - read);
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.detector = detector.getClass().getName();
+            event.rule = match.getDescription();
+            event.inputLength = context.length();
+            event.mimeType = ((types != null) && (types.length > 0)) ? types[0] : null;
+            event.commit();
+        }
 
-            if ((types != null) && (types.length > 0)) {
-                // the match object has no mime type set, so set from the detector class processing
-                match.setMimeType(types[0]);
+        return accept(context, types);
+    }
 
-                return true;
+    /**
+     * take the result of a detector
+     *
+     * @param context the per-detection state receiving the detected mime type
+     * @param types   the types returned by the detector
+     * @return if the detector matched
+     */
+    private boolean accept(DetectionContext context, String[] types) {
+        if ((types != null) && (types.length > 0)) {
+            // the match object has no mime type set, so take it from the detector class processing.
+            // Detectors normally return the same few strings, so the last one is kept parsed.
+            DetectedType t = detectedType;
+
+            if ((t == null) || !t.raw.equals(types[0])) {
+                t = new DetectedType(types[0], getProperties());
+                detectedType = t;
             }
-        } catch (ClassNotFoundException e) {
-            // log.error("failed to load detector: " + detectorClass, e);
-        } catch (InstantiationException e) {
-            // log.error("specified class is not a valid detector class: " + detectorClass, e);
-        } catch (IllegalAccessException e) {
-            // log.error("specified class cannot be accessed: " + detectorClass, e);
+
+            context.detectedMimeType = t.mimeType;
+            context.detectedProperties = t.properties;
+
+            return true;
         }
 
         return false;
@@ -634,25 +1177,33 @@ public class MagicMatcher implements Cloneable {
      */
     public String[] getDetectorExtensions() {
         // log.debug("testDetector()");
+        MagicDetector d = getDetector();
 
-        String detectorClass = new String(match.getTest().array());
+        return (d != null) ? d.getHandledExtensions() : new String[0];
+    }
 
-        try {
-            // log.debug("loading class: " + detectorClass);
+    /**
+     * Get the mime types the underlying detector can report
+     *
+     * @return the handled mime types, empty if the detector cannot be loaded
+     */
+    public String[] getDetectorTypes() {
+        MagicDetector d = getDetector();
 
-            Class<?> c = Class.forName(detectorClass);
-            MagicDetector detector = (MagicDetector) c.newInstance();
+        return (d != null) ? d.getHandledTypes() : new String[0];
+    }
 
-            return detector.getHandledTypes();
-        } catch (ClassNotFoundException e) {
-            // log.error("failed to load detector: " + detectorClass, e);
-        } catch (InstantiationException e) {
-            // log.error("specified class is not a valid detector class: " + detectorClass, e);
-        } catch (IllegalAccessException e) {
-            // log.error("specified class cannot be accessed: " + detectorClass, e);
+    /**
+     * get the detector compiled for a detector test
+     *
+     * @return the detector, or null if the test is not a detector or cannot be loaded
+     */
+    private MagicDetector getDetector() {
+        if (!compiled) {
+            compile();
         }
 
-        return new String[0];
+        return detector;
     }
 
     /**
@@ -672,26 +1223,6 @@ public class MagicMatcher implements Cloneable {
         return n1 + String.valueOf(n2) + n3;
     }
 
-    /**
-     * convert a byte array to a short
-     *
-     * @param data buffer of byte data
-     * @return byte array converted to a short
-     */
-    private short byteArrayToShort(ByteBuffer data) {
-        return data.getShort(0);
-    }
-
-    /**
-     * convert a byte array to a long
-     *
-     * @param data buffer of byte data
-     * @return byte arrays (high and low bytes) converted to a long value
-     */
-    private long byteArrayToLong(ByteBuffer data) {
-        return data.getInt(0);
-    }
-
     /**
      * DOCUMENT ME!
      *
@@ -716,4 +1247,45 @@ public class MagicMatcher implements Cloneable {
 
         return clone;
     }
+
+    /**
+     * A mime type reported by a detector, split into the type and its parameters, for example
+     * "text/plain; charset=UTF-8". The parameters are added to the properties of the rule.
+     */
+    private static final class DetectedType {
+        final String raw;
+        final String mimeType;
+        final Map<String, String> properties;
+
+        DetectedType(String raw, Map<String, String> ruleProperties) {
+            this.raw = raw;
+
+            String[] parts = raw.split(";");
+            this.mimeType = parts[0].trim();
+
+            if (parts.length == 1) {
+                this.properties = ruleProperties;
+
+                return;
+            }
+
+            Map<String, String> p = new HashMap<String, String>(ruleProperties);
+
+            for (int i = 1; i < parts.length; i++) {
+                int eq = parts[i].indexOf('=');
+
+                if (eq > 0) {
+                    String value = parts[i].substring(eq + 1).trim();
+
+                    if ((value.length() > 1) && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+
+                    p.put(parts[i].substring(0, eq).trim().toLowerCase(), value);
+                }
+            }
+
+            this.properties = Collections.unmodifiableMap(p);
+        }
+    }
 }
@@ -0,0 +1,261 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Detection counters, enabled with {@link Magic#setMetricsEnabled(boolean)}. All counters are
+ * striped, so recording from many detection threads does not contend.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public final class MagicMetrics implements MagicMetricsMXBean {
+    /**
+     * detection of in-memory data
+     */
+    static final int BYTES = 0;
+    /**
+     * detection of a file without extension hints
+     */
+    static final int FILE = 1;
+    /**
+     * detection of a file with extension hints
+     */
+    static final int FILE_HINTED = 2;
+    private static final String[] ENTRY_POINTS = {"byte[]", "File", "File with hints"};
+    // bucket i holds latencies below 2^i ns, the last one everything above 2^38 ns (~4.6 minutes)
+    private static final int BUCKETS = 40;
+
+    private final String[] ruleNames;
+    private final LongAdder[] evaluations;
+    private final LongAdder[] hits;
+    private final LongAdder[][] latencies = new LongAdder[ENTRY_POINTS.length][BUCKETS];
+    private final LongAdder[] latencyTotals = new LongAdder[ENTRY_POINTS.length];
+    private final LongAdder[] latencyCounts = new LongAdder[ENTRY_POINTS.length];
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+    private final LongAdder rulesSkipped = new LongAdder();
+    private final LongAdder bufferHits = new LongAdder();
+    private final LongAdder bufferMisses = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> mimeTypes = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * constructor
+     *
+     * @param rules the root rules, in evaluation order
+     */
+    MagicMetrics(List<MagicRule> rules) {
+        ruleNames = new String[rules.size()];
+        evaluations = new LongAdder[rules.size()];
+        hits = new LongAdder[rules.size()];
+
+        for (int i = 0; i < ruleNames.length; i++) {
+            ruleNames[i] = i + ": " + rules.get(i).getDescription();
+            evaluations[i] = new LongAdder();
+            hits[i] = new LongAdder();
+        }
+
+        for (int i = 0; i < ENTRY_POINTS.length; i++) {
+            for (int j = 0; j < BUCKETS; j++) {
+                latencies[i][j] = new LongAdder();
+            }
+
+            latencyTotals[i] = new LongAdder();
+            latencyCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * record the evaluation of a root rule
+     *
+     * @param index the index of the root rule
+     * @param hit   whether or not it matched
+     */
+    void ruleEvaluated(int index, boolean hit) {
+        if ((index >= 0) && (index < evaluations.length)) {
+            evaluations[index].increment();
+
+            if (hit) {
+                hits[index].increment();
+            }
+        }
+    }
+
+    /**
+     * record a top level detection
+     *
+     * @param entryPoint BYTES, FILE or FILE_HINTED
+     * @param nanos      the duration of the detection
+     * @param result     the result, or null if nothing matched
+     * @param skipped    the number of rules skipped for the read budget
+     */
+    void detected(int entryPoint, long nanos, MagicResult result, int skipped) {
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), BUCKETS - 1);
+
+        latencies[entryPoint][bucket].increment();
+        latencyTotals[entryPoint].add(nanos);
+        latencyCounts[entryPoint].increment();
+
+        if (result == null) {
+            notFound.increment();
+        } else {
+            String mimeType = String.valueOf(result.getMimeType());
+            LongAdder count = mimeTypes.get(mimeType);
+
+            if (count == null) {
+                count = mimeTypes.computeIfAbsent(mimeType, k -> new LongAdder());
+            }
+
+            count.increment();
+        }
+
+        if (skipped > 0) {
+            overBudget.increment();
+            rulesSkipped.add(skipped);
+        }
+    }
+
+    /**
+     * record a buffer taken from the pool
+     *
+     * @param hit whether the buffer was pooled rather than allocated
+     */
+    void bufferAcquired(boolean hit) {
+        if (hit) {
+            bufferHits.increment();
+        } else {
+            bufferMisses.increment();
+        }
+    }
+
+    public long getDetections() {
+        long sum = 0;
+
+        for (LongAdder count : latencyCounts) {
+            sum += count.sum();
+        }
+
+        return sum;
+    }
+
+    public long getNotFound() {
+        return notFound.sum();
+    }
+
+    public long getOverBudget() {
+        return overBudget.sum();
+    }
+
+    public long getRulesSkipped() {
+        return rulesSkipped.sum();
+    }
+
+    public long getBufferPoolHits() {
+        return bufferHits.sum();
+    }
+
+    public long getBufferPoolMisses() {
+        return bufferMisses.sum();
+    }
+
+    public Map<String, Long> getMimeTypeCounts() {
+        Map<String, Long> m = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, LongAdder> e : mimeTypes.entrySet()) {
+            m.put(e.getKey(), e.getValue().sum());
+        }
+
+        return m;
+    }
+
+    public Map<String, Long> getRuleEvaluations() {
+        return toMap(evaluations);
+    }
+
+    public Map<String, Long> getRuleHits() {
+        return toMap(hits);
+    }
+
+    private Map<String, Long> toMap(LongAdder[] counts) {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+
+        for (int i = 0; i < counts.length; i++) {
+            m.put(ruleNames[i], counts[i].sum());
+        }
+
+        return m;
+    }
+
+    public long[] getLatencyBucketBounds() {
+        long[] bounds = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            bounds[i] = 1L << i;
+        }
+
+        bounds[BUCKETS - 1] = Long.MAX_VALUE;
+
+        return bounds;
+    }
+
+    public Map<String, long[]> getLatencyHistograms() {
+        Map<String, long[]> m = new LinkedHashMap<String, long[]>();
+
+        for (int i = 0; i < ENTRY_POINTS.length; i++) {
+            long[] counts = new long[BUCKETS];
+
+            for (int j = 0; j < BUCKETS; j++) {
+                counts[j] = latencies[i][j].sum();
+            }
+
+            m.put(ENTRY_POINTS[i], counts);
+        }
+
+        return m;
+    }
+
+    public Map<String, Long> getMeanLatencies() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+
+        for (int i = 0; i < ENTRY_POINTS.length; i++) {
+            long count = latencyCounts[i].sum();
+            m.put(ENTRY_POINTS[i], (count > 0) ? latencyTotals[i].sum() / count : 0);
+        }
+
+        return m;
+    }
+
+    public void reset() {
+        for (int i = 0; i < evaluations.length; i++) {
+            evaluations[i].reset();
+            hits[i].reset();
+        }
+
+        for (int i = 0; i < ENTRY_POINTS.length; i++) {
+            for (int j = 0; j < BUCKETS; j++) {
+                latencies[i][j].reset();
+            }
+
+            latencyTotals[i].reset();
+            latencyCounts[i].reset();
+        }
+
+        notFound.reset();
+        overBudget.reset();
+        rulesSkipped.reset();
+        bufferHits.reset();
+        bufferMisses.reset();
+        mimeTypes.clear();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.Map;
+
+
+/**
+ * The management interface of {@link MagicMetrics}, published as gfw:type=MagicMetrics
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public interface MagicMetricsMXBean {
+    /**
+     * get the number of top level detections
+     *
+     * @return the number of detections
+     */
+    long getDetections();
+
+    /**
+     * get the number of detections no rule matched
+     *
+     * @return the number of MagicMatchNotFoundException outcomes
+     */
+    long getNotFound();
+
+    /**
+     * get the number of detections that skipped rules to stay within the read budget
+     *
+     * @return the number of detections
+     */
+    long getOverBudget();
+
+    /**
+     * get the number of rules skipped to stay within the read budget
+     *
+     * @return the number of rules, including submatches
+     */
+    long getRulesSkipped();
+
+    /**
+     * get the number of buffers detections took from the pool
+     *
+     * @return the number of buffers that were reused
+     */
+    long getBufferPoolHits();
+
+    /**
+     * get the number of buffers detections had to allocate because the pool had none of the size
+     *
+     * @return the number of buffers that were allocated
+     */
+    long getBufferPoolMisses();
+
+    /**
+     * get the number of detections per resulting mime type
+     *
+     * @return the counts keyed by mime type
+     */
+    Map<String, Long> getMimeTypeCounts();
+
+    /**
+     * get the number of times each root rule was evaluated
+     *
+     * @return the counts keyed by rule index and description
+     */
+    Map<String, Long> getRuleEvaluations();
+
+    /**
+     * get the number of times each root rule matched
+     *
+     * @return the counts keyed by rule index and description
+     */
+    Map<String, Long> getRuleHits();
+
+    /**
+     * get the upper bounds of the latency histogram buckets
+     *
+     * @return the bounds in nanoseconds, bucket i counts latencies below bound i
+     */
+    long[] getLatencyBucketBounds();
+
+    /**
+     * get the latency histogram of each detection entry point
+     *
+     * @return the bucket counts keyed by entry point
+     */
+    Map<String, long[]> getLatencyHistograms();
+
+    /**
+     * get the mean latency of each detection entry point
+     *
+     * @return the mean in nanoseconds keyed by entry point
+     */
+    Map<String, Long> getMeanLatencies();
+
+    /**
+     * reset all counters
+     */
+    void reset();
+}
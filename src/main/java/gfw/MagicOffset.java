@@ -0,0 +1,155 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.io.IOException;
+
+
+/**
+ * An offset that is only known once the data is looked at, written the way libmagic writes
+ * them. {@code &8} is 8 bytes past the end of the parent match. {@code (0x3c.l+4)} reads a
+ * little-endian long at 0x3c and adds 4, where the type after the dot is one of b or B for a
+ * byte, s or h for a little-endian and S or H for a big-endian short, and l for a little-endian
+ * and L for a big-endian long, a long when left out. Inside the parentheses the position read
+ * from may itself be relative, as in {@code (&0.b)}, and a leading & makes the result relative,
+ * as in {@code &(4.S-2)}.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class MagicOffset {
+    private final String expression;
+    // the result is added to the end of the parent match
+    private final boolean relative;
+    private final int base;
+    // the position read from is relative to the end of the parent match
+    private final boolean baseRelative;
+    // the number of bytes read at base, 0 for a direct offset
+    private final int width;
+    private final boolean bigEndian;
+    private final int adjustment;
+
+    private MagicOffset(String expression, boolean relative, int base, boolean baseRelative, int width,
+                        boolean bigEndian, int adjustment) {
+        this.expression = expression;
+        this.relative = relative;
+        this.base = base;
+        this.baseRelative = baseRelative;
+        this.width = width;
+        this.bigEndian = bigEndian;
+        this.adjustment = adjustment;
+    }
+
+    /**
+     * parse an offset expression
+     *
+     * @param expression the expression
+     * @return the offset
+     * @throws NumberFormatException if the expression cannot be parsed
+     */
+    static MagicOffset parse(String expression)
+            throws NumberFormatException {
+        String e = expression.trim();
+        boolean relative = e.startsWith("&");
+
+        if (relative) {
+            e = e.substring(1).trim();
+        }
+
+        if (!e.startsWith("(")) {
+            return new MagicOffset(expression, relative, Integer.decode(e), false, 0, false, 0);
+        }
+
+        if (!e.endsWith(")")) {
+            throw new NumberFormatException("unbalanced parentheses in offset '" + expression + "'");
+        }
+
+        e = e.substring(1, e.length() - 1).trim();
+
+        boolean baseRelative = e.startsWith("&");
+
+        if (baseRelative) {
+            e = e.substring(1).trim();
+        }
+
+        // the sign of the adjustment, the base cannot be negative
+        int sign = Math.max(e.indexOf('+', 1), e.indexOf('-', 1));
+        int adjustment = (sign > 0) ? Integer.decode(e.substring(sign).trim()) : 0;
+        String pointer = (sign > 0) ? e.substring(0, sign).trim() : e;
+        int dot = pointer.indexOf('.');
+        char type = (dot >= 0) ? pointer.charAt(dot + 1) : 'l';
+
+        if ((dot >= 0) && (dot != (pointer.length() - 2))) {
+            throw new NumberFormatException("bad type in offset '" + expression + "'");
+        }
+
+        int base = Integer.decode((dot >= 0) ? pointer.substring(0, dot) : pointer);
+
+        switch (type) {
+            case 'b':
+            case 'B':
+                return new MagicOffset(expression, relative, base, baseRelative, 1, false, adjustment);
+
+            case 's':
+            case 'h':
+                return new MagicOffset(expression, relative, base, baseRelative, 2, false, adjustment);
+
+            case 'S':
+            case 'H':
+                return new MagicOffset(expression, relative, base, baseRelative, 2, true, adjustment);
+
+            case 'l':
+                return new MagicOffset(expression, relative, base, baseRelative, 4, false, adjustment);
+
+            case 'L':
+                return new MagicOffset(expression, relative, base, baseRelative, 4, true, adjustment);
+
+            default:
+                throw new NumberFormatException("bad type in offset '" + expression + "'");
+        }
+    }
+
+    /**
+     * work out the offset for the input of a detection
+     *
+     * @param context the per-detection state, holding the input and the end of the parent match
+     * @return the offset, or -1 if the offset cannot be read or is out of range
+     * @throws IOException if the file cannot be read
+     */
+    int resolve(DetectionContext context)
+            throws IOException {
+        long offset = base;
+
+        if (width > 0) {
+            long position = base + (baseRelative ? context.parentEnd : 0);
+
+            if ((position < 0) || (position > Integer.MAX_VALUE) || !context.fetch((int) position, width)) {
+                return -1;
+            }
+
+            byte[] b = context.buffer;
+            int p = context.position;
+            long value = 0;
+
+            for (int i = 0; i < width; i++) {
+                int shift = 8 * (bigEndian ? (width - 1 - i) : i);
+                value |= (b[p + i] & 0xffL) << shift;
+            }
+
+            offset = value + adjustment;
+        }
+
+        if (relative) {
+            offset += context.parentEnd;
+        }
+
+        return ((offset >= 0) && (offset <= Integer.MAX_VALUE)) ? (int) offset : -1;
+    }
+
+    public String toString() {
+        return expression;
+    }
+}
@@ -42,8 +42,16 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
     // Default Schema full checking support (false).
     protected static final boolean DEFAULT_SCHEMA_FULL_CHECKING = false;
     private static final String magicFile = "/magic.xml";
+    // detectors tried before the rules of the magic file: the class, description, extension,
+    // strength adjustment and the bytes the format starts with of each rule. A detector parses
+    // the format, so it ranks above the signature rules it starts from.
+    private static final String[][] BUILT_IN_DETECTORS = {
+            {"gfw.detectors.ZipDetector", "ZIP based document", null, "60", "0x50"},
+            {"gfw.detectors.CompoundFileDetector", "OLE2 compound document", null, "90", "0xd0"},
+            {"gfw.detectors.MpegAudioDetector", "MPEG audio", "mp3", "30", "0x49 0xff"}
+    };
     private final List<MagicMatcher> stack = new ArrayList<MagicMatcher>();
-    private final Collection<MagicMatcher> matchers = new ArrayList<MagicMatcher>();
+    private final List<MagicMatcher> matchers = new ArrayList<MagicMatcher>();
     private boolean initialized = false;
     private MagicMatcher matcher = null;
     private MagicMatch match = null;
@@ -116,6 +124,9 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
             parser.setErrorHandler(this);
             parser.setContentHandler(this);
 
+            RuleLoadEvent event = new RuleLoadEvent();
+            event.begin();
+
             // parse file
             try {
                 // get the magic file URL
@@ -127,6 +138,7 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
                     throw new MagicParseException("couldn't load '" + magicURL + "'");
                 }
 
+                event.source = magicURL;
                 parser.parse(magicURL);
             } catch (SAXParseException e) {
                 // ignore
@@ -135,10 +147,52 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
                 throw new MagicParseException("parse error occurred - " + e.getMessage());
             }
 
+            addBuiltInDetectors();
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.rules = matchers.size();
+                event.commit();
+            }
+
             initialized = true;
         }
     }
 
+    /**
+     * put the built-in detectors in front of the rules of the magic file, they look further into
+     * container formats than a rule can and would otherwise be shadowed by the generic rules
+     */
+    private void addBuiltInDetectors() {
+        List<MagicMatcher> builtIn = new ArrayList<MagicMatcher>();
+
+        for (String[] detector : BUILT_IN_DETECTORS) {
+            MagicMatch m = new MagicMatch();
+            m.setType("detector");
+            m.setComparator("=");
+            m.setTest(ByteBuffer.wrap(detector[0].getBytes()));
+            m.setDescription(detector[1]);
+            m.setExtension(detector[2]);
+            m.setStrength(Integer.parseInt(detector[3]));
+
+            MagicMatcher mm = new MagicMatcher();
+            mm.setMatch(m);
+
+            // the bytes the formats start with, so the detectors are not tried on anything else
+            String[] first = detector[4].split(" ");
+            int[] bytes = new int[first.length];
+
+            for (int i = 0; i < first.length; i++) {
+                bytes[i] = Integer.decode(first[i]);
+            }
+
+            mm.setFirstBytes(bytes);
+            builtIn.add(mm);
+        }
+
+        matchers.addAll(0, builtIn);
+    }
+
     /**
      * DOCUMENT ME!
      *
@@ -148,6 +202,15 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
         return matchers;
     }
 
+    /**
+     * get the root matchers as a list, for index based iteration on the detection path
+     *
+     * @return the root matchers in document order
+     */
+    List<MagicMatcher> getMatcherList() {
+        return matchers;
+    }
+
     /**
      * DOCUMENT ME!
      *
@@ -251,17 +314,21 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
                     String attrValue = attributes.getValue(i);
 
                     if (attrLocalName.equals("offset")) {
-                        if (!attrValue.equals("")) {
+                        if (attrValue.startsWith("&") || attrValue.startsWith("(")) {
+                            // resolved when the rule is tested, see MagicOffset
+                            match.setOffsetExpression(attrValue);
+                        } else if (!attrValue.equals("")) {
                             match.setOffset(Integer.parseInt(attrValue));
                             // log.debug("startElement():   setting offset to '" + attrValue + "'");
                         }
-                    } else if (attrLocalName.equals("length")) {
+                    } else if (attrLocalName.equals("length") || attrLocalName.equals("range")) {
+                        // the range of a search is the length it is restricted to
                         if (!attrValue.equals("")) {
                             match.setLength(Integer.parseInt(attrValue));
                             // log.debug("startElement():   setting length to '" + attrValue + "'");
                         }
                     } else if (attrLocalName.equals("type")) {
-                        match.setType(attrValue);
+                        match.setType(attrValue.intern());
                         // log.debug("startElement():   setting type to '" + attrValue + "'");
                     } else if (attrLocalName.equals("bitmask")) {
                         if (!attrValue.equals("")) {
@@ -271,6 +338,11 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
                     } else if (attrLocalName.equals("comparator")) {
                         match.setComparator(attrValue);
                         // log.debug("startElement():   setting comparator to '" + attrValue + "'");
+                    } else if (attrLocalName.equals("strength")) {
+                        // +n or -n, like !:strength in libmagic
+                        if (!attrValue.equals("")) {
+                            match.setStrength(Integer.parseInt(attrValue.trim()));
+                        }
                     }
                 }
             } else if (localName.equals("property")) {
@@ -333,15 +405,15 @@ public class MagicParser extends DefaultHandler implements ContentHandler, Error
         // determine which tag these chars are for and save them
         if (isMimeType) {
             isMimeType = false;
-            match.setMimeType(finalValue);
+            match.setMimeType(finalValue.intern());
             // log.debug("characters(): setting mimetype to '" + finalValue + "'");
         } else if (isExtension) {
             isExtension = false;
-            match.setExtension(finalValue);
+            match.setExtension(finalValue.intern());
             // log.debug("characters(): setting extension to '" + finalValue + "'");
         } else if (isDescription) {
             isDescription = false;
-            match.setDescription(finalValue);
+            match.setDescription(finalValue.intern());
             // log.debug("characters(): setting description to '" + finalValue + "'");
         } else if (isTest) {
             isTest = false;
@@ -0,0 +1,194 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An immutable detection result. Unlike {@link MagicMatch} it does not copy the rule that matched,
+ * it refers to the shared rule metadata and only adds what the detection itself produced.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public final class MagicResult {
+    private final MagicMatcher matcher;
+    private final String mimeType;
+    private final Map<String, String> properties;
+    private final List<MagicResult> subResults;
+
+    /**
+     * constructor
+     *
+     * @param matcher    the rule that matched
+     * @param mimeType   the mime type, which differs from the rule's for detector rules
+     * @param properties the read-only properties, which a detector may have added to
+     * @param subResults the submatches that matched, or null
+     */
+    MagicResult(MagicMatcher matcher, String mimeType, Map<String, String> properties, List<MagicResult> subResults) {
+        this.matcher = matcher;
+        this.mimeType = mimeType;
+        this.properties = properties;
+        this.subResults = (subResults == null) ? Collections.<MagicResult>emptyList()
+                : Collections.unmodifiableList(subResults);
+    }
+
+    /**
+     * get the matcher that produced this result
+     *
+     * @return the matcher
+     */
+    MagicMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * get the rule that matched
+     *
+     * @return the shared, read-only rule
+     */
+    public MagicRule getRule() {
+        return matcher.getRule();
+    }
+
+    /**
+     * get the mime type for this result
+     *
+     * @return the mime type
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * get the description of the rule that matched
+     *
+     * @return the description
+     */
+    public String getDescription() {
+        return matcher.getMatch().getDescription();
+    }
+
+    /**
+     * get the extension of the rule that matched
+     *
+     * @return the extension
+     */
+    public String getExtension() {
+        return matcher.getMatch().getExtension();
+    }
+
+    /**
+     * get the strength of this result, which ranks it against other rules that match the same
+     * input: the strength of the test of the rule, plus a unit for each level of submatches that
+     * matched below it
+     *
+     * @return the strength, at least 1
+     * @see Magic#getMagicResults(byte[], int, boolean)
+     */
+    public int getStrength() {
+        return matcher.getStrength() + (MagicMatcher.STRENGTH_UNIT * depth());
+    }
+
+    private int depth() {
+        int depth = 0;
+
+        for (int i = 0; i < subResults.size(); i++) {
+            depth = Math.max(depth, subResults.get(i).depth() + 1);
+        }
+
+        return depth;
+    }
+
+    /**
+     * get the properties of the rule that matched, together with parameters reported by a
+     * detector, such as the charset of text
+     *
+     * @return a read-only map of properties, never null
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * get the submatches that matched
+     *
+     * @return a read-only list of results
+     */
+    public List<MagicResult> getSubResults() {
+        return subResults;
+    }
+
+    /**
+     * determine if this result or any subresult has the description
+     *
+     * @param desc the description
+     * @return whether or not the description matches
+     */
+    public boolean descriptionMatches(String desc) {
+        String description = getDescription();
+
+        if ((description != null) && description.equals(desc)) {
+            return true;
+        }
+
+        for (int i = 0; i < subResults.size(); i++) {
+            if (subResults.get(i).descriptionMatches(desc)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * determine if this result or any subresult has the mime type
+     *
+     * @param type the mime type
+     * @return whether or not the mime type matches
+     */
+    public boolean mimeTypeMatches(String type) {
+        if ((mimeType != null) && mimeType.equals(type)) {
+            return true;
+        }
+
+        for (int i = 0; i < subResults.size(); i++) {
+            if (subResults.get(i).mimeTypeMatches(type)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * convert this result to a standalone MagicMatch, as returned by the original API
+     *
+     * @return a new MagicMatch tree
+     */
+    public MagicMatch toMagicMatch() {
+        MagicMatch match = matcher.getMatch().copy();
+        match.setMimeType(mimeType);
+
+        if (properties != matcher.getProperties()) {
+            match.setProperties(new HashMap<String, String>(properties));
+        }
+
+        for (int i = 0; i < subResults.size(); i++) {
+            match.addSubMatch(subResults.get(i).toMagicMatch());
+        }
+
+        return match;
+    }
+
+    public String toString() {
+        return mimeType + " (" + getDescription() + ")";
+    }
+}
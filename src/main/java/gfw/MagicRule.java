@@ -0,0 +1,194 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A read-only node of the rule graph loaded from magic.xml. Rules are created once when the
+ * rules are loaded and shared by every caller, so they can be handed out without copying.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public final class MagicRule {
+    private final String mimeType;
+    private final String extension;
+    private final String description;
+    private final String type;
+    private final int offset;
+    private final String offsetExpression;
+    private final int length;
+    private final long bitmask;
+    private final char comparator;
+    private final ByteBuffer test;
+    private final Map<String, String> properties;
+    private final List<MagicRule> children;
+
+    /**
+     * create a snapshot of a matcher and its submatchers
+     *
+     * @param matcher the matcher
+     */
+    MagicRule(MagicMatcher matcher) {
+        MagicMatch match = matcher.getMatch();
+
+        this.mimeType = match.getMimeType();
+        this.extension = match.getExtension();
+        this.description = match.getDescription();
+        this.type = match.getType();
+        this.offset = match.getOffset();
+        this.offsetExpression = match.getOffsetExpression();
+        this.length = match.getLength();
+        this.bitmask = match.getBitmask();
+        this.comparator = match.getComparator();
+
+        byte[] t = (match.getTest() != null) ? match.getTest().array().clone() : new byte[0];
+        this.test = ByteBuffer.wrap(t).asReadOnlyBuffer();
+
+        this.properties = (match.getProperties() != null)
+                ? Collections.unmodifiableMap(new HashMap<String, String>(match.getProperties()))
+                : Collections.<String, String>emptyMap();
+
+        List<MagicRule> c = new ArrayList<MagicRule>(matcher.getSubMatchers().size());
+
+        for (MagicMatcher subMatcher : matcher.getSubMatchers()) {
+            c.add(subMatcher.getRule());
+        }
+
+        this.children = Collections.unmodifiableList(c);
+    }
+
+    /**
+     * get the mime type of this rule
+     *
+     * @return the mime type
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * get the extension of this rule
+     *
+     * @return the extension
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * get the description of this rule
+     *
+     * @return the description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * get the type of test, for example string, belong, regex or detector
+     *
+     * @return the test type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * get the offset in the stream the test is applied at
+     *
+     * @return the offset
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * get the indirect or relative offset, which is worked out for each detection
+     *
+     * @return the offset expression, or null if the offset is fixed
+     */
+    public String getOffsetExpression() {
+        return offsetExpression;
+    }
+
+    /**
+     * get the length the comparison is restricted to
+     *
+     * @return the length, 0 if unrestricted
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * get the bitmask applied before numeric comparisons
+     *
+     * @return the bitmask
+     */
+    public long getBitmask() {
+        return bitmask;
+    }
+
+    /**
+     * get the comparator of the test
+     *
+     * @return one of =, !, &gt; or &lt;
+     */
+    public char getComparator() {
+        return comparator;
+    }
+
+    /**
+     * get the test value
+     *
+     * @return a read-only buffer positioned at the start of the test value
+     */
+    public ByteBuffer getTest() {
+        return test.duplicate();
+    }
+
+    /**
+     * get the test value as a string, for printing
+     *
+     * @return the test value
+     */
+    public String getTestString() {
+        byte[] b = new byte[test.capacity()];
+        test.duplicate().get(b);
+
+        return new String(b);
+    }
+
+    /**
+     * get the properties of this rule
+     *
+     * @return a read-only map of properties, never null
+     */
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * get the rules that are evaluated when this rule matches
+     *
+     * @return a read-only list of rules
+     */
+    public List<MagicRule> getChildren() {
+        return children;
+    }
+
+    public String toString() {
+        return description + " (" + type + " at " + ((offsetExpression != null) ? offsetExpression : offset) + ")";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+/**
+ * The outcome of checking data against a claimed mime type
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class MagicVerification {
+    private final String claimedMimeType;
+    private final boolean verified;
+    private final MagicMatch match;
+
+    /**
+     * constructor
+     *
+     * @param claimedMimeType the mime type that was claimed
+     * @param verified        whether or not the claim holds
+     * @param match           the matching rule, or the detected match when the claim does not hold
+     */
+    MagicVerification(String claimedMimeType, boolean verified, MagicMatch match) {
+        this.claimedMimeType = claimedMimeType;
+        this.verified = verified;
+        this.match = match;
+    }
+
+    /**
+     * get the mime type that was claimed for the data
+     *
+     * @return the claimed mime type
+     */
+    public String getClaimedMimeType() {
+        return claimedMimeType;
+    }
+
+    /**
+     * whether or not the data matches a rule for the claimed mime type
+     *
+     * @return true if the claim holds
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * get the match backing this verification. When the claim holds this is the rule that
+     * confirmed it. Otherwise it is the result of a full detection, which is only run when the
+     * caller asked for the actual type, and is null if that was not requested or nothing matched.
+     *
+     * @return the match, or null
+     */
+    public MagicMatch getMatch() {
+        return match;
+    }
+}
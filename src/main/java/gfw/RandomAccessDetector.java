@@ -0,0 +1,37 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.io.IOException;
+import java.util.Map;
+
+
+/**
+ * A detector that reads only the parts of the input it needs. The engine hands it the input of
+ * the detection, sharing the header already read and the open file, instead of copying the
+ * rest of the input into an array for {@link MagicDetector#process(byte[], int, int, long, char, String, Map)}.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public interface RandomAccessDetector extends MagicDetector {
+    /**
+     * process the input and return all matching content types
+     *
+     * @param input      the whole input of the detection
+     * @param offset     the offset of the rule in the input
+     * @param length     DOCUMENT ME!
+     * @param bitmask    DOCUMENT ME!
+     * @param comparator DOCUMENT ME!
+     * @param mimeType   DOCUMENT ME!
+     * @param params     DOCUMENT ME!
+     * @return the matching content types, or null
+     * @throws IOException if the input cannot be read
+     */
+    String[] process(MagicInput input, int offset, int length, long bitmask, char comparator,
+                     String mimeType, Map<String, String> params)
+            throws IOException;
+}
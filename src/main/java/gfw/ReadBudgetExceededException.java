@@ -0,0 +1,31 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.io.IOException;
+
+
+/**
+ * Thrown by a detection context when a read would take the detection over its read budget. The
+ * rule doing the read is skipped, so this never leaves the engine. It is thrown where the rule
+ * gives up rather than being a real error, so neither a stack trace nor a message is built.
+ *
+ * @author $Author$
+ * @version $Revision$
+ * @see Magic#setReadBudget(long, int)
+ */
+final class ReadBudgetExceededException extends IOException {
+    /**
+     * Create exception
+     */
+    ReadBudgetExceededException() {
+        super("read budget exceeded");
+    }
+
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Flight recorder event for loading the rules from magic.xml
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+@Name("gfw.RuleLoad")
+@Label("Mime Rule Load")
+@Category("Mime Magic")
+@Description("Parsing of the magic rule file")
+final class RuleLoadEvent extends Event {
+    @Label("Source")
+    String source;
+
+    @Label("Root Rules")
+    int rules;
+}
@@ -0,0 +1,121 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * The root matchers indexed by the first byte of the input. Most root rules test a literal at
+ * offset 0 and the built-in detectors declare the bytes their formats start with, so for any
+ * given first byte only a fraction of them can match, and content no rule matches is turned
+ * down after testing just those plus the rules that do not care about the first byte. Each list
+ * keeps the order of the rules, so the first match is the same as when every rule is tried. A
+ * second set of lists holds the same matchers strongest first, for ranking all matches.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class RulePrefilter {
+    // the candidates for each first byte, and at EMPTY those for empty input
+    private static final int EMPTY = 256;
+    // by the strongest result a matcher can produce, the earlier rule first among equals
+    private static final Comparator<MagicMatcher> BY_MAX_STRENGTH = new Comparator<MagicMatcher>() {
+        public int compare(MagicMatcher a, MagicMatcher b) {
+            int c = Integer.compare(b.getMaxStrength(), a.getMaxStrength());
+
+            return (c != 0) ? c : Integer.compare(a.getIndex(), b.getIndex());
+        }
+    };
+    private final MagicMatcher[][] candidates = new MagicMatcher[EMPTY + 1][];
+    private final MagicMatcher[][] strongest = new MagicMatcher[EMPTY + 1][];
+
+    /**
+     * constructor
+     *
+     * @param matchers the root matchers in the order they are evaluated
+     */
+    RulePrefilter(List<MagicMatcher> matchers) {
+        List<List<MagicMatcher>> lists = new ArrayList<List<MagicMatcher>>(candidates.length);
+
+        for (int i = 0; i < candidates.length; i++) {
+            lists.add(new ArrayList<MagicMatcher>());
+        }
+
+        for (int i = 0; i < matchers.size(); i++) {
+            MagicMatcher matcher = matchers.get(i);
+            int[] first = matcher.getFirstBytes();
+
+            if (first != null) {
+                for (int j = 0; j < first.length; j++) {
+                    lists.get(first[j]).add(matcher);
+                }
+            } else {
+                for (int j = 0; j < lists.size(); j++) {
+                    lists.get(j).add(matcher);
+                }
+            }
+        }
+
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = lists.get(i).toArray(new MagicMatcher[lists.get(i).size()]);
+            strongest[i] = candidates[i].clone();
+            Arrays.sort(strongest[i], BY_MAX_STRENGTH);
+        }
+    }
+
+    /**
+     * get the matchers that can match input starting with a byte
+     *
+     * @param firstByte the first byte of the input, or -1 for empty input
+     * @return the matchers in the order they are evaluated, shared and not to be modified
+     */
+    MagicMatcher[] candidates(int firstByte) {
+        return candidates[(firstByte >= 0) ? firstByte : EMPTY];
+    }
+
+    /**
+     * get the matchers that can match input starting with a byte, the ones that can produce the
+     * strongest results first
+     *
+     * @param firstByte the first byte of the input, or -1 for empty input
+     * @return the matchers, shared and not to be modified
+     */
+    MagicMatcher[] strongestCandidates(int firstByte) {
+        return strongest[(firstByte >= 0) ? firstByte : EMPTY];
+    }
+
+    /**
+     * whether a matcher can match input with a first byte and length
+     *
+     * @param matcher   the matcher
+     * @param firstByte the first byte of the input, or -1 for empty input
+     * @param length    the length of the input
+     * @return false if the matcher cannot match
+     */
+    static boolean admits(MagicMatcher matcher, int firstByte, long length) {
+        if (matcher.getMinLength() > length) {
+            return false;
+        }
+
+        int[] first = matcher.getFirstBytes();
+
+        if (first == null) {
+            return true;
+        }
+
+        for (int i = 0; i < first.length; i++) {
+            if (first[i] == firstByte) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.util.Arrays;
+
+
+/**
+ * The portable implementation of the byte kernels
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class ScalarByteKernels extends ByteKernels {
+    public String getName() {
+        return "scalar";
+    }
+
+    public int mismatch(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        return Arrays.mismatch(a, aOffset, aOffset + length, b, bOffset, bOffset + length);
+    }
+
+    public int skipPlainText(byte[] b, int from, int to) {
+        int i = from;
+
+        while (i < to) {
+            int c = b[i];
+
+            if (((c < 0x20) || (c > 0x7e)) && (c != '\t') && (c != '\n') && (c != '\r')) {
+                break;
+            }
+
+            i++;
+        }
+
+        return i;
+    }
+}
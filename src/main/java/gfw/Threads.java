@@ -0,0 +1,56 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Thread helpers for the long running modes. Jars built on JDK 21 or later replace this class with
+ * the version in src/java21/java, which needs no reflection and names its virtual threads.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class Threads {
+    private Threads() {
+    }
+
+    /**
+     * create an executor that starts a thread per task. On a runtime with virtual threads those
+     * are used, otherwise daemon platform threads.
+     *
+     * @param name the prefix for the names of platform threads
+     * @return the executor
+     */
+    static ExecutorService newThreadPerTaskExecutor(final String name) {
+        try {
+            // looked up at runtime, the library is still built for runtimes without virtual threads
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            // no virtual threads
+        } catch (IllegalAccessException e) {
+            // no virtual threads
+        } catch (InvocationTargetException e) {
+            // virtual threads are a disabled preview feature
+        }
+
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+}
@@ -0,0 +1,197 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.detectors;
+
+import gfw.MagicInput;
+import gfw.RandomAccessDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+
+/**
+ * Base class for detectors that parse a container format with a few positional reads. The
+ * array and file entry points of {@link gfw.MagicDetector} are served by the same
+ * {@link #process(MagicInput, int, int, long, char, String, Map)}, which the engine calls directly.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public abstract class AbstractRandomAccessDetector implements RandomAccessDetector {
+    /**
+     * process data that starts at the offset of the rule
+     *
+     * @param data       DOCUMENT ME!
+     * @param offset     DOCUMENT ME!
+     * @param length     DOCUMENT ME!
+     * @param bitmask    DOCUMENT ME!
+     * @param comparator DOCUMENT ME!
+     * @param mimeType   DOCUMENT ME!
+     * @param params     DOCUMENT ME!
+     * @return DOCUMENT ME!
+     */
+    public String[] process(byte[] data, int offset, int length, long bitmask, char comparator,
+                            String mimeType, Map<String, String> params) {
+        try {
+            return process(new ArrayInput(data), 0, length, bitmask, comparator, mimeType, params);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param file       DOCUMENT ME!
+     * @param offset     DOCUMENT ME!
+     * @param length     DOCUMENT ME!
+     * @param bitmask    DOCUMENT ME!
+     * @param comparator DOCUMENT ME!
+     * @param mimeType   DOCUMENT ME!
+     * @param params     DOCUMENT ME!
+     * @return DOCUMENT ME!
+     */
+    public String[] process(File file, int offset, int length, long bitmask, char comparator,
+                            String mimeType, Map<String, String> params) {
+        FileInput input = null;
+
+        try {
+            input = new FileInput(file);
+
+            return process(input, offset, length, bitmask, comparator, mimeType, params);
+        } catch (IOException e) {
+            // log.error(getName() + ": error", e);
+            return null;
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * read exactly len bytes at a position
+     *
+     * @param input    the input
+     * @param position the position
+     * @param b        the buffer, filled from its start
+     * @param len      the number of bytes
+     * @return false if the input ends first
+     * @throws IOException if the input cannot be read
+     */
+    protected static boolean read(MagicInput input, long position, byte[] b, int len)
+            throws IOException {
+        return read(input, position, b, 0, len);
+    }
+
+    /**
+     * read exactly len bytes at a position into a part of a buffer
+     *
+     * @param input    the input
+     * @param position the position
+     * @param b        the buffer
+     * @param off      the offset in the buffer
+     * @param len      the number of bytes
+     * @return false if the input ends first
+     * @throws IOException if the input cannot be read
+     */
+    protected static boolean read(MagicInput input, long position, byte[] b, int off, int len)
+            throws IOException {
+        return (position >= 0) && (input.read(position, b, off, len) == len);
+    }
+
+    protected static int le16(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    protected static long le32(byte[] b, int off) {
+        return (le16(b, off) | ((long) le16(b, off + 2) << 16)) & 0xffffffffL;
+    }
+
+    protected static long le64(byte[] b, int off) {
+        return le32(b, off) | (le32(b, off + 4) << 32);
+    }
+
+    protected static int be16(byte[] b, int off) {
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    protected static long be32(byte[] b, int off) {
+        return (((long) be16(b, off) << 16) | be16(b, off + 2)) & 0xffffffffL;
+    }
+
+    /**
+     * an input over an array
+     */
+    private static final class ArrayInput implements MagicInput {
+        private final byte[] data;
+
+        ArrayInput(byte[] data) {
+            this.data = data;
+        }
+
+        public long length() {
+            return data.length;
+        }
+
+        public int read(long position, byte[] b, int off, int len) {
+            int n = (int) Math.max(Math.min(len, data.length - position), 0);
+
+            if (n > 0) {
+                System.arraycopy(data, (int) position, b, off, n);
+            }
+
+            return n;
+        }
+
+        public byte[] buffer(int size) {
+            return new byte[size];
+        }
+    }
+
+    /**
+     * an input over a file opened by the detector itself
+     */
+    private static final class FileInput implements MagicInput {
+        private final RandomAccessFile file;
+        private final long length;
+
+        FileInput(File f)
+                throws IOException {
+            this.file = new RandomAccessFile(f, "r");
+            this.length = file.length();
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public int read(long position, byte[] b, int off, int len)
+                throws IOException {
+            int n = (int) Math.max(Math.min(len, length - position), 0);
+
+            if (n > 0) {
+                file.seek(position);
+                file.readFully(b, off, n);
+            }
+
+            return n;
+        }
+
+        public byte[] buffer(int size) {
+            return new byte[size];
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
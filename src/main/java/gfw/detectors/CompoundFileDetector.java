@@ -0,0 +1,301 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.detectors;
+
+import gfw.MagicInput;
+
+import java.io.IOException;
+import java.util.Map;
+
+
+/**
+ * Tells legacy Office files apart by the streams of their OLE2 compound file. The 512 byte
+ * header locates the first sector of the directory, the FAT is read one sector at a time only to
+ * follow the chain of the directory, and the top level entries below the root storage are looked
+ * up by name: WordDocument for Word, Workbook or Book for Excel and PowerPoint Document for
+ * PowerPoint. At most {@link #DIRECTORY_SECTORS} sectors of the directory are read.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class CompoundFileDetector extends AbstractRandomAccessDetector {
+    // private static Log log = LogFactory.getLog(CompoundFileDetector.class);
+
+    /**
+     * the most sectors of the directory read
+     */
+    public static final int DIRECTORY_SECTORS = 16;
+
+    private static final byte[] SIGNATURE = {
+            (byte) 0xd0, (byte) 0xcf, (byte) 0x11, (byte) 0xe0, (byte) 0xa1, (byte) 0xb1, (byte) 0x1a, (byte) 0xe1
+    };
+    private static final int HEADER_SIZE = 512;
+    // sector ids at or above this are markers such as the end of a chain
+    private static final long MAX_SECTOR = 0xfffffffaL;
+    private static final long NO_STREAM = 0xffffffffL;
+    // the FAT sectors listed in the header, more are listed in the DIFAT chain
+    private static final int HEADER_DIFAT = 109;
+    private static final int ENTRY_SIZE = 128;
+    private static final int ROOT = 5;
+
+    // stream names, and the types they stand for
+    private static final String[] STREAMS = {"WordDocument", "Workbook", "Book", "PowerPoint Document"};
+    private static final String[][] TYPES = {
+            {"application/msword"}, {"application/vnd.ms-excel"}, {"application/vnd.ms-excel"},
+            {"application/vnd.ms-powerpoint"}
+    };
+
+    /**
+     * Creates a new CompoundFileDetector object.
+     */
+    public CompoundFileDetector() {
+        super();
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getDisplayName() {
+        return "OLE2 Compound File Detector";
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getVersion() {
+        return "0.1";
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String[] getHandledExtensions() {
+        return new String[]{"doc", "dot", "xls", "xlt", "ppt", "pot", "pps"};
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String[] getHandledTypes() {
+        return new String[]{"application/msword", "application/vnd.ms-excel", "application/vnd.ms-powerpoint"};
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getName() {
+        return "compoundfiledetector";
+    }
+
+    /**
+     * detect the Office application that wrote a compound file starting at the offset
+     *
+     * @param input      DOCUMENT ME!
+     * @param offset     the offset of the compound file in the input
+     * @param length     DOCUMENT ME!
+     * @param bitmask    DOCUMENT ME!
+     * @param comparator DOCUMENT ME!
+     * @param mimeType   DOCUMENT ME!
+     * @param params     DOCUMENT ME!
+     * @return the type, or null if there is no compound file at the offset or it holds none of the
+     *         known streams
+     * @throws IOException if the input cannot be read
+     */
+    public String[] process(MagicInput input, int offset, int length, long bitmask, char comparator,
+                            String mimeType, Map<String, String> params)
+            throws IOException {
+        // the signature is checked in a small buffer before the header is taken
+        byte[] signature = input.buffer(SIGNATURE.length);
+
+        if (!read(input, offset, signature, SIGNATURE.length)) {
+            return null;
+        }
+
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (signature[i] != SIGNATURE[i]) {
+                return null;
+            }
+        }
+
+        byte[] header = input.buffer(HEADER_SIZE);
+
+        if (!read(input, offset, header, HEADER_SIZE) || (le16(header, 0x1c) != 0xfffe)) {
+            return null;
+        }
+
+        int shift = le16(header, 0x1e);
+
+        if ((shift != 9) && (shift != 12)) {
+            return null;
+        }
+
+        int sectorSize = 1 << shift;
+        byte[] directory = input.buffer(DIRECTORY_SECTORS * sectorSize);
+        byte[] fat = input.buffer(sectorSize);
+        long fatSector = -1;
+        long sector = le32(header, 0x30);
+        int sectors = 0;
+
+        // read the directory up to the budget, following its chain through the FAT
+        while ((sector < MAX_SECTOR) && (sectors < DIRECTORY_SECTORS)) {
+            if (!read(input, position(offset, sector, shift), directory, sectors * sectorSize, sectorSize)) {
+                break;
+            }
+
+            sectors++;
+
+            long index = sector / (sectorSize / 4);
+
+            if (index != fatSector) {
+                long s = fatSector(input, offset, header, shift, index, fat);
+
+                if ((s >= MAX_SECTOR) || !read(input, position(offset, s, shift), fat, 0, sectorSize)) {
+                    break;
+                }
+
+                fatSector = index;
+            }
+
+            sector = le32(fat, (int) ((sector % (sectorSize / 4)) * 4));
+        }
+
+        int entries = (sectors * sectorSize) / ENTRY_SIZE;
+
+        if ((entries == 0) || ((directory[0x42] & 0xff) != ROOT)) {
+            return null;
+        }
+
+        int found = find(directory, entries, le32(directory, 0x4c));
+
+        return (found >= 0) ? TYPES[found] : null;
+    }
+
+    /**
+     * look for the known streams among the siblings of an entry, which form a red-black tree
+     *
+     * @param directory the directory entries read
+     * @param entries   the number of entries read
+     * @param first     the id of the first child of the root
+     * @return the index in STREAMS of the first known stream found, or -1
+     */
+    private static int find(byte[] directory, int entries, long first) {
+        int[] stack = new int[entries];
+        int top = 0;
+        int best = -1;
+        int visited = 0;
+
+        if (first < entries) {
+            stack[top++] = (int) first;
+        }
+
+        // visiting no more entries than there are protects against cycles
+        while ((top > 0) && (visited++ < entries)) {
+            int e = stack[--top] * ENTRY_SIZE;
+            int name = name(directory, e);
+
+            if ((name >= 0) && ((best < 0) || (name < best))) {
+                best = name;
+            }
+
+            for (int sibling = 0x44; sibling <= 0x48; sibling += 4) {
+                long id = le32(directory, e + sibling);
+
+                if ((id != NO_STREAM) && (id < entries) && (top < stack.length)) {
+                    stack[top++] = (int) id;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * match the name of a directory entry, stored as UTF-16LE with a terminating NUL
+     *
+     * @param directory the directory entries
+     * @param e         the offset of the entry
+     * @return the index in STREAMS, or -1
+     */
+    private static int name(byte[] directory, int e) {
+        int chars = (le16(directory, e + 0x40) / 2) - 1;
+
+        for (int i = 0; i < STREAMS.length; i++) {
+            String s = STREAMS[i];
+
+            if (s.length() != chars) {
+                continue;
+            }
+
+            int j = 0;
+
+            while ((j < chars) && (directory[e + (2 * j)] == s.charAt(j)) && (directory[e + (2 * j) + 1] == 0)) {
+                j++;
+            }
+
+            if (j == chars) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * look up the sector holding a part of the FAT, in the header or in the DIFAT chain
+     *
+     * @param input  the input
+     * @param base   the start of the compound file
+     * @param header the header
+     * @param shift  the sector shift
+     * @param index  the index of the part of the FAT
+     * @param b      a buffer of at least 4 bytes for the DIFAT entries, overwritten
+     * @return the sector, or a marker if there is none
+     * @throws IOException if the input cannot be read
+     */
+    private static long fatSector(MagicInput input, long base, byte[] header, int shift, long index, byte[] b)
+            throws IOException {
+        if (index < HEADER_DIFAT) {
+            return le32(header, 0x4c + (int) (index * 4));
+        }
+
+        // each DIFAT sector lists a sector's worth of FAT sectors less the link to the next
+        int perSector = (1 << shift) / 4 - 1;
+        long difat = le32(header, 0x44);
+        long remaining = Math.min(le32(header, 0x48), DIRECTORY_SECTORS);
+
+        index -= HEADER_DIFAT;
+
+        while ((difat < MAX_SECTOR) && (remaining-- > 0)) {
+            long position = position(base, difat, shift);
+
+            if (index < perSector) {
+                return read(input, position + (index * 4), b, 0, 4) ? le32(b, 0) : NO_STREAM;
+            }
+
+            if (!read(input, position + (perSector * 4L), b, 0, 4)) {
+                break;
+            }
+
+            difat = le32(b, 0);
+            index -= perSector;
+        }
+
+        return NO_STREAM;
+    }
+
+    private static long position(long base, long sector, int shift) {
+        return base + ((sector + 1) << shift);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.detectors;
+
+import gfw.MagicInput;
+
+import java.io.IOException;
+import java.util.Map;
+
+
+/**
+ * Finds MPEG audio frames behind any number of ID3v2 tags. The size of each tag is read from
+ * its header, so embedded artwork of any size is skipped with a single seek, and the first frame
+ * is only accepted when the frame headers that follow it, found by computing the frame lengths,
+ * agree with it. Each header costs one positional read of four bytes, and the padding some
+ * writers leave after a tag is searched for the first frame within {@link #SYNC_WINDOW} bytes.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class MpegAudioDetector extends AbstractRandomAccessDetector {
+    // private static Log log = LogFactory.getLog(MpegAudioDetector.class);
+
+    /**
+     * the number of bytes after the ID3v2 tags searched for the first frame
+     */
+    public static final int SYNC_WINDOW = 4096;
+
+    /**
+     * the number of consecutive frame headers that must agree
+     */
+    public static final int FRAMES = 3;
+
+    private static final int ID3_HEADER = 10;
+    private static final int MAX_TAGS = 4;
+
+    // bitrates in kbit/s by version and layer, then index
+    private static final int[][] BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    private static final String[] MP3 = {"audio/mp3"};
+    private static final String[] MPEG = {"audio/mpeg"};
+
+    /**
+     * Creates a new MpegAudioDetector object.
+     */
+    public MpegAudioDetector() {
+        super();
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getDisplayName() {
+        return "MPEG Audio Detector";
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getVersion() {
+        return "0.1";
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String[] getHandledExtensions() {
+        return new String[]{"mp3", "mp2", "mpga"};
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String[] getHandledTypes() {
+        return new String[]{MP3[0], MPEG[0]};
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getName() {
+        return "mpegaudiodetector";
+    }
+
+    /**
+     * detect MPEG audio starting at the offset
+     *
+     * @param input      DOCUMENT ME!
+     * @param offset     the offset of the audio in the input
+     * @param length     DOCUMENT ME!
+     * @param bitmask    DOCUMENT ME!
+     * @param comparator DOCUMENT ME!
+     * @param mimeType   DOCUMENT ME!
+     * @param params     DOCUMENT ME!
+     * @return audio/mp3 for layer III, audio/mpeg for the other layers, or null
+     * @throws IOException if the input cannot be read
+     */
+    public String[] process(MagicInput input, int offset, int length, long bitmask, char comparator,
+                            String mimeType, Map<String, String> params)
+            throws IOException {
+        byte[] b = input.buffer(ID3_HEADER);
+        long position = offset;
+        int tags = 0;
+
+        if (!read(input, position, b, 4)) {
+            return null;
+        }
+
+        // skip the tags, a header holds the size of the rest of the tag as a 28 bit syncsafe integer
+        while ((b[0] == 'I') && (b[1] == 'D') && (b[2] == '3') && (tags < MAX_TAGS)) {
+            if (!read(input, position, b, ID3_HEADER) || ((b[6] | b[7] | b[8] | b[9]) < 0)) {
+                return null;
+            }
+
+            long size = ((b[6] & 0x7fL) << 21) | ((b[7] & 0x7fL) << 14) | ((b[8] & 0x7fL) << 7) | (b[9] & 0x7fL);
+            // a footer repeats the header at the end
+            position += ID3_HEADER + size + (((b[5] & 0x10) != 0) ? ID3_HEADER : 0);
+            tags++;
+
+            if (!read(input, position, b, 4)) {
+                return null;
+            }
+        }
+
+        if (tags == 0) {
+            // without a tag the audio has to start right at the offset
+            int header = header(b, 0);
+
+            return frames(input, position, header, b) ? type(header) : null;
+        }
+
+        int n = (int) Math.min(SYNC_WINDOW, Math.max(input.length() - position, 0));
+        byte[] window = input.buffer(n);
+
+        if (!read(input, position, window, n)) {
+            return null;
+        }
+
+        for (int i = 0; i < (n - 3); i++) {
+            if ((window[i] == (byte) 0xff) && ((window[i + 1] & 0xe0) == 0xe0)) {
+                int header = header(window, i);
+
+                if (frames(input, position + i, header, b)) {
+                    return type(header);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * check that a frame header is followed by frame headers that agree with it
+     *
+     * @param input    the input
+     * @param position the position of the first frame
+     * @param header   the first frame header
+     * @param b        a buffer of at least 4 bytes for the following headers
+     * @return if the frames check out
+     * @throws IOException if the input cannot be read
+     */
+    private static boolean frames(MagicInput input, long position, int header, byte[] b)
+            throws IOException {
+        int h = header;
+
+        for (int i = 0; i < FRAMES; i++) {
+            int frameLength = frameLength(h);
+
+            if ((frameLength <= 0) || ((h & 0xfffe0c00) != (header & 0xfffe0c00))) {
+                return false;
+            }
+
+            position += frameLength;
+
+            if (i == (FRAMES - 1)) {
+                break;
+            }
+
+            // a short file may end with the second frame
+            if (position == input.length()) {
+                return i > 0;
+            }
+
+            if (!read(input, position, b, 4)) {
+                return false;
+            }
+
+            h = header(b, 0);
+        }
+
+        return true;
+    }
+
+    /**
+     * compute the length of a frame from its header
+     *
+     * @param h the header
+     * @return the length in bytes, or -1 if the header is not valid
+     */
+    static int frameLength(int h) {
+        int version = (h >>> 19) & 3;
+        int layer = (h >>> 17) & 3;
+        int bitrateIndex = (h >>> 12) & 15;
+        int sampleRateIndex = (h >>> 10) & 3;
+        int padding = (h >>> 9) & 1;
+
+        if (((h >>> 21) != 0x7ff) || (version == 1) || (layer == 0) || (bitrateIndex == 0) || (bitrateIndex == 15)
+                || (sampleRateIndex == 3) || ((h & 3) == 2)) {
+            return -1;
+        }
+
+        boolean mpeg1 = version == 3;
+        // 3 is layer I, 1 is layer III
+        int table = mpeg1 ? (3 - layer) : ((layer == 3) ? 3 : 4);
+        int bitrate = BITRATES[table][bitrateIndex] * 1000;
+        // MPEG 2 halves the sample rate and MPEG 2.5 quarters it
+        int sampleRate = SAMPLE_RATES[sampleRateIndex] >> (mpeg1 ? 0 : ((version == 2) ? 1 : 2));
+
+        if (layer == 3) {
+            return (((12 * bitrate) / sampleRate) + padding) * 4;
+        }
+
+        return (((((layer == 1) && !mpeg1) ? 72 : 144) * bitrate) / sampleRate) + padding;
+    }
+
+    private static int header(byte[] b, int off) {
+        return (int) be32(b, off);
+    }
+
+    private static String[] type(int header) {
+        return (((header >>> 17) & 3) == 1) ? MP3 : MPEG;
+    }
+}
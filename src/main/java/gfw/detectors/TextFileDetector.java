@@ -4,26 +4,87 @@ Copyright (C) 2003-2017 David Castro
 */
 package gfw.detectors;
 
-import gfw.MagicDetector;
-import org.apache.commons.io.ByteOrderMark;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.BOMInputStream;
+import gfw.ByteKernels;
+import gfw.MagicInput;
+import gfw.RandomAccessDetector;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 
 /**
- * DOCUMENT ME!
+ * Tells text from binary data in a single pass over the first bytes of the data. Byte order
+ * marks are recognized, and otherwise the bytes are checked with a UTF-8 state machine and
+ * counts of control, NUL and high bytes, without decoding anything. The same pass picks the
+ * likely charset, US-ASCII, UTF-8, UTF-16LE, UTF-16BE, ISO-8859-1 or windows-1252, which the
+ * result carries as the charset property. Data that cannot be 8 bit text is checked for UTF-16
+ * code units in either byte order before it is called binary. Nothing is allocated when processing a byte array,
+ * which matters because this detector runs for every file no other rule matches. The engine
+ * reads only the window, however large the file.
  *
  * @author $Author$
  * @version $Revision$
  */
-public class TextFileDetector implements MagicDetector {
+public class TextFileDetector implements RandomAccessDetector {
     // private static Log log = LogFactory.getLog(TextFileDetector.class);
 
+    /**
+     * the number of bytes looked at
+     */
+    public static final int WINDOW = 8192;
+
+    // byte classes
+    private static final byte PRINTABLE = 0;
+    private static final byte CONTROL = 1;
+    private static final byte NUL = 2;
+    private static final byte C1 = 3;
+    private static final byte C1_UNDEFINED = 4;
+    private static final byte HIGH = 5;
+    private static final byte[] CLASSES = new byte[256];
+    private static final ByteKernels KERNELS = ByteKernels.getInstance();
+    // the fewest bytes UTF-16 without a byte order mark or NUL pattern is recognized in, and the
+    // fewest in which valid code units alone are enough
+    private static final int MIN_UTF16 = 16;
+    private static final int VALID_UTF16 = 128;
+
+    // encodings found by classify()
+    static final int BINARY = -1;
+    static final int US_ASCII = 0;
+    static final int UTF_8 = 1;
+    static final int UTF_16LE = 2;
+    static final int UTF_16BE = 3;
+    static final int ISO_8859_1 = 4;
+    static final int WINDOWS_1252 = 5;
+
+    // shared results by encoding, processing must not allocate
+    private static final String[][] TEXT = {
+            {"text/plain; charset=US-ASCII"},
+            {"text/plain; charset=UTF-8"},
+            {"text/plain; charset=UTF-16LE"},
+            {"text/plain; charset=UTF-16BE"},
+            {"text/plain; charset=ISO-8859-1"},
+            {"text/plain; charset=windows-1252"}
+    };
+
+    static {
+        for (int c = 0; c < 256; c++) {
+            if (c == 0) {
+                CLASSES[c] = NUL;
+            } else if ((c < 0x20) || (c == 0x7f)) {
+                // BEL, BS, HT, LF, VT, FF, CR and ESC show up in text
+                CLASSES[c] = (((c >= 0x07) && (c <= 0x0d)) || (c == 0x1b)) ? PRINTABLE : CONTROL;
+            } else if (c < 0x80) {
+                CLASSES[c] = PRINTABLE;
+            } else if (c < 0xa0) {
+                // these are printable in windows-1252, except for the five it leaves undefined
+                CLASSES[c] = ((c == 0x81) || (c == 0x8d) || (c == 0x8f) || (c == 0x90) || (c == 0x9d))
+                        ? C1_UNDEFINED : C1;
+            } else {
+                CLASSES[c] = HIGH;
+            }
+        }
+    }
+
     /**
      * Creates a new TextFileDetector object.
      */
@@ -46,7 +107,7 @@ public class TextFileDetector implements MagicDetector {
      * @return DOCUMENT ME!
      */
     public String getVersion() {
-        return "0.1";
+        return "0.2";
     }
 
     /**
@@ -77,73 +138,340 @@ public class TextFileDetector implements MagicDetector {
     }
 
     /**
-     * DOCUMENT ME!
+     * classify the data as text or binary. The returned array is shared and must not be modified.
      *
-     * @param data       DOCUMENT ME!
+     * @param data       the data, starting at the offset of the rule
      * @param offset     DOCUMENT ME!
      * @param length     DOCUMENT ME!
      * @param bitmask    DOCUMENT ME!
      * @param comparator DOCUMENT ME!
      * @param mimeType   DOCUMENT ME!
      * @param params     DOCUMENT ME!
-     * @return DOCUMENT ME!
+     * @return text/plain with the likely charset as parameter, or null for binary data
      */
     public String[] process(byte[] data, int offset, int length, long bitmask, char comparator,
                             String mimeType, Map<String, String> params) {
         // log.debug("processing stream data");
 
-        BOMInputStream bomIn = null;
-        try {
-            bomIn = new BOMInputStream(new ByteArrayInputStream(data), ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE);
-            if (bomIn.hasBOM()) {
-                return new String[]{"text/plain"};
-            }
-        } catch (IOException e) {
-            // log.error("TextFileDetector: error detecting byte order mark");
-        } finally {
-            IOUtils.closeQuietly(bomIn);
-        }
-
-        String s = new String(data, StandardCharsets.UTF_8);
-
-        if (!Pattern.matches("/[^[:ascii:][:space:]]/", s)) {
-            return new String[]{"text/plain"};
-        }
-
-        return null;
+        return result(classify(data, 0, Math.min(data.length, WINDOW), data.length > WINDOW));
     }
 
     /**
-     * DOCUMENT ME!
+     * classify the start of a file as text or binary
      *
      * @param file       DOCUMENT ME!
-     * @param offset     DOCUMENT ME!
+     * @param offset     the offset to start at
      * @param length     DOCUMENT ME!
      * @param bitmask    DOCUMENT ME!
      * @param comparator DOCUMENT ME!
      * @param mimeType   DOCUMENT ME!
      * @param params     DOCUMENT ME!
-     * @return DOCUMENT ME!
+     * @return text/plain with the likely charset as parameter, or null for binary data
      */
     public String[] process(File file, int offset, int length, long bitmask, char comparator,
                             String mimeType, Map<String, String> params) {
         // log.debug("processing file data");
 
-        BufferedInputStream is = null;
+        RandomAccessFile f = null;
+
         try {
-            is = new BufferedInputStream(new FileInputStream(file));
+            f = new RandomAccessFile(file, "r");
+
+            long available = f.length() - offset;
 
-            byte[] b = new byte[length];
-            int n = is.read(b, offset, length);
-            if (n > 0) {
-                return process(b, offset, length, bitmask, comparator, mimeType, params);
+            if (available <= 0) {
+                return null;
             }
+
+            byte[] b = new byte[(int) Math.min(available, WINDOW)];
+            f.seek(offset);
+            f.readFully(b);
+
+            return result(classify(b, 0, b.length, available > WINDOW));
         } catch (IOException e) {
             // log.error("TextFileDetector: error", e);
         } finally {
-            IOUtils.closeQuietly(is);
+            if (f != null) {
+                try {
+                    f.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
         }
 
         return null;
     }
+
+    /**
+     * classify the window at the offset of the rule as text or binary
+     *
+     * @param input      the whole input of the detection
+     * @param offset     the offset to start at
+     * @param length     DOCUMENT ME!
+     * @param bitmask    DOCUMENT ME!
+     * @param comparator DOCUMENT ME!
+     * @param mimeType   DOCUMENT ME!
+     * @param params     DOCUMENT ME!
+     * @return text/plain with the likely charset as parameter, or null for binary data
+     * @throws IOException if the input cannot be read
+     */
+    public String[] process(MagicInput input, int offset, int length, long bitmask, char comparator,
+                            String mimeType, Map<String, String> params)
+            throws IOException {
+        long available = input.length() - offset;
+
+        if (available <= 0) {
+            return null;
+        }
+
+        int n = (int) Math.min(available, WINDOW);
+        byte[] b = input.buffer(n);
+
+        if (input.read(offset, b, 0, n) < n) {
+            return null;
+        }
+
+        return result(classify(b, 0, n, available > WINDOW));
+    }
+
+    private static String[] result(int encoding) {
+        return (encoding != BINARY) ? TEXT[encoding] : null;
+    }
+
+    /**
+     * classify a window of bytes
+     *
+     * @param b         the bytes
+     * @param start     the start of the window
+     * @param end       the end of the window
+     * @param truncated whether the data goes on after the window
+     * @return one of the encodings, or BINARY
+     */
+    static int classify(byte[] b, int start, int end, boolean truncated) {
+        int n = end - start;
+
+        // byte order marks
+        if ((n >= 3) && ((b[start] & 0xff) == 0xef) && ((b[start + 1] & 0xff) == 0xbb)
+                && ((b[start + 2] & 0xff) == 0xbf)) {
+            return UTF_8;
+        }
+
+        if ((n >= 2) && ((b[start] & 0xff) == 0xff) && ((b[start + 1] & 0xff) == 0xfe)) {
+            return UTF_16LE;
+        }
+
+        if ((n >= 2) && ((b[start] & 0xff) == 0xfe) && ((b[start + 1] & 0xff) == 0xff)) {
+            return UTF_16BE;
+        }
+
+        int evenNul = 0;
+        int oddNul = 0;
+        int c1 = 0;
+        int c1Undefined = 0;
+        int high = 0;
+        boolean utf8 = true;
+        // continuation bytes still expected and the range the next one must fall in, which rules
+        // out overlong forms, surrogates and code points past U+10FFFF
+        int need = 0;
+        int lo = 0x80;
+        int hi = 0xbf;
+
+        for (int i = start; i < end; i++) {
+            if ((need == 0) || !utf8) {
+                // plain text changes none of the counts, so runs of it are skipped in bulk
+                i = KERNELS.skipPlainText(b, i, end);
+
+                if (i == end) {
+                    break;
+                }
+            }
+
+            int c = b[i] & 0xff;
+
+            switch (CLASSES[c]) {
+                case PRINTABLE:
+                    break;
+
+                case CONTROL:
+                    // not 8 bit text whatever else follows
+                    return utf16(b, start, end, truncated);
+
+                case NUL:
+                    if (((i - start) & 1) == 0) {
+                        evenNul++;
+                    } else {
+                        oddNul++;
+                    }
+
+                    break;
+
+                case C1:
+                    c1++;
+                    high++;
+                    break;
+
+                case C1_UNDEFINED:
+                    c1Undefined++;
+                    high++;
+                    break;
+
+                default:
+                    high++;
+            }
+
+            if (!utf8) {
+                continue;
+            }
+
+            if (need > 0) {
+                if ((c < lo) || (c > hi)) {
+                    utf8 = false;
+                } else {
+                    need--;
+                    lo = 0x80;
+                    hi = 0xbf;
+                }
+            } else if (c >= 0x80) {
+                if ((c >= 0xc2) && (c <= 0xdf)) {
+                    need = 1;
+                } else if (c == 0xe0) {
+                    need = 2;
+                    lo = 0xa0;
+                } else if (c == 0xed) {
+                    need = 2;
+                    hi = 0x9f;
+                } else if ((c >= 0xe1) && (c <= 0xef)) {
+                    need = 2;
+                } else if (c == 0xf0) {
+                    need = 3;
+                    lo = 0x90;
+                } else if (c == 0xf4) {
+                    need = 3;
+                    hi = 0x8f;
+                } else if ((c >= 0xf1) && (c <= 0xf3)) {
+                    need = 3;
+                } else {
+                    utf8 = false;
+                }
+            }
+        }
+
+        int nul = evenNul + oddNul;
+
+        if (nul > 0) {
+            // UTF-16 without a byte order mark: mostly Latin text has a NUL in every other byte
+            int units = n / 2;
+
+            if (units > 0) {
+                if (((oddNul * 4) >= (units * 3)) && ((evenNul * 16) < units)) {
+                    return UTF_16LE;
+                }
+
+                if (((evenNul * 4) >= (units * 3)) && ((oddNul * 16) < units)) {
+                    return UTF_16BE;
+                }
+            }
+
+            return utf16(b, start, end, truncated);
+        }
+
+        if (high == 0) {
+            return US_ASCII;
+        }
+
+        // a sequence cut off by the end of the window is fine, one cut off by the end of the data is not
+        if (utf8 && ((need == 0) || truncated)) {
+            return UTF_8;
+        }
+
+        if ((c1 + c1Undefined) == 0) {
+            return ISO_8859_1;
+        }
+
+        return (c1Undefined == 0) ? WINDOWS_1252 : utf16(b, start, end, truncated);
+    }
+
+    /**
+     * classify a window that is not 8 bit text as UTF-16 without a byte order mark, or binary.
+     * Every code unit must be a text character or half of a surrogate pair in the byte order.
+     * When both orders qualify, the one whose high bytes repeat from unit to unit wins, since the
+     * characters of a script share their high byte. In short windows a quarter of the units must
+     * repeat the high byte, as random bytes are too often valid code units.
+     *
+     * @param b         the bytes
+     * @param start     the start of the window
+     * @param end       the end of the window
+     * @param truncated whether the data goes on after the window
+     * @return UTF_16LE, UTF_16BE or BINARY
+     */
+    private static int utf16(byte[] b, int start, int end, boolean truncated) {
+        int n = end - start;
+
+        if ((n < MIN_UTF16) || (((n & 1) != 0) && !truncated)) {
+            return BINARY;
+        }
+
+        end = start + (n & ~1);
+
+        int le = utf16Repeats(b, start, end, truncated, true);
+        int be = utf16Repeats(b, start, end, truncated, false);
+
+        int repeats = Math.max(le, be);
+
+        if ((repeats < 0) || ((n < VALID_UTF16) && ((repeats * 4) < (n / 2)))) {
+            return BINARY;
+        }
+
+        return (le >= be) ? UTF_16LE : UTF_16BE;
+    }
+
+    /**
+     * check the code units of a window in one byte order
+     *
+     * @param b            the bytes
+     * @param start        the start of the window
+     * @param end          the end of the window, an even number of bytes after the start
+     * @param truncated    whether the data goes on after the window
+     * @param littleEndian the byte order
+     * @return the number of units with the same high byte as the unit before, or -1 if a unit is not text
+     */
+    private static int utf16Repeats(byte[] b, int start, int end, boolean truncated, boolean littleEndian) {
+        int low = littleEndian ? 0 : 1;
+        int repeats = 0;
+        int previous = -1;
+        // a high surrogate waits for its low surrogate
+        boolean pair = false;
+
+        for (int i = start; i < end; i += 2) {
+            int high = b[(i + 1) - low] & 0xff;
+            int u = (high << 8) | (b[i + low] & 0xff);
+
+            if (pair) {
+                if ((u < 0xdc00) || (u > 0xdfff)) {
+                    return -1;
+                }
+
+                pair = false;
+            } else if ((u >= 0xd800) && (u <= 0xdbff)) {
+                pair = true;
+            } else if (u < 0x100) {
+                // the same control and C1 bytes that rule out 8 bit text
+                if ((CLASSES[u] != PRINTABLE) && (CLASSES[u] != HIGH)) {
+                    return -1;
+                }
+            } else if ((u >= 0xdc00) && ((u < 0xf900) || (u > 0xfffd))) {
+                // lone low surrogates, private use and noncharacters
+                return -1;
+            }
+
+            if (high == previous) {
+                repeats++;
+            }
+
+            previous = high;
+        }
+
+        return (pair && !truncated) ? -1 : repeats;
+    }
 }
@@ -0,0 +1,366 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.detectors;
+
+import gfw.MagicInput;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+
+/**
+ * Tells Office Open XML and OpenDocument files from other ZIP archives by looking at the names in
+ * the central directory, which is found through the end of central directory record at the end
+ * of the archive. OpenDocument files store their mime type uncompressed as the first entry, which
+ * is read from the first local header without looking any further. At most
+ * {@link #DIRECTORY_BUDGET} bytes of the central directory are read, and nothing is decompressed.
+ * Other archives are not claimed, so the magic rules for JAR and other ZIP based formats and for
+ * plain ZIP archives still get to match them.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class ZipDetector extends AbstractRandomAccessDetector {
+    // private static Log log = LogFactory.getLog(ZipDetector.class);
+
+    /**
+     * the most bytes of the central directory read before giving up on finding the known entries
+     */
+    public static final int DIRECTORY_BUDGET = 65536;
+
+    // record signatures
+    private static final long LOCAL_HEADER = 0x04034b50L;
+    private static final long CENTRAL_HEADER = 0x02014b50L;
+    private static final long END = 0x06054b50L;
+    private static final long ZIP64_END = 0x06064b50L;
+    private static final long ZIP64_LOCATOR = 0x07064b50L;
+
+    // fixed record sizes
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    // the end record is followed by a comment of up to 65535 bytes, but usually by none
+    private static final int END_SEARCH = 1024;
+    private static final int MAX_END_SEARCH = END_SIZE + 65535;
+    private static final int CHUNK = 4096;
+    // no entry name that matters is longer
+    private static final int NAME_PREFIX = 32;
+    private static final int MAX_MIMETYPE = 128;
+
+    private static final byte[] MIMETYPE = ascii("mimetype");
+    private static final byte[] CONTENT_TYPES = ascii("[Content_Types].xml");
+    private static final byte[] WORD = ascii("word/");
+    private static final byte[] XL = ascii("xl/");
+    private static final byte[] PPT = ascii("ppt/");
+
+    private static final String[] DOCX = {"application/vnd.openxmlformats-officedocument.wordprocessingml.document"};
+    private static final String[] XLSX = {"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"};
+    private static final String[] PPTX = {"application/vnd.openxmlformats-officedocument.presentationml.presentation"};
+
+    /**
+     * Creates a new ZipDetector object.
+     */
+    public ZipDetector() {
+        super();
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getDisplayName() {
+        return "ZIP Detector";
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getVersion() {
+        return "0.1";
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String[] getHandledExtensions() {
+        return new String[]{"docx", "docm", "xlsx", "xlsm", "pptx", "pptm", "odt", "ods", "odp", "odg", "epub"};
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String[] getHandledTypes() {
+        return new String[]{DOCX[0], XLSX[0], PPTX[0], "application/vnd.oasis.opendocument.text",
+                "application/vnd.oasis.opendocument.spreadsheet", "application/vnd.oasis.opendocument.presentation",
+                "application/vnd.oasis.opendocument.graphics", "application/epub+zip"};
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @return DOCUMENT ME!
+     */
+    public String getName() {
+        return "zipdetector";
+    }
+
+    /**
+     * detect the kind of ZIP archive starting at the offset
+     *
+     * @param input      DOCUMENT ME!
+     * @param offset     the offset of the archive in the input
+     * @param length     DOCUMENT ME!
+     * @param bitmask    DOCUMENT ME!
+     * @param comparator DOCUMENT ME!
+     * @param mimeType   DOCUMENT ME!
+     * @param params     DOCUMENT ME!
+     * @return the type of the archive, or null if there is no ZIP archive at the offset or it is
+     *         not one of the types told apart here
+     * @throws IOException if the input cannot be read
+     */
+    public String[] process(MagicInput input, int offset, int length, long bitmask, char comparator,
+                            String mimeType, Map<String, String> params)
+            throws IOException {
+        // the engine tries this detector on all input starting with a P, so the signature is
+        // checked in a small buffer before the chunk is taken
+        byte[] s = input.buffer(4);
+
+        if (!read(input, offset, s, 4)) {
+            return null;
+        }
+
+        long signature = le32(s, 0);
+
+        if ((signature != LOCAL_HEADER) && (signature != END)) {
+            return null;
+        }
+
+        byte[] b = input.buffer(CHUNK);
+
+        if (!read(input, offset, b, LOCAL_HEADER_SIZE)) {
+            return null;
+        }
+
+        if (signature == LOCAL_HEADER) {
+            String[] types = firstEntry(input, offset, b);
+
+            if (types != null) {
+                return types;
+            }
+        }
+
+        return centralDirectory(input, offset, b);
+    }
+
+    /**
+     * read the mime type of an OpenDocument file, stored as the first entry
+     *
+     * @param input  the input
+     * @param base   the start of the archive
+     * @param b      a buffer holding the first local header
+     * @return the mime type, or null if the first entry does not hold one
+     * @throws IOException if the input cannot be read
+     */
+    private static String[] firstEntry(MagicInput input, long base, byte[] b)
+            throws IOException {
+        int method = le16(b, 8);
+        long size = le32(b, 18);
+        int nameLength = le16(b, 26);
+        int extraLength = le16(b, 28);
+
+        if ((method != 0) || (size == 0) || (size > MAX_MIMETYPE) || (nameLength != MIMETYPE.length)
+                || (le32(b, 22) != size)) {
+            return null;
+        }
+
+        long data = base + LOCAL_HEADER_SIZE + nameLength + extraLength;
+
+        if (!read(input, base + LOCAL_HEADER_SIZE, b, nameLength) || !startsWith(b, 0, nameLength, MIMETYPE)
+                || !read(input, data, b, (int) size)) {
+            return null;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if ((b[i] <= ' ') || (b[i] >= 0x7f)) {
+                return null;
+            }
+        }
+
+        String type = new String(b, 0, (int) size, StandardCharsets.US_ASCII);
+
+        return (type.indexOf('/') > 0) ? new String[]{type} : null;
+    }
+
+    /**
+     * look for the entries that tell Office Open XML files apart in the central directory
+     *
+     * @param input the input
+     * @param base  the start of the archive
+     * @param b     a buffer of CHUNK bytes
+     * @return the type, or null if nothing more specific than a ZIP archive was found
+     * @throws IOException if the input cannot be read
+     */
+    private static String[] centralDirectory(MagicInput input, long base, byte[] b)
+            throws IOException {
+        long end = findEnd(input, base, b);
+
+        if (end < 0) {
+            return null;
+        }
+
+        long size = le32(b, 12);
+        long start = le32(b, 16);
+
+        if ((size == 0xffffffffL) || (start == 0xffffffffL)) {
+            // ZIP64: the locator just before the end record points at the real one
+            if (((end - ZIP64_LOCATOR_SIZE) < base) || !read(input, end - ZIP64_LOCATOR_SIZE, b, ZIP64_LOCATOR_SIZE)
+                    || (le32(b, 0) != ZIP64_LOCATOR)) {
+                return null;
+            }
+
+            long zip64End = base + le64(b, 8);
+
+            if (!read(input, zip64End, b, ZIP64_END_SIZE) || (le32(b, 0) != ZIP64_END)) {
+                return null;
+            }
+
+            size = le64(b, 40);
+            start = le64(b, 48);
+        }
+
+        long position = base + start;
+        long limit = position + Math.min(size, DIRECTORY_BUDGET);
+        // the window of the directory held in b
+        long window = -1;
+        int windowLength = 0;
+        boolean contentTypes = false;
+        String[] part = null;
+
+        while ((position + CENTRAL_HEADER_SIZE) <= limit) {
+            if ((position < window) || ((position + CENTRAL_HEADER_SIZE + NAME_PREFIX) > (window + windowLength))) {
+                window = position;
+                windowLength = input.read(position, b, 0, (int) Math.min(CHUNK, limit - position));
+
+                if (windowLength < CENTRAL_HEADER_SIZE) {
+                    break;
+                }
+            }
+
+            int i = (int) (position - window);
+
+            if (le32(b, i) != CENTRAL_HEADER) {
+                break;
+            }
+
+            int nameLength = le16(b, i + 28);
+            int name = i + CENTRAL_HEADER_SIZE;
+            int available = Math.min(nameLength, windowLength - name);
+
+            if (startsWith(b, name, available, CONTENT_TYPES) && (nameLength == CONTENT_TYPES.length)) {
+                contentTypes = true;
+            } else if (part == null) {
+                if (startsWith(b, name, available, WORD)) {
+                    part = DOCX;
+                } else if (startsWith(b, name, available, XL)) {
+                    part = XLSX;
+                } else if (startsWith(b, name, available, PPT)) {
+                    part = PPTX;
+                }
+            }
+
+            if (contentTypes && (part != null)) {
+                return part;
+            }
+
+            position += CENTRAL_HEADER_SIZE + nameLength + le16(b, i + 30) + le16(b, i + 32);
+        }
+
+        return null;
+    }
+
+    /**
+     * find the end of central directory record, looking at the last kilobyte first
+     *
+     * @param input the input
+     * @param base  the start of the archive
+     * @param b     a buffer of CHUNK bytes, which holds the record on return
+     * @return the position of the record, or -1
+     * @throws IOException if the input cannot be read
+     */
+    private static long findEnd(MagicInput input, long base, byte[] b)
+            throws IOException {
+        long length = input.length() - base;
+
+        if (length < END_SIZE) {
+            return -1;
+        }
+
+        byte[] tail = b;
+        int n = (int) Math.min(length, END_SEARCH);
+        long from = input.length() - n;
+        input.read(from, tail, 0, n);
+        int i = findEnd(tail, n);
+
+        if ((i < 0) && (length > END_SEARCH)) {
+            // a long archive comment
+            n = (int) Math.min(length, MAX_END_SEARCH);
+            tail = input.buffer(n);
+            from = input.length() - n;
+            input.read(from, tail, 0, n);
+            i = findEnd(tail, n);
+        }
+
+        if (i < 0) {
+            return -1;
+        }
+
+        if (tail != b) {
+            System.arraycopy(tail, i, b, 0, END_SIZE);
+        } else if (i > 0) {
+            System.arraycopy(b, i, b, 0, END_SIZE);
+        }
+
+        return from + i;
+    }
+
+    private static int findEnd(byte[] b, int n) {
+        for (int i = n - END_SIZE; i >= 0; i--) {
+            // the comment must fit in what follows, some writers append data after it
+            if ((b[i] == 'P') && (le32(b, i) == END) && ((i + END_SIZE + le16(b, i + 20)) <= n)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] b, int off, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (b[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
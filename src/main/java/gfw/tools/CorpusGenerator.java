@@ -0,0 +1,1000 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.tools;
+
+
+import gfw.MagicMatch;
+import gfw.MagicMatcher;
+import gfw.MagicParseException;
+import gfw.MagicParser;
+import gfw.UnsupportedTypeException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Generates a synthetic corpus from the parsed rules. For every root rule and every submatcher it
+ * builds the smallest data that satisfies the rule and all of its parents, plus near-miss
+ * variants in which the rule itself no longer holds. Offsets relative to the parent match and
+ * indirect offsets read from an absolute position are resolved, with the pointer written into
+ * the sample; rules with other offset expressions are reported as unsupported. Every sample is
+ * checked against the rules with in-memory detection before it is kept, and the output only
+ * depends on the rules, the seed and the requested sizes.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class CorpusGenerator {
+    /**
+     * a sample that satisfies every rule on its path
+     */
+    public static final String HIT = "hit";
+    /**
+     * a hit with the first byte tested by the last rule of the path flipped
+     */
+    public static final String FLIPPED = "flipped";
+    /**
+     * a hit cut short inside the window tested by the last rule of the path
+     */
+    public static final String TRUNCATED = "truncated";
+
+    // the offset expressions samples can be built for: &n, and (n) or (n.t+m) with a type of
+    // b, B, s, h, S, H, l or L
+    private static final Pattern RELATIVE = Pattern.compile("&\\s*([+-]?(?:0x[0-9a-fA-F]+|\\d+))");
+    private static final Pattern INDIRECT = Pattern.compile(
+            "\\(\\s*(0x[0-9a-fA-F]+|\\d+)(?:\\.([bBsShHlL]))?\\s*(?:([+-])\\s*(0x[0-9a-fA-F]+|\\d+))?\\s*\\)");
+
+    private final List<MagicMatcher> roots;
+    private final long seed;
+    private final List<String> unsupported = new ArrayList<String>();
+
+    /**
+     * constructor
+     *
+     * @param matchers the root matchers, normally MagicParser.getMatchers()
+     * @param seed     the seed for the padding bytes
+     */
+    public CorpusGenerator(Collection<MagicMatcher> matchers, long seed) {
+        this.roots = new ArrayList<MagicMatcher>(matchers);
+        this.seed = seed;
+    }
+
+    /**
+     * generate the samples for every rule path
+     *
+     * @param size the size to pad the samples to, 0 for the smallest possible samples
+     * @return the samples, in rule order
+     */
+    public List<Sample> generate(int size) {
+        List<Sample> samples = new ArrayList<Sample>();
+        unsupported.clear();
+
+        for (int i = 0; i < roots.size(); i++) {
+            List<MagicMatcher> path = new ArrayList<MagicMatcher>();
+            path.add(roots.get(i));
+            walk(path, "r" + i, size, samples);
+        }
+
+        return samples;
+    }
+
+    /**
+     * get the rule paths the last call to generate() could not build samples for
+     *
+     * @return the names and descriptions of the paths
+     */
+    public List<String> getUnsupported() {
+        return unsupported;
+    }
+
+    private void walk(List<MagicMatcher> path, String name, int size, List<Sample> samples) {
+        Layout layout = new Layout();
+        Sample hit = build(path, name, size, layout);
+
+        if (hit == null) {
+            unsupported.add(name + "\t" + describe(path));
+        } else {
+            samples.add(hit);
+            addNearMisses(path, hit, layout.last, samples);
+        }
+
+        List<MagicMatcher> subMatchers = new ArrayList<MagicMatcher>(path.get(path.size() - 1).getSubMatchers());
+
+        for (int i = 0; i < subMatchers.size(); i++) {
+            path.add(subMatchers.get(i));
+            walk(path, name + "." + i, size, samples);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    /**
+     * build the data satisfying every rule on a path
+     */
+    private Sample build(List<MagicMatcher> path, String name, int size, Layout layout) {
+        for (int i = 0; i < path.size(); i++) {
+            if (!place(path.subList(0, i + 1), layout)) {
+                return null;
+            }
+        }
+
+        // in-memory data needs one byte past the last tested window
+        int minimal = layout.end + 1;
+        Random random = new Random(seed ^ name.hashCode());
+        byte[] data = layout.toArray(Math.max(minimal, size), layout.text, random);
+
+        if (!matchesAll(path, data)) {
+            // padding can break rules that look at the rest of the data, fall back to minimal
+            if (data.length == minimal) {
+                return null;
+            }
+
+            data = layout.toArray(minimal, layout.text, random);
+
+            if (!matchesAll(path, data)) {
+                return null;
+            }
+        }
+
+        return new Sample(name, HIT, path, data, detect(data));
+    }
+
+    /**
+     * add the variants of a hit in which the parents of the last rule still hold and it does not
+     *
+     * @param offset the offset the last rule was placed at
+     */
+    private void addNearMisses(List<MagicMatcher> path, Sample hit, int offset, List<Sample> samples) {
+        MagicMatch target = path.get(path.size() - 1).getMatch();
+        List<MagicMatcher> parents = path.subList(0, path.size() - 1);
+
+        if (offset < hit.data.length) {
+            byte[] flipped = hit.data.clone();
+            flipped[offset] = (byte) ~flipped[offset];
+
+            if (matchesAll(parents, flipped) && !matchesAll(path, flipped)) {
+                samples.add(new Sample(hit.name, FLIPPED, path, flipped, detect(flipped)));
+            }
+        }
+
+        int end = offset + Math.max(windowLength(target), 1) - 1;
+
+        if ((end > 0) && (end < hit.data.length)) {
+            byte[] truncated = Arrays.copyOf(hit.data, end);
+
+            if (matchesAll(parents, truncated) && !matchesAll(path, truncated)) {
+                samples.add(new Sample(hit.name, TRUNCATED, path, truncated, detect(truncated)));
+            }
+        }
+    }
+
+    /**
+     * work out where the rule goes, writing the pointer of an indirect offset into the layout
+     *
+     * @return the offset, or -1 if the offset expression is not supported
+     */
+    private static int resolve(MagicMatch match, Layout layout) {
+        String expression = match.getOffsetExpression();
+
+        if (expression == null) {
+            return match.getOffset();
+        }
+
+        expression = expression.trim();
+
+        Matcher m = RELATIVE.matcher(expression);
+
+        if (m.matches()) {
+            // the end of the parent is unknown after a regex or detector
+            int offset = (layout.parentEnd >= 0) ? (layout.parentEnd + Integer.decode(m.group(1))) : -1;
+
+            return Math.max(offset, -1);
+        }
+
+        m = INDIRECT.matcher(expression);
+
+        if (!m.matches()) {
+            return -1;
+        }
+
+        int base = Integer.decode(m.group(1));
+        char type = (m.group(2) != null) ? m.group(2).charAt(0) : 'l';
+        int width = ((type == 'b') || (type == 'B')) ? 1 : ((type == 'l') || (type == 'L')) ? 4 : 2;
+        boolean bigEndian = (type == 'S') || (type == 'H') || (type == 'L');
+        int adjustment = (m.group(4) != null) ? Integer.decode(m.group(4)) : 0;
+
+        if ("-".equals(m.group(3))) {
+            adjustment = -adjustment;
+        }
+
+        // the rule goes past everything placed so far and the pointer, which points at it
+        int offset = Math.max(layout.end, base + width);
+        long value = (long) offset - adjustment;
+
+        if ((value < 0) || (value >= (1L << (8 * width)))) {
+            return -1;
+        }
+
+        byte[] pointer = new byte[width];
+
+        for (int i = 0; i < width; i++) {
+            int shift = 8 * (bigEndian ? (width - 1 - i) : i);
+            pointer[i] = (byte) (value >>> shift);
+        }
+
+        if (!layout.fits(base, pointer)) {
+            return -1;
+        }
+
+        layout.put(base, pointer);
+
+        return offset;
+    }
+
+    /**
+     * find bytes for the last rule of a path that fit with what the parents already placed
+     */
+    private boolean place(List<MagicMatcher> path, Layout layout) {
+        MagicMatch match = path.get(path.size() - 1).getMatch();
+        String type = match.getType();
+        int offset = resolve(match, layout);
+
+        if (offset < 0) {
+            return false;
+        }
+
+        layout.last = offset;
+
+        if (type.equals("regex") || type.equals("detector")) {
+            // these look at the rest of the data, so nothing may be placed after them
+            if (layout.end > offset) {
+                return false;
+            }
+
+            List<byte[]> candidates = new ArrayList<byte[]>();
+
+            if (type.equals("regex")) {
+                String sample = new RegexSampler(new String(match.getTest().array())).sample();
+
+                if (sample != null) {
+                    candidates.add(sample.getBytes());
+                }
+            } else {
+                candidates.add("synthetic corpus sample\n".getBytes(StandardCharsets.US_ASCII));
+                candidates.add(new byte[]{0, 1, 2, 3, 4, 5, 6, 7});
+                layout.text = true;
+            }
+
+            for (byte[] candidate : candidates) {
+                Layout attempt = layout.copy();
+                attempt.put(offset, candidate);
+                // a match of these has no fixed end
+                attempt.parentEnd = -1;
+
+                if (matchesAll(path, attempt.toArray(attempt.end + 1, layout.text, null))) {
+                    layout.set(attempt);
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        for (byte[] candidate : fixedCandidates(match)) {
+            if (layout.fits(offset, candidate)) {
+                Layout attempt = layout.copy();
+                attempt.put(offset, candidate);
+
+                // shorts and longs are read from a wider window than they compare
+                attempt.reserve(offset + windowLength(match));
+                attempt.parentEnd = offset + candidate.length;
+
+                if (matchesAll(path, attempt.toArray(attempt.end + 1, false, null))) {
+                    layout.set(attempt);
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * candidate values for the fixed size rules, the comparator decides which one holds
+     */
+    private static List<byte[]> fixedCandidates(MagicMatch match) {
+        List<byte[]> candidates = new ArrayList<byte[]>();
+        String type = match.getType();
+        byte[] test = match.getTest().array();
+
+        // a search finds its literal right at the offset as well
+        if (type.equals("string") || type.equals("search")) {
+            if (test.length == 0) {
+                return candidates;
+            }
+
+            candidates.add(test);
+
+            for (int delta : new int[]{1, -1, 0x80}) {
+                byte[] t = test.clone();
+                t[0] = (byte) (t[0] + delta);
+                candidates.add(t);
+            }
+
+            return candidates;
+        }
+
+        long value;
+
+        try {
+            value = Long.decode(new String(test));
+        } catch (NumberFormatException e) {
+            return candidates;
+        }
+
+        int width = type.equals("byte") ? 1 : type.endsWith("short") ? 2 : 4;
+        boolean littleEndian = type.startsWith("le");
+
+        for (long v : new long[]{value, value + 1, value - 1, ~value, 0, -1}) {
+            byte[] b = new byte[width];
+
+            for (int i = 0; i < width; i++) {
+                int shift = 8 * (littleEndian ? i : (width - 1 - i));
+                b[i] = (byte) (v >>> shift);
+            }
+
+            candidates.add(b);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * the number of bytes the engine reads for a fixed size rule
+     */
+    private static int windowLength(MagicMatch match) {
+        String type = match.getType();
+
+        if (type.equals("byte")) {
+            return 1;
+        } else if (type.endsWith("short")) {
+            return 4;
+        } else if (type.endsWith("long")) {
+            return 8;
+        } else if (type.equals("string") || type.equals("search")) {
+            return match.getTest().capacity();
+        }
+
+        return 0;
+    }
+
+    /**
+     * whether every rule on a path holds, each evaluated below its parent so that relative
+     * offsets resolve the way detection resolves them
+     */
+    private static boolean matchesAll(List<MagicMatcher> path, byte[] data) {
+        if (path.isEmpty()) {
+            return true;
+        }
+
+        MagicMatch match;
+
+        try {
+            match = path.get(0).test(data, path.size() == 1);
+        } catch (IOException e) {
+            return false;
+        } catch (UnsupportedTypeException e) {
+            return false;
+        }
+
+        for (int i = 1; (match != null) && (i < path.size()); i++) {
+            MagicMatch rule = path.get(i).getMatch();
+            MagicMatch found = null;
+
+            for (MagicMatch sub : match.getSubMatches()) {
+                if (same(sub, rule)) {
+                    found = sub;
+
+                    break;
+                }
+            }
+
+            match = found;
+        }
+
+        return match != null;
+    }
+
+    /**
+     * whether a result comes from a rule; results carry a copy of the rule
+     */
+    private static boolean same(MagicMatch result, MagicMatch rule) {
+        return equal(result.getDescription(), rule.getDescription()) && equal(result.getType(), rule.getType())
+                && (result.getOffset() == rule.getOffset())
+                && equal(result.getOffsetExpression(), rule.getOffsetExpression())
+                && equal(result.getTest(), rule.getTest());
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * what in-memory detection reports for the data with the current rules
+     */
+    private String detect(byte[] data) {
+        for (MagicMatcher root : roots) {
+            try {
+                MagicMatch match = root.test(data, true);
+
+                if (match != null) {
+                    return match.getMimeType();
+                }
+            } catch (IOException e) {
+                // treat as no match
+            } catch (UnsupportedTypeException e) {
+                // treat as no match
+            }
+        }
+
+        return "-";
+    }
+
+    private static String describe(List<MagicMatcher> path) {
+        StringBuilder b = new StringBuilder();
+
+        for (MagicMatcher matcher : path) {
+            if (b.length() > 0) {
+                b.append(" > ");
+            }
+
+            b.append(matcher.getMatch().getDescription());
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * write the corpus to a directory, one file per sample and size, plus a manifest.tsv
+     * describing every file
+     *
+     * @param dir   the output directory
+     * @param sizes the sizes to generate, 0 for the smallest possible samples
+     * @return the number of files written
+     * @throws IOException if the corpus cannot be written
+     */
+    public int write(File dir, int[] sizes)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create '" + dir + "'");
+        }
+
+        int count = 0;
+        Writer manifest = new OutputStreamWriter(new FileOutputStream(new File(dir, "manifest.tsv")),
+                StandardCharsets.UTF_8);
+
+        try {
+            manifest.write("file\tkind\tsize\trule type\tdetected\tpath\n");
+
+            for (int size : sizes) {
+                for (Sample sample : generate(size)) {
+                    String file = sample.name + "-" + sample.kind + "-" + size + ".bin";
+                    OutputStream out = new FileOutputStream(new File(dir, file));
+
+                    try {
+                        out.write(sample.data);
+                    } finally {
+                        out.close();
+                    }
+
+                    manifest.write(file + "\t" + sample.kind + "\t" + sample.data.length + "\t"
+                            + sample.getRuleType() + "\t" + sample.detected + "\t" + sample.getDescription() + "\n");
+                    count++;
+                }
+            }
+        } finally {
+            manifest.close();
+        }
+
+        return count;
+    }
+
+    /**
+     * DOCUMENT ME!
+     *
+     * @param args the output directory, optionally followed by -sizes n,n,... and -seed n
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: CorpusGenerator <dir> [-sizes 0,4096,...] [-seed n]");
+            System.exit(1);
+        }
+
+        int[] sizes = {0, 4096};
+        long seed = 0;
+
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals("-sizes")) {
+                String[] s = args[++i].split(",");
+                sizes = new int[s.length];
+
+                for (int j = 0; j < s.length; j++) {
+                    sizes[j] = Integer.parseInt(s[j].trim());
+                }
+            } else if (args[i].equals("-seed")) {
+                seed = Long.parseLong(args[++i]);
+            }
+        }
+
+        try {
+            MagicParser parser = new MagicParser();
+            parser.initialize();
+
+            CorpusGenerator generator = new CorpusGenerator(parser.getMatchers(), seed);
+            int count = generator.write(new File(args[0]), sizes);
+
+            System.out.println("wrote " + count + " samples to " + args[0]);
+
+            for (String s : generator.getUnsupported()) {
+                System.err.println("no sample for " + s);
+            }
+        } catch (MagicParseException e) {
+            System.err.println("error: " + e);
+        } catch (IOException e) {
+            System.err.println("error: " + e);
+        }
+    }
+
+    /**
+     * a generated sample
+     */
+    public static final class Sample {
+        private final String name;
+        private final String kind;
+        private final List<MagicMatch> path;
+        private final byte[] data;
+        private final String detected;
+
+        Sample(String name, String kind, List<MagicMatcher> path, byte[] data, String detected) {
+            this.name = name;
+            this.kind = kind;
+            this.path = new ArrayList<MagicMatch>(path.size());
+            this.data = data;
+            this.detected = detected;
+
+            for (MagicMatcher matcher : path) {
+                this.path.add(matcher.getMatch());
+            }
+        }
+
+        /**
+         * get the name of the rule path, r3.0.1 is the second submatcher of the first
+         * submatcher of the fourth root rule
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * get the kind of sample
+         *
+         * @return one of HIT, FLIPPED or TRUNCATED
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * get the sample data
+         *
+         * @return the data
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * get the mime type in-memory detection reported when the sample was generated
+         *
+         * @return the mime type, or - if nothing matched
+         */
+        public String getDetected() {
+            return detected;
+        }
+
+        /**
+         * get the type of the last rule on the path
+         *
+         * @return the test type
+         */
+        public String getRuleType() {
+            return path.get(path.size() - 1).getType();
+        }
+
+        /**
+         * get the descriptions of the rules on the path
+         *
+         * @return the descriptions, joined by &gt;
+         */
+        public String getDescription() {
+            StringBuilder b = new StringBuilder();
+
+            for (MagicMatch match : path) {
+                if (b.length() > 0) {
+                    b.append(" > ");
+                }
+
+                b.append(match.getDescription());
+            }
+
+            return b.toString();
+        }
+    }
+
+    /**
+     * the bytes placed so far for a rule path
+     */
+    private static final class Layout {
+        private byte[] bytes = new byte[16];
+        private boolean[] placed = new boolean[16];
+        private int end = 0;
+        private boolean text = false;
+        // the end of the match of the last rule placed, -1 if it has no fixed end, and the offset
+        // it was placed at
+        private int parentEnd = 0;
+        private int last = 0;
+
+        Layout copy() {
+            Layout l = new Layout();
+            l.set(this);
+
+            return l;
+        }
+
+        void set(Layout l) {
+            bytes = l.bytes.clone();
+            placed = l.placed.clone();
+            end = l.end;
+            text = l.text;
+            parentEnd = l.parentEnd;
+            last = l.last;
+        }
+
+        boolean fits(int offset, byte[] b) {
+            for (int i = 0; i < b.length; i++) {
+                int pos = offset + i;
+
+                if ((pos < end) && placed[pos] && (bytes[pos] != b[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        void put(int offset, byte[] b) {
+            reserve(offset + b.length);
+
+            for (int i = 0; i < b.length; i++) {
+                bytes[offset + i] = b[i];
+                placed[offset + i] = true;
+            }
+        }
+
+        void reserve(int length) {
+            if (length > bytes.length) {
+                int capacity = Math.max(length, bytes.length * 2);
+                bytes = Arrays.copyOf(bytes, capacity);
+                placed = Arrays.copyOf(placed, capacity);
+            }
+
+            end = Math.max(end, length);
+        }
+
+        /**
+         * the placed bytes, with the gaps and the padding filled
+         */
+        byte[] toArray(int length, boolean text, Random random) {
+            byte[] b = new byte[length];
+
+            for (int i = 0; i < length; i++) {
+                if ((i < end) && placed[i]) {
+                    b[i] = bytes[i];
+                } else if (text) {
+                    b[i] = (byte) ('a' + ((random != null) ? random.nextInt(26) : 0));
+                } else {
+                    b[i] = (random != null) ? (byte) random.nextInt(256) : 0;
+                }
+            }
+
+            return b;
+        }
+    }
+
+    /**
+     * produces one string matching a regular expression, for the common subset used in rules
+     */
+    private static final class RegexSampler {
+        private final String p;
+        private int i = 0;
+
+        RegexSampler(String pattern) {
+            this.p = pattern;
+        }
+
+        /**
+         * @return a matching string, or null if the pattern uses unsupported constructs
+         */
+        String sample() {
+            try {
+                StringBuilder b = new StringBuilder();
+
+                if (!alternation(b) || (i != p.length())) {
+                    return null;
+                }
+
+                return b.toString();
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        private boolean alternation(StringBuilder out) {
+            int mark = out.length();
+
+            if (!sequence(out)) {
+                return false;
+            }
+
+            // the first branch is enough, skip the others
+            while ((i < p.length()) && (p.charAt(i) == '|')) {
+                i++;
+
+                StringBuilder ignored = new StringBuilder();
+
+                if (!sequence(ignored)) {
+                    out.setLength(mark);
+
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private boolean sequence(StringBuilder out) {
+            while ((i < p.length()) && (p.charAt(i) != '|') && (p.charAt(i) != ')')) {
+                StringBuilder atom = new StringBuilder();
+
+                if (!atom(atom)) {
+                    return false;
+                }
+
+                int repeat = 1;
+                boolean quantified = true;
+
+                if (i < p.length()) {
+                    char c = p.charAt(i);
+
+                    if ((c == '*') || (c == '?')) {
+                        repeat = 0;
+                        i++;
+                    } else if (c == '+') {
+                        i++;
+                    } else if (c == '{') {
+                        int close = p.indexOf('}', i);
+                        String[] bounds = p.substring(i + 1, close).split(",", -1);
+                        repeat = Integer.parseInt(bounds[0].trim());
+                        i = close + 1;
+                    } else {
+                        quantified = false;
+                    }
+
+                    // lazy and possessive quantifiers produce the same sample
+                    if (quantified && (i < p.length()) && ((p.charAt(i) == '?') || (p.charAt(i) == '+'))) {
+                        i++;
+                    }
+                }
+
+                for (int r = 0; r < repeat; r++) {
+                    out.append(atom);
+                }
+            }
+
+            return true;
+        }
+
+        private boolean atom(StringBuilder out) {
+            char c = p.charAt(i++);
+
+            switch (c) {
+                case '(':
+                    if ((i < p.length()) && (p.charAt(i) == '?')) {
+                        if ((i + 1 < p.length()) && (p.charAt(i + 1) == ':')) {
+                            i += 2;
+                        } else {
+                            // lookaround and inline flags
+                            return false;
+                        }
+                    }
+
+                    if (!alternation(out) || (i >= p.length()) || (p.charAt(i) != ')')) {
+                        return false;
+                    }
+
+                    i++;
+
+                    return true;
+
+                case '[':
+                    return characterClass(out);
+
+                case '.':
+                    out.append('a');
+
+                    return true;
+
+                case '^':
+                case '$':
+                    return true;
+
+                case '\\':
+                    return escape(out);
+
+                default:
+                    out.append(c);
+
+                    return true;
+            }
+        }
+
+        private boolean escape(StringBuilder out) {
+            char c = p.charAt(i++);
+
+            switch (c) {
+                case 'd':
+                    out.append('0');
+
+                    return true;
+
+                case 'w':
+                case 'D':
+                case 'S':
+                    out.append('a');
+
+                    return true;
+
+                case 's':
+                case 'W':
+                    out.append(' ');
+
+                    return true;
+
+                case 'n':
+                    out.append('\n');
+
+                    return true;
+
+                case 'r':
+                    out.append('\r');
+
+                    return true;
+
+                case 't':
+                    out.append('\t');
+
+                    return true;
+
+                case 'x':
+                    out.append((char) Integer.parseInt(p.substring(i, i + 2), 16));
+                    i += 2;
+
+                    return true;
+
+                case 'u':
+                    out.append((char) Integer.parseInt(p.substring(i, i + 4), 16));
+                    i += 4;
+
+                    return true;
+
+                case '0': {
+                    int start = i;
+
+                    while ((i < p.length()) && (i - start < 3) && (p.charAt(i) >= '0') && (p.charAt(i) <= '7')) {
+                        i++;
+                    }
+
+                    out.append((char) Integer.parseInt(p.substring(start, i), 8));
+
+                    return true;
+                }
+
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        // boundaries, back references and classes we do not know
+                        return false;
+                    }
+
+                    out.append(c);
+
+                    return true;
+            }
+        }
+
+        private boolean characterClass(StringBuilder out) {
+            boolean negated = (i < p.length()) && (p.charAt(i) == '^');
+
+            if (negated) {
+                i++;
+            }
+
+            StringBuilder members = new StringBuilder();
+            boolean first = true;
+
+            while ((i < p.length()) && ((p.charAt(i) != ']') || first)) {
+                char c = p.charAt(i++);
+                first = false;
+
+                if (c == '[') {
+                    return false;
+                }
+
+                if (c == '\\') {
+                    StringBuilder e = new StringBuilder();
+
+                    if (!escape(e)) {
+                        return false;
+                    }
+
+                    c = e.charAt(0);
+                }
+
+                if ((i + 1 < p.length()) && (p.charAt(i) == '-') && (p.charAt(i + 1) != ']')) {
+                    char to = p.charAt(i + 1);
+                    i += 2;
+
+                    for (char r = c; r <= to; r++) {
+                        members.append(r);
+                    }
+                } else {
+                    members.append(c);
+                }
+            }
+
+            if (i >= p.length()) {
+                return false;
+            }
+
+            i++;
+
+            if (!negated) {
+                out.append(members.charAt(0));
+
+                return true;
+            }
+
+            for (char candidate : "a0 Z_".toCharArray()) {
+                if (members.indexOf(String.valueOf(candidate)) < 0) {
+                    out.append(candidate);
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw.tools;
+
+
+import gfw.Magic;
+import gfw.MagicException;
+import gfw.MagicExplanation;
+import gfw.MagicParseException;
+import gfw.MagicRule;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Replays a directory of sample files through the engine and reports what every rule cost: the
+ * most expensive rules, the rules that never matched, the rules that read whole files and the
+ * average number of bytes read per detection. Run it before and after changing magic.xml to spot
+ * rules worth rewriting and regressions.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+public class RuleProfiler {
+    // the engine reads this much of a file up front, rules that need more cost extra I/O
+    private static final int HEADER_SIZE = 8192;
+
+    private final boolean extensionHints;
+    private final Map<MagicRule, RuleStats> stats = new IdentityHashMap<MagicRule, RuleStats>();
+    private final List<RuleStats> all = new ArrayList<RuleStats>();
+    private int files = 0;
+    private int notFound = 0;
+    private int errors = 0;
+    private long bytesRead = 0;
+    private long nanos = 0;
+
+    /**
+     * constructor
+     *
+     * @param extensionHints whether or not to detect with extension hints, as most callers do
+     * @throws MagicParseException if the rules cannot be loaded
+     */
+    public RuleProfiler(boolean extensionHints)
+            throws MagicParseException {
+        this.extensionHints = extensionHints;
+
+        for (MagicRule rule : Magic.getRules()) {
+            addRule(rule, 0);
+        }
+    }
+
+    private void addRule(MagicRule rule, int depth) {
+        RuleStats s = new RuleStats(rule, depth);
+        stats.put(rule, s);
+        all.add(s);
+
+        for (MagicRule child : rule.getChildren()) {
+            addRule(child, depth + 1);
+        }
+    }
+
+    /**
+     * run a file through the engine and add up what each rule cost
+     *
+     * @param file the file
+     * @throws MagicParseException if the rules cannot be loaded
+     * @throws MagicException      if the file cannot be read
+     */
+    public void profile(File file)
+            throws MagicParseException, MagicException {
+        MagicExplanation explanation = Magic.explain(file, extensionHints, false);
+        List<MagicExplanation.Step> steps = explanation.getSteps();
+        long length = file.length();
+
+        files++;
+        bytesRead += explanation.getBytesRead();
+        nanos += explanation.getNanos();
+
+        if (explanation.getResult() == null) {
+            notFound++;
+        }
+
+        for (int i = 0; i < steps.size(); i++) {
+            MagicExplanation.Step step = steps.get(i);
+            RuleStats s = stats.get(step.getRule());
+
+            // the time of a step includes its submatches, which follow it one level deeper
+            long self = step.getNanos();
+
+            for (int j = i + 1; (j < steps.size()) && (steps.get(j).getDepth() > step.getDepth()); j++) {
+                if (steps.get(j).getDepth() == (step.getDepth() + 1)) {
+                    self -= steps.get(j).getNanos();
+                }
+            }
+
+            s.evaluations++;
+            s.totalNanos += step.getNanos();
+            s.selfNanos += self;
+            s.bytesInspected += step.getBytesInspected();
+
+            if (step.isMatched()) {
+                s.hits++;
+            }
+
+            if ((step.getBytesInspected() > HEADER_SIZE) && (step.getOffset() >= 0)
+                    && ((step.getOffset() + step.getBytesInspected()) >= length)) {
+                s.fullReads++;
+            }
+        }
+    }
+
+    /**
+     * profile every file below a directory, in name order
+     *
+     * @param dir the directory
+     * @return the number of files profiled
+     * @throws MagicParseException if the rules cannot be loaded
+     */
+    public int profileDirectory(File dir)
+            throws MagicParseException {
+        File[] entries = dir.listFiles();
+
+        if (entries == null) {
+            return 0;
+        }
+
+        Arrays.sort(entries);
+
+        int count = 0;
+
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                count += profileDirectory(entry);
+            } else if (entry.isFile()) {
+                try {
+                    profile(entry);
+                    count++;
+                } catch (MagicException e) {
+                    errors++;
+                    System.err.println(entry + ": " + e);
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * get the statistics of every rule, in the order of the rule file
+     *
+     * @return a read-only list of statistics
+     */
+    public List<RuleStats> getRuleStats() {
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * get the number of files profiled
+     *
+     * @return the number of files
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * get the average number of bytes read per detection
+     *
+     * @return the average, 0 if nothing was profiled
+     */
+    public long getAverageBytesRead() {
+        return (files > 0) ? (bytesRead / files) : 0;
+    }
+
+    /**
+     * write the report
+     *
+     * @param out the stream to write to
+     * @param top the number of expensive rules to list, by total time and by self time
+     */
+    public void report(PrintStream out, int top) {
+        out.println("profiled " + files + " files (" + notFound + " not found, " + errors + " errors) in "
+                + millis(nanos) + " ms");
+        out.println("average bytes read per detection: " + getAverageBytesRead());
+
+        List<RuleStats> sorted = new ArrayList<RuleStats>(all);
+        Collections.sort(sorted, new Comparator<RuleStats>() {
+            public int compare(RuleStats a, RuleStats b) {
+                return Long.compare(b.totalNanos, a.totalNanos);
+            }
+        });
+
+        out.println();
+        out.println("most expensive rules by total time, including submatches:");
+        report(out, sorted, top);
+
+        Collections.sort(sorted, new Comparator<RuleStats>() {
+            public int compare(RuleStats a, RuleStats b) {
+                return Long.compare(b.selfNanos, a.selfNanos);
+            }
+        });
+
+        out.println();
+        out.println("most expensive rules by time spent in the rule itself:");
+        report(out, sorted, top);
+
+        out.println();
+        out.println("rules that never matched:");
+
+        for (RuleStats s : all) {
+            if (s.hits == 0) {
+                out.println("  " + s + ((s.evaluations == 0) ? " - never evaluated" : ""));
+            }
+        }
+
+        out.println();
+        out.println("rules that read whole files beyond the first " + HEADER_SIZE + " bytes:");
+
+        for (RuleStats s : all) {
+            if (s.fullReads > 0) {
+                out.println("  " + s + " - " + s.fullReads + " of " + s.evaluations + " evaluations");
+            }
+        }
+    }
+
+    private static void report(PrintStream out, List<RuleStats> sorted, int top) {
+        out.println(String.format("%10s %10s %8s %8s %10s  %s", "total ms", "self ms", "evals", "hits",
+                "avg bytes", "rule"));
+
+        for (int i = 0; (i < top) && (i < sorted.size()) && (sorted.get(i).evaluations > 0); i++) {
+            RuleStats s = sorted.get(i);
+            out.println(String.format("%10s %10s %8d %8d %10d  %s", millis(s.totalNanos), millis(s.selfNanos),
+                    s.evaluations, s.hits, s.bytesInspected / s.evaluations, s));
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    /**
+     * usage: RuleProfiler &lt;dir&gt; [-hints] [-top n]
+     *
+     * @param args DOCUMENT ME!
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: RuleProfiler <dir> [-hints] [-top n]");
+            System.exit(1);
+        }
+
+        boolean hints = false;
+        int top = 20;
+
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-hints")) {
+                hints = true;
+            } else if (args[i].equals("-top") && (i < (args.length - 1))) {
+                top = Integer.parseInt(args[++i]);
+            }
+        }
+
+        try {
+            RuleProfiler profiler = new RuleProfiler(hints);
+            profiler.profileDirectory(new File(args[0]));
+            profiler.report(System.out, top);
+        } catch (MagicParseException e) {
+            System.err.println("error: " + e);
+        }
+    }
+
+    /**
+     * what a single rule cost over all profiled files
+     */
+    public static final class RuleStats {
+        private final MagicRule rule;
+        private final int depth;
+        private long evaluations = 0;
+        private long hits = 0;
+        private long totalNanos = 0;
+        private long selfNanos = 0;
+        private long bytesInspected = 0;
+        private long fullReads = 0;
+
+        RuleStats(MagicRule rule, int depth) {
+            this.rule = rule;
+            this.depth = depth;
+        }
+
+        public MagicRule getRule() {
+            return rule;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getEvaluations() {
+            return evaluations;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * get the time spent in the rule and its submatches
+         *
+         * @return the time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * get the time spent in the rule without its submatches
+         *
+         * @return the time in nanoseconds
+         */
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        public long getBytesInspected() {
+            return bytesInspected;
+        }
+
+        /**
+         * get the number of evaluations that read the rest of a file larger than the header
+         *
+         * @return the number of evaluations
+         */
+        public long getFullReads() {
+            return fullReads;
+        }
+
+        public String toString() {
+            return ((depth > 0) ? (">" + depth + " ") : "") + rule.getMimeType() + ": " + rule;
+        }
+    }
+}
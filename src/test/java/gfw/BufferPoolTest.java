@@ -0,0 +1,84 @@
+package gfw;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        System.out.print("\ntesting buffer size classes...");
+        try {
+            assertEquals(4096, BufferPool.classSize(1));
+            assertEquals(4096, BufferPool.classSize(4096));
+            assertEquals(8192, BufferPool.classSize(4097));
+            assertEquals(1 << 20, BufferPool.classSize(1 << 20));
+            // larger arrays are allocated to size and never pooled
+            assertEquals((1 << 20) + 1, BufferPool.classSize((1 << 20) + 1));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testSizeClasses(). message: " + e);
+        }
+    }
+
+    public void testReuse() {
+        System.out.print("\ntesting buffer reuse...");
+        try {
+            BufferPool pool = new BufferPool();
+            MagicMetrics metrics = new MagicMetrics(Collections.<MagicRule>emptyList());
+
+            byte[] b = pool.acquire(5000, metrics);
+            assertEquals(8192, b.length);
+            assertTrue(b != pool.acquire(5000, metrics));
+            pool.release(b);
+            assertSame(b, pool.acquire(6000, metrics));
+            assertEquals(1, metrics.getBufferPoolHits());
+            assertEquals(2, metrics.getBufferPoolMisses());
+
+            // arrays that are not of a class size are not taken back
+            byte[] odd = new byte[5000];
+            pool.release(odd);
+            assertTrue(odd != pool.acquire(5000, null));
+
+            byte[] large = pool.acquire((1 << 20) + 1, null);
+            pool.release(large);
+            assertTrue(large != pool.acquire((1 << 20) + 1, null));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testReuse(). message: " + e);
+        }
+    }
+
+    public void testContextReturnsBuffers() {
+        System.out.print("\ntesting buffers returned by detections...");
+        try {
+            File f = File.createTempFile("pool", ".bin");
+            try {
+                FileOutputStream out = new FileOutputStream(f);
+                out.write(new byte[20000]);
+                out.close();
+
+                // the header, the window beyond it and detector buffers all go back on close
+                MagicMetrics metrics = new MagicMetrics(Collections.<MagicRule>emptyList());
+                for (int i = 0; i < 3; i++) {
+                    DetectionContext context = DetectionContext.forFile(f, metrics);
+                    assertTrue(context.fetch(10000, 3000));
+                    byte[] b = context.buffer(100);
+                    assertTrue(b.length >= 100);
+                    context.close();
+                }
+                assertTrue(metrics.getBufferPoolHits() >= 6);
+            } finally {
+                f.delete();
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testContextReturnsBuffers(). message: " + e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package gfw;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ByteKernelsTest extends TestCase {
+
+    public void testEquivalence() {
+        ByteKernels scalar = ByteKernels.getScalar();
+        ByteKernels kernels = ByteKernels.getInstance();
+        System.out.print("\ntesting " + kernels.getName() + " byte kernels against scalar...");
+        try {
+            Random random = new Random(0);
+            for (int n = 0; n < 2000; n++) {
+                int length = random.nextInt(300);
+                byte[] a = new byte[length + 7];
+                byte[] b = new byte[length + 5];
+                for (int i = 0; i < a.length; i++) {
+                    // mostly plain text, sometimes anything
+                    a[i] = (byte) ((random.nextInt(50) == 0) ? random.nextInt(256) : (0x20 + random.nextInt(0x5f)));
+                }
+                System.arraycopy(a, 7, b, 5, length);
+                if ((length > 0) && random.nextBoolean()) {
+                    b[5 + random.nextInt(length)] ^= (byte) (1 + random.nextInt(255));
+                }
+
+                assertEquals(scalar.mismatch(a, 7, b, 5, length), kernels.mismatch(a, 7, b, 5, length));
+                int from = random.nextInt(a.length + 1);
+                assertEquals(scalar.skipPlainText(a, from, a.length), kernels.skipPlainText(a, from, a.length));
+            }
+
+            // every byte value at every lane
+            byte[] text = new byte[130];
+            java.util.Arrays.fill(text, (byte) 'x');
+            for (int c = 0; c < 256; c++) {
+                for (int i = 0; i < text.length; i += 13) {
+                    text[i] = (byte) c;
+                    assertEquals(scalar.skipPlainText(text, 0, text.length), kernels.skipPlainText(text, 0, text.length));
+                    text[i] = 'x';
+                }
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testEquivalence(). message: " + e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package gfw;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class ByteRegexTest extends TestCase {
+
+    private static final String[] PATTERNS = {
+            "%PDF-.*", "<\\?xml.*", "(ab|a)*b?", "[a-c]+x{2,3}", "[^\\n]*", "(.|\\n)*", "\\d+\\.\\d*", "[\\w-]+",
+            "a{0}b", "(a*)*b", "^abc$", "ab\\$", "\\x41\\u0042\\0103", "\\s*<html.*", "(?:GIF8[79]a).*", "a+?b",
+            "(a|b|)+c", "[^a-z]+", "\\W\\S\\D", "\u00e9.*"
+    };
+
+    private static final String[] UNSUPPORTED = {
+            "(?i)abc", "a++", "\\bfoo", "(a)\\1", "\\p{L}", "[a&&b]", "a$b", "(?=a)a", "[[a]]"
+    };
+
+    public void testAgainstJavaRegex() {
+        System.out.print("\ntesting byte regex against java.util.regex...");
+        Random random = new Random(1);
+        String alphabet = "abcx\n\r\u0085AB0129 .-_<>?%PDFGI\u00e9\u0000\u00ff";
+
+        for (String p : PATTERNS) {
+            ByteRegex regex = ByteRegex.compile(p);
+            Pattern pattern = Pattern.compile(p);
+            assertNotNull("not compiled: " + p, regex);
+
+            for (int k = 0; k < 2000; k++) {
+                StringBuilder s = new StringBuilder();
+                int n = random.nextInt(10);
+
+                for (int j = 0; j < n; j++) {
+                    s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+
+                byte[] b = s.toString().getBytes(StandardCharsets.ISO_8859_1);
+                assertEquals(p + " on " + s, pattern.matcher(s).matches(), regex.matches(b, 0, b.length));
+            }
+        }
+        System.out.print("ok");
+    }
+
+    public void testMatches() {
+        System.out.print("\ntesting byte regex matching...");
+        ByteRegex pdf = ByteRegex.compile("%PDF-1\\.[0-7].*");
+        byte[] b = "xx%PDF-1.4 trailing".getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(pdf.matches(b, 2, b.length - 2));
+        assertFalse(pdf.matches(b, 0, b.length));
+        assertTrue(pdf.matches(ByteBuffer.wrap(b, 2, b.length - 2)));
+        assertTrue(pdf.matches(ByteBuffer.allocateDirect(b.length).put(b).position(2)));
+
+        // no backtracking, however the pattern is written
+        byte[] a = new byte[100000];
+        Arrays.fill(a, (byte) 'a');
+        assertFalse(ByteRegex.compile("(a|aa)*c").matches(a, 0, a.length));
+        assertTrue(ByteRegex.compile("(a|aa)*").matches(a, 0, a.length));
+        System.out.print("ok");
+    }
+
+    public void testUnsupported() {
+        System.out.print("\ntesting byte regex fallback...");
+        for (String p : UNSUPPORTED) {
+            assertNull(p, ByteRegex.compile(p));
+        }
+        // too many states
+        assertNull(ByteRegex.compile("(a|b)*a(a|b){12}"));
+        System.out.print("ok");
+    }
+}
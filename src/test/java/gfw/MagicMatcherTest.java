@@ -0,0 +1,242 @@
+package gfw;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public class MagicMatcherTest extends TestCase {
+
+    // a detector that takes a whole array, and remembers how much it was given
+    public static class LengthDetector implements MagicDetector {
+        static int seen;
+
+        public String getDisplayName() {
+            return "length";
+        }
+
+        public String getVersion() {
+            return "0";
+        }
+
+        public String[] getHandledExtensions() {
+            return new String[0];
+        }
+
+        public String[] getHandledTypes() {
+            return new String[0];
+        }
+
+        public String getName() {
+            return "length";
+        }
+
+        public String[] process(byte[] data, int offset, int length, long bitmask, char comparator,
+                                String mimeType, Map<String, String> params) {
+            seen = data.length;
+            return new String[]{"application/x-length"};
+        }
+
+        public String[] process(File file, int offset, int length, long bitmask, char comparator,
+                                String mimeType, Map<String, String> params) {
+            return null;
+        }
+    }
+
+    private static MagicMatcher matcher(String description, String offset, String type, String comparator,
+                                        int range, String test) throws Exception {
+        MagicMatch match = new MagicMatch();
+        match.setDescription(description);
+        match.setMimeType("text/html");
+        match.setType(type);
+        match.setComparator(comparator);
+        match.setLength(range);
+        match.setTest(ByteBuffer.wrap(test.getBytes("US-ASCII")));
+
+        if (offset.startsWith("&")) {
+            match.setOffsetExpression(offset);
+        } else {
+            match.setOffset(Integer.parseInt(offset));
+        }
+
+        MagicMatcher matcher = new MagicMatcher();
+        matcher.setMatch(match);
+
+        return matcher;
+    }
+
+    private static byte[] data(int size, int at, String s) throws Exception {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++) {
+            b[i] = 'x';
+        }
+        byte[] t = s.getBytes("US-ASCII");
+        System.arraycopy(t, 0, b, at, t.length);
+        return b;
+    }
+
+    public void testSearch() {
+        System.out.print("\ntesting search rules...");
+        try {
+            byte[] html = data(2048, 300, "<html lang=\"en\">");
+
+            assertNotNull(matcher("HTML", "0", "search", "=", 1024, "<html").test(html, true));
+            assertNull(matcher("HTML", "0", "search", "=", 300, "<html").test(html, true));
+            // the range counts start positions, the last one is included
+            assertNotNull(matcher("HTML", "0", "search", "=", 301, "<html").test(html, true));
+            assertNull(matcher("HTML", "301", "search", "=", 1024, "<html").test(html, true));
+            assertNull(matcher("HTML", "0", "search", "!", 1024, "<html").test(html, true));
+            assertNotNull(matcher("HTML", "0", "search", "!", 1024, "<body").test(html, true));
+            // without a range the header is searched
+            assertNotNull(matcher("HTML", "0", "search", "=", 0, "<html").test(html, true));
+
+            // submatches may continue where the literal was found
+            MagicMatcher root = matcher("HTML", "0", "search", "=", 1024, "<html");
+            root.addSubMatcher(matcher("English", "&0", "string", "=", 0, " lang=\"en\""));
+            MagicMatch match = root.test(html, false);
+            assertEquals(1, match.getSubMatches().size());
+
+            File f = File.createTempFile("search", ".bin");
+            try {
+                FileOutputStream out = new FileOutputStream(f);
+                out.write(data(40000, 30000, "needle"));
+                out.close();
+                assertNotNull(matcher("far", "20000", "search", "=", 10001, "needle").test(f, true));
+                assertNull(matcher("far", "20000", "search", "=", 10000, "needle").test(f, true));
+            } finally {
+                f.delete();
+            }
+
+            // a literal that ends the data is found in memory as well as in a file
+            byte[] tail = data(100, 94, "needle");
+            f = File.createTempFile("search", ".bin");
+            try {
+                FileOutputStream out = new FileOutputStream(f);
+                out.write(tail);
+                out.close();
+                assertNotNull(matcher("tail", "0", "search", "=", 100, "needle").test(f, true));
+                assertNotNull(matcher("tail", "0", "search", "=", 100, "needle").test(tail, true));
+                assertNotNull(matcher("tail", "94", "search", "=", 1, "needle").test(tail, true));
+                assertNull(matcher("tail", "95", "search", "=", 1, "needle").test(tail, true));
+            } finally {
+                f.delete();
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testSearch(). message: " + e);
+        }
+    }
+
+    public void testRegexOnLargeFile() {
+        System.out.print("\ntesting regex rules on large files...");
+        try {
+            File f = File.createTempFile("regex", ".bin");
+            try {
+                byte[] b = data(300000, 0, "%PDF-");
+                b[b.length - 1] = 'y';
+                FileOutputStream out = new FileOutputStream(f);
+                out.write(b);
+                out.close();
+
+                // the automaton sees the whole rest of the file, a window at a time
+                DetectionContext context = DetectionContext.forFile(f);
+                try {
+                    assertNotNull(matcher("PDF", "0", "regex", "=", 0, "%PDF-x*y").test(context, true));
+                    assertEquals(b.length, context.bytesRead);
+                    assertNull(matcher("PDF", "0", "regex", "=", 0, "%PDF-x*").test(context, true));
+                    assertNotNull(matcher("PDF", "100000", "regex", "=", 0, "x*y").test(context, true));
+                } finally {
+                    context.close();
+                }
+            } finally {
+                f.delete();
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testRegexOnLargeFile(). message: " + e);
+        }
+    }
+
+    public void testDetectorView() {
+        System.out.print("\ntesting detectors that take an array...");
+        try {
+            MagicMatcher detector = matcher("length", "0", "detector", "=", 0, LengthDetector.class.getName());
+            assertNotNull(detector.test(data(5000, 0, "x"), true));
+            // in-memory data has always been given to detectors less its last byte
+            assertEquals(4999, LengthDetector.seen);
+
+            File f = File.createTempFile("detector", ".bin");
+            try {
+                FileOutputStream out = new FileOutputStream(f);
+                out.write(new byte[(1 << BufferPool.MAX_SHIFT) + 5000]);
+                out.close();
+
+                DetectionContext context = DetectionContext.forFile(f);
+                try {
+                    assertNotNull(detector.test(context, true));
+                    assertEquals(1 << BufferPool.MAX_SHIFT, LengthDetector.seen);
+                } finally {
+                    context.close();
+                }
+            } finally {
+                f.delete();
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testDetectorView(). message: " + e);
+        }
+    }
+
+    public void testReadBudget() {
+        System.out.print("\ntesting read budget...");
+        try {
+            File f = File.createTempFile("budget", ".bin");
+            try {
+                FileOutputStream out = new FileOutputStream(f);
+                out.write(data(40000, 30000, "needle"));
+                out.close();
+
+                DetectionContext context = DetectionContext.forFile(f);
+                try {
+                    context.maxBytesRead = DetectionContext.HEADER_SIZE + 50;
+                    MagicMatcher far = matcher("far", "30000", "search", "=", 100, "needle");
+                    assertNull(far.test(context, true));
+                    assertEquals(1, context.rulesSkipped);
+                    assertEquals(DetectionContext.HEADER_SIZE, context.bytesRead);
+
+                    // rules within the budget are still evaluated, and a submatch over it is left out
+                    MagicMatcher root = matcher("near", "0", "string", "=", 0, "xxxx");
+                    root.addSubMatcher(far);
+                    root.addSubMatcher(matcher("close", "9000", "string", "=", 0, "xxxx"));
+                    MagicResult result = root.test(context, false);
+                    assertNotNull(result);
+                    assertEquals(1, result.getSubResults().size());
+                    assertEquals(2, context.rulesSkipped);
+                } finally {
+                    context.close();
+                }
+
+                context = DetectionContext.forFile(f);
+                try {
+                    context.maxReads = 2;
+                    assertNotNull(matcher("far", "30000", "search", "=", 100, "needle").test(context, true));
+                    assertNull(matcher("far", "30000", "search", "=", 100, "needle").test(context, true));
+                    assertEquals(1, context.rulesSkipped);
+                } finally {
+                    context.close();
+                }
+            } finally {
+                f.delete();
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testReadBudget(). message: " + e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package gfw;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class MagicOffsetTest extends TestCase {
+
+    private static MagicMatcher matcher(String description, String offset, String type, byte[] test) {
+        MagicMatch match = new MagicMatch();
+        match.setDescription(description);
+        match.setMimeType("application/octet-stream");
+        match.setType(type);
+        match.setComparator("=");
+        match.setTest(ByteBuffer.wrap(test));
+
+        if (offset.startsWith("&") || offset.startsWith("(")) {
+            match.setOffsetExpression(offset);
+        } else {
+            match.setOffset(Integer.parseInt(offset));
+        }
+
+        MagicMatcher matcher = new MagicMatcher();
+        matcher.setMatch(match);
+
+        return matcher;
+    }
+
+    // an MZ header pointing at a PE header at 0x80, followed by the machine type of x86
+    private static byte[] executable() {
+        byte[] b = new byte[0x100];
+        b[0] = 'M';
+        b[1] = 'Z';
+        b[0x3c] = (byte) 0x80;
+        b[0x80] = 'P';
+        b[0x81] = 'E';
+        b[0x84] = 0x4c;
+        b[0x85] = 0x01;
+        return b;
+    }
+
+    public void testIndirectOffset() {
+        System.out.print("\ntesting indirect and relative offsets...");
+        try {
+            MagicMatcher mz = matcher("MS-DOS executable", "0", "string", "MZ".getBytes("US-ASCII"));
+            MagicMatcher pe = matcher("PE executable", "(0x3c.l)", "string", "PE\0\0".getBytes("US-ASCII"));
+            MagicMatcher i386 = matcher("Intel 80386", "&0", "leshort", "0x014c".getBytes("US-ASCII"));
+            MagicMatcher amd64 = matcher("x86-64", "&0", "leshort", "0x8664".getBytes("US-ASCII"));
+            // the same place, through a byte read relative to the end of the MZ
+            MagicMatcher pe2 = matcher("PE again", "(&0x3a.b)", "string", "PE".getBytes("US-ASCII"));
+            // 0x10 short of the PE header, so no match
+            MagicMatcher pe3 = matcher("PE too early", "(0x3c.s-0x10)", "string", "PE".getBytes("US-ASCII"));
+            mz.addSubMatcher(pe);
+            mz.addSubMatcher(pe2);
+            mz.addSubMatcher(pe3);
+            pe.addSubMatcher(i386);
+            pe.addSubMatcher(amd64);
+
+            MagicMatch match = mz.test(executable(), false);
+            assertNotNull(match);
+            assertEquals(2, match.getSubMatches().size());
+
+            MagicMatch peMatch = match.getSubMatches().iterator().next();
+            assertEquals("PE executable", peMatch.getDescription());
+            assertEquals(1, peMatch.getSubMatches().size());
+            assertEquals("Intel 80386", peMatch.getSubMatches().iterator().next().getDescription());
+
+            byte[] far = executable();
+            far[0x3c] = (byte) 0xf0;
+            far[0x3d] = 0x7f;
+            assertEquals(0, mz.test(far, false).getSubMatches().size());
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testIndirectOffset(). message: " + e);
+        }
+    }
+
+    public void testResolvedOffsetReported() {
+        System.out.print("\ntesting resolved offsets in explanations...");
+        try {
+            MagicMatcher mz = matcher("MS-DOS executable", "0", "string", "MZ".getBytes("US-ASCII"));
+            MagicMatcher pe = matcher("PE executable", "(0x3c.l)", "string", "PE\0\0".getBytes("US-ASCII"));
+            pe.addSubMatcher(matcher("Intel 80386", "&0", "leshort", "0x014c".getBytes("US-ASCII")));
+            mz.addSubMatcher(pe);
+
+            MagicExplanation.Recorder recorder = new MagicExplanation.Recorder();
+            DetectionContext context = DetectionContext.forData(executable());
+            try {
+                context.listeners = new MagicListener[] {recorder};
+                assertNotNull(mz.test(context, false));
+            } finally {
+                context.close();
+            }
+
+            List<MagicExplanation.Step> steps = recorder.steps();
+            assertEquals(3, steps.size());
+            assertEquals(0, steps.get(0).getOffset());
+            assertEquals(0x80, steps.get(1).getOffset());
+            assertEquals(0x84, steps.get(2).getOffset());
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testResolvedOffsetReported(). message: " + e);
+        }
+    }
+
+    public void testParse() {
+        System.out.print("\ntesting offset parsing...");
+        assertEquals("(0x3c.L+4)", MagicOffset.parse("(0x3c.L+4)").toString());
+        MagicOffset.parse("&(&2.S-0x10)");
+        MagicOffset.parse("(4)");
+
+        String[] bad = {"(4.q)", "(4.lx)", "(4", "&x", "(.l)"};
+        for (String s : bad) {
+            try {
+                MagicOffset.parse(s);
+                fail("parsed " + s);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+        System.out.print("ok");
+    }
+}
@@ -3,6 +3,13 @@ package gfw;
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class MagicTest extends TestCase {
     private static final String gifFile = "test_docs/test.gif";
@@ -283,7 +290,7 @@ public class MagicTest extends TestCase {
         try {
             MagicMatch match = Magic.getMagicMatch(new File(excel2KFile), true, false);
             if (match != null) {
-                assertEquals("application/msword", match.getMimeType());
+                assertEquals("application/vnd.ms-excel", match.getMimeType());
             } else {
                 System.out.print("failed");
                 fail("no match in testExcel2K()");
@@ -526,6 +533,53 @@ public class MagicTest extends TestCase {
 
     }
 
+    public void testReadBudget() {
+        System.out.print("\ntesting read budget...");
+        try {
+            // no limit unless one is set
+            assertEquals(Long.MAX_VALUE, Magic.getMaxBytesRead());
+            assertEquals(Integer.MAX_VALUE, Magic.getMaxReads());
+
+            // a document whose parts are listed in a central directory 2 MB from the start
+            File f = File.createTempFile("budget", ".docx");
+            try {
+                ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+                out.setLevel(Deflater.NO_COMPRESSION);
+                out.putNextEntry(new ZipEntry("[Content_Types].xml"));
+                out.write("<Types/>".getBytes("US-ASCII"));
+                out.putNextEntry(new ZipEntry("media/fill.bin"));
+                byte[] fill = new byte[1 << 21];
+                new Random(0).nextBytes(fill);
+                out.write(fill);
+                out.putNextEntry(new ZipEntry("word/document.xml"));
+                out.write("<w:document/>".getBytes("US-ASCII"));
+                out.close();
+
+                String docx = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+                assertEquals(docx, Magic.getMagicResult(f, false, false).getMimeType());
+
+                // with a budget of just the header read the ZIP detector cannot reach the central directory
+                Magic.setReadBudget(0, 1);
+                try {
+                    assertEquals(1, Magic.getMaxReads());
+                    MagicExplanation explanation = Magic.explain(f, false, false);
+                    assertTrue(explanation.getRulesSkipped() > 0);
+                    MagicResult result = explanation.getResult();
+                    assertTrue((result == null) || !docx.equals(result.getMimeType()));
+                } finally {
+                    Magic.setReadBudget(0, 0);
+                }
+                assertEquals(Integer.MAX_VALUE, Magic.getMaxReads());
+            } finally {
+                f.delete();
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testReadBudget(). message: " + e);
+        }
+    }
+
     public void testSubMatches() {
         System.out.print("\ntesting Submatches...");
         try {
@@ -544,4 +598,287 @@ public class MagicTest extends TestCase {
 
     }
 
+    public void testVerify() {
+        System.out.print("\ntesting claimed type verification...");
+        try {
+            assertTrue(Magic.verify(new File(gifFile), "image/gif"));
+            assertTrue(Magic.verify(new File(pngFile), "image/png; charset=binary"));
+            assertFalse(Magic.verify(new File(pngFile), "image/gif"));
+
+            MagicVerification verification = Magic.verify(new File(pngFile), "image/gif", true);
+            assertFalse(verification.isVerified());
+            assertEquals("image/png", verification.getMatch().getMimeType());
+
+            // rules that cannot match the first byte or the length are not evaluated
+            MagicExplanation.Recorder recorder = new MagicExplanation.Recorder();
+            Magic.addListener(recorder);
+            try {
+                assertFalse(Magic.verify("xGIF89a".getBytes("US-ASCII"), "image/gif"));
+                assertFalse(Magic.verify("GI".getBytes("US-ASCII"), "image/gif"));
+            } finally {
+                Magic.removeListener(recorder);
+            }
+            assertEquals(0, recorder.steps().size());
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testVerify(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testVerify(). message: " + e.getMessage());
+        }
+
+    }
+
+    public void testMagicResult() {
+        System.out.print("\ntesting immutable results...");
+        try {
+            MagicResult result = Magic.getMagicResult(new File(gifFile), true, false);
+            MagicMatch match = Magic.getMagicMatch(new File(gifFile), true, false);
+            assertEquals(match.getMimeType(), result.getMimeType());
+            assertEquals(match.getSubMatches().size(), result.getSubResults().size());
+            assertEquals(match.getBitmask(), result.toMagicMatch().getBitmask());
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testMagicResult(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testMagicResult(). message: " + e.getMessage());
+        }
+
+    }
+
+    public void testExplain() {
+        System.out.print("\ntesting explain...");
+        try {
+            MagicExplanation explanation = Magic.explain(new File(gifFile), false, false);
+            MagicResult result = Magic.getMagicResult(new File(gifFile), false, false);
+            assertEquals(result.getMimeType(), explanation.getResult().getMimeType());
+
+            // the matching rule is followed by its submatches, and is the last root rule tried
+            int root = -1;
+
+            for (int i = 0; i < explanation.getSteps().size(); i++) {
+                MagicExplanation.Step step = explanation.getSteps().get(i);
+
+                if (step.getDepth() == 0) {
+                    root = i;
+                }
+            }
+
+            MagicExplanation.Step step = explanation.getSteps().get(root);
+            assertTrue(step.isMatched());
+            assertSame(result.getRule(), step.getRule());
+            assertTrue(step.getBytesInspected() > 0);
+
+            int matchedSubs = 0;
+
+            for (int i = root + 1; i < explanation.getSteps().size(); i++) {
+                MagicExplanation.Step sub = explanation.getSteps().get(i);
+                assertTrue(sub.getDepth() > 0);
+
+                if ((sub.getDepth() == 1) && sub.isMatched()) {
+                    matchedSubs++;
+                }
+            }
+
+            assertEquals(result.getSubResults().size(), matchedSubs);
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testExplain(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testExplain(). message: " + e.getMessage());
+        }
+
+    }
+
+    public void testBatchDetection() {
+        System.out.print("\ntesting batch detection...");
+        try {
+            BatchDetection tsv = new BatchDetection(1, false, true, System.out);
+            assertTrue(tsv.detect(new File(gifFile)).startsWith(gifFile + "\timage/gif\t"));
+            tsv.finish();
+
+            BatchDetection json = new BatchDetection(1, true, true, System.out);
+            assertEquals("{\"path\":\"a\\\"b\",\"mimeType\":null,\"description\":null,\"extension\":null}",
+                    json.format("a\"b", null, null, null, null));
+            json.finish();
+
+            // a bad path gets an error line and the batch goes on
+            java.io.ByteArrayOutputStream lines = new java.io.ByteArrayOutputStream();
+            BatchDetection failing = new BatchDetection(1, false, true, new java.io.PrintStream(lines, true, "UTF-8"));
+            failing.submitPath("bad\0path");
+            failing.submitPath(gifFile);
+            failing.submitPath("test_docs/does-not-exist");
+            failing.finish();
+            String output = lines.toString("UTF-8");
+            assertTrue(output.startsWith("bad\0path\t\terror: "));
+            assertTrue(output.contains(gifFile + "\timage/gif\t"));
+            assertTrue(output.contains("test_docs/does-not-exist\t\terror: "));
+            assertEquals(2, failing.getFailures());
+
+            assertEquals(1, BatchDetection.run(new String[] {"-threads", "many", gifFile}));
+            assertEquals(1, BatchDetection.run(new String[] {"-threads"}));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testBatchDetection(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testBatchDetection(). message: " + e.getMessage());
+        }
+
+    }
+
+    public void testDetectionDaemon() {
+        System.out.print("\ntesting detection daemon...");
+        try {
+            java.nio.file.Path socket = java.nio.file.Files.createTempDirectory("magic").resolve("magic.sock");
+            final DetectionDaemon daemon = new DetectionDaemon(socket);
+            Thread serving = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        daemon.serve();
+                    } catch (java.io.IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            // a failed assertion must not leave the test JVM waiting for the daemon
+            serving.setDaemon(true);
+            serving.start();
+
+            try {
+                java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open(
+                        java.net.UnixDomainSocketAddress.of(socket));
+
+                try {
+                    java.io.DataOutputStream out = new java.io.DataOutputStream(
+                            java.nio.channels.Channels.newOutputStream(channel));
+                    java.io.DataInputStream in = new java.io.DataInputStream(
+                            java.nio.channels.Channels.newInputStream(channel));
+
+                    // all requests are sent before the first response is read
+                    byte[] path = new File(gifFile).getPath().getBytes("UTF-8");
+                    out.writeInt(path.length + 1);
+                    out.writeByte(DetectionDaemon.PATH);
+                    out.write(path);
+                    out.writeInt(1);
+                    out.writeByte(DetectionDaemon.METRICS);
+                    out.writeInt(1);
+                    out.writeByte('?');
+                    out.flush();
+
+                    assertEquals("image/gif", readResponse(in, DetectionDaemon.OK));
+                    assertTrue(readResponse(in, DetectionDaemon.METRICS).contains("requests\t2"));
+                    readResponse(in, DetectionDaemon.ERROR);
+                } finally {
+                    channel.close();
+                }
+            } finally {
+                daemon.close();
+                serving.join(10000);
+            }
+
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testDetectionDaemon(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testDetectionDaemon(). message: " + e.getMessage());
+        }
+
+    }
+
+    private static String readResponse(java.io.DataInputStream in, byte status)
+            throws java.io.IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        assertEquals(status, b[0]);
+
+        return new String(b, 1, b.length - 1, "UTF-8");
+    }
+
+    public void testCharset() {
+        System.out.print("\ntesting text charset...");
+        try {
+            MagicResult result = Magic.getMagicResult("gr\u00fc\u00dfe\n".getBytes("UTF-8"), false);
+            assertEquals("text/plain", result.getMimeType());
+            assertEquals("UTF-8", result.getProperties().get("charset"));
+
+            MagicMatch match = Magic.getMagicMatch("plain\n".getBytes("UTF-8"), false);
+            assertEquals("text/plain", match.getMimeType());
+            assertEquals("US-ASCII", match.getProperties().get("charset"));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testCharset(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testCharset(). message: " + e.getMessage());
+        }
+
+    }
+
+    public void testFindMagicResult() {
+        System.out.print("\ntesting results without exceptions...");
+        try {
+            Optional<MagicResult> result = Magic.findMagicResult(new File(gifFile), true, false);
+            assertTrue(result.isPresent());
+            assertEquals("image/gif", result.get().getMimeType());
+
+            byte[] opaque = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x00, 0x00};
+            assertFalse(Magic.findMagicResult(opaque, false).isPresent());
+
+            try {
+                Magic.getMagicResult(opaque, false);
+                fail("no rule should match");
+            } catch (MagicMatchNotFoundException e) {
+                // not finding a match is not worth a stack trace
+                assertEquals(0, e.getStackTrace().length);
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testFindMagicResult(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testFindMagicResult(). message: " + e.getMessage());
+        }
+
+    }
+
+    public void testMagicResults() {
+        System.out.print("\ntesting ranked results...");
+        try {
+            List<MagicResult> all = Magic.getMagicResults(new File(gifFile), 0, false);
+            assertFalse(all.isEmpty());
+            assertTrue(all.get(0).mimeTypeMatches("image/gif"));
+
+            for (int i = 1; i < all.size(); i++) {
+                assertTrue(all.get(i - 1).getStrength() >= all.get(i).getStrength());
+            }
+
+            // the strongest result is found without evaluating every rule
+            List<MagicResult> best = Magic.getMagicResults(new File(gifFile), 1, false);
+            assertEquals(1, best.size());
+            assertSame(all.get(0).getRule(), best.get(0).getRule());
+
+            byte[] opaque = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x00, 0x00};
+            assertTrue(Magic.getMagicResults(opaque, 0, false).isEmpty());
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testMagicResults(). message: " + e);
+        } catch (Error e) {
+            e.printStackTrace();
+            fail("error in testMagicResults(). message: " + e.getMessage());
+        }
+
+    }
+
 }
@@ -0,0 +1,125 @@
+package gfw;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class RulePrefilterTest extends TestCase {
+
+    private static MagicMatcher matcher(String offset, String type, String comparator, String bitmask, byte[] test) {
+        MagicMatch match = new MagicMatch();
+        match.setDescription(type + " at " + offset);
+        match.setMimeType("application/octet-stream");
+        match.setType(type);
+        match.setComparator(comparator);
+        match.setTest(ByteBuffer.wrap(test));
+
+        if (bitmask != null) {
+            match.setBitmask(bitmask);
+        }
+
+        if (offset.startsWith("(")) {
+            match.setOffsetExpression(offset);
+        } else {
+            match.setOffset(Integer.parseInt(offset));
+        }
+
+        MagicMatcher matcher = new MagicMatcher();
+        matcher.setMatch(match);
+
+        return matcher;
+    }
+
+    public void testFirstByte() {
+        System.out.print("\ntesting first byte of rules...");
+        try {
+            assertEquals('G', matcher("0", "string", "=", null, "GIF8".getBytes("US-ASCII")).getFirstBytes()[0]);
+            assertEquals(0xca, matcher("0", "belong", "=", null, "0xcafebabe".getBytes("US-ASCII")).getFirstBytes()[0]);
+            assertEquals(0x4d, matcher("0", "leshort", "=", null, "0x5a4d".getBytes("US-ASCII")).getFirstBytes()[0]);
+            assertEquals(0x5a, matcher("0", "beshort", "=", null, "0x5a4d".getBytes("US-ASCII")).getFirstBytes()[0]);
+            assertEquals(0xff, matcher("0", "byte", "=", null, "0xff".getBytes("US-ASCII")).getFirstBytes()[0]);
+            // anything that leaves the first byte open
+            assertNull(matcher("1", "string", "=", null, "PNG".getBytes("US-ASCII")).getFirstBytes());
+            assertNull(matcher("0", "string", "!", null, "GIF8".getBytes("US-ASCII")).getFirstBytes());
+            assertNull(matcher("0", "belong", "=", "0x00ffffff", "0x00fffe".getBytes("US-ASCII")).getFirstBytes());
+            assertNull(matcher("(0.b)", "string", "=", null, "GIF8".getBytes("US-ASCII")).getFirstBytes());
+            assertNull(matcher("0", "regex", "=", null, "GIF.*".getBytes("US-ASCII")).getFirstBytes());
+
+            assertEquals(12, matcher("8", "string", "=", null, "WAVE".getBytes("US-ASCII")).getMinLength());
+            assertEquals(0, matcher("(0.b)", "string", "=", null, "WAVE".getBytes("US-ASCII")).getMinLength());
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testFirstByte(). message: " + e);
+        }
+    }
+
+    public void testCandidates() {
+        System.out.print("\ntesting rule candidates...");
+        try {
+            MagicMatcher gif = matcher("0", "string", "=", null, "GIF8".getBytes("US-ASCII"));
+            MagicMatcher wave = matcher("8", "string", "=", null, "WAVE".getBytes("US-ASCII"));
+            MagicMatcher gzip = matcher("0", "beshort", "=", null, "0x1f8b".getBytes("US-ASCII"));
+            MagicMatcher text = matcher("0", "detector", "=", null, "gfw.detectors.TextFileDetector".getBytes("US-ASCII"));
+            RulePrefilter prefilter = new RulePrefilter(Arrays.asList(gif, wave, gzip, text));
+
+            // the order of the rules is kept
+            assertEquals(Arrays.asList(gif, wave, text), Arrays.asList(prefilter.candidates('G')));
+            assertEquals(Arrays.asList(wave, gzip, text), Arrays.asList(prefilter.candidates(0x1f)));
+            assertEquals(Arrays.asList(wave, text), Arrays.asList(prefilter.candidates(0)));
+            assertEquals(Arrays.asList(wave, text), Arrays.asList(prefilter.candidates(-1)));
+
+            assertTrue(RulePrefilter.admits(gif, 'G', 4));
+            assertFalse(RulePrefilter.admits(gif, 'G', 3));
+            assertFalse(RulePrefilter.admits(gif, 'P', 100));
+            assertFalse(RulePrefilter.admits(wave, 'R', 11));
+            assertTrue(RulePrefilter.admits(text, -1, 0));
+
+            // detectors are tried only on the bytes they declare
+            MagicMatcher mp3 = matcher("0", "detector", "=", null, "gfw.detectors.MpegAudioDetector".getBytes("US-ASCII"));
+            mp3.setFirstBytes(new int[] {'I', 0xff});
+            prefilter = new RulePrefilter(Arrays.asList(gif, mp3, text));
+            assertEquals(Arrays.asList(mp3, text), Arrays.asList(prefilter.candidates('I')));
+            assertEquals(Arrays.asList(mp3, text), Arrays.asList(prefilter.candidates(0xff)));
+            assertEquals(Arrays.asList(text), Arrays.asList(prefilter.candidates('P')));
+            assertTrue(RulePrefilter.admits(mp3, 0xff, 4));
+            assertFalse(RulePrefilter.admits(mp3, -1, 0));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testCandidates(). message: " + e);
+        }
+    }
+
+    public void testStrength() {
+        System.out.print("\ntesting rule strength...");
+        try {
+            MagicMatcher gif = matcher("0", "string", "=", null, "GIF8".getBytes("US-ASCII"));
+            MagicMatcher pk = matcher("0", "string", "=", null, "PK".getBytes("US-ASCII"));
+            MagicMatcher word = matcher("0", "belong", "=", null, "0xcafebabe".getBytes("US-ASCII"));
+            MagicMatcher masked = matcher("0", "belong", "=", "0xffff0000", "0xcafe0000".getBytes("US-ASCII"));
+            MagicMatcher not = matcher("0", "string", "!", null, "GIF8".getBytes("US-ASCII"));
+
+            // longer literals and full words are more specific
+            assertEquals(70, gif.getStrength());
+            assertEquals(50, pk.getStrength());
+            assertEquals(70, word.getStrength());
+            assertEquals(60, masked.getStrength());
+            assertEquals(1, not.getStrength());
+
+            MagicMatch adjusted = pk.getMatch();
+            adjusted.setStrength(25);
+            pk.setMatch(adjusted);
+            assertEquals(75, pk.getStrength());
+
+            // each level of submatchers may add a unit
+            gif.addSubMatcher(matcher("4", "byte", "=", null, "0x39".getBytes("US-ASCII")));
+            assertEquals(80, gif.getMaxStrength());
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testStrength(). message: " + e);
+        }
+    }
+}
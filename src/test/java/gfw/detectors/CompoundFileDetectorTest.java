@@ -0,0 +1,83 @@
+package gfw.detectors;
+
+import junit.framework.TestCase;
+
+public class CompoundFileDetectorTest extends TestCase {
+
+    private static final int SECTOR = 512;
+
+    private static void le32(byte[] b, int off, long v) {
+        for (int i = 0; i < 4; i++) {
+            b[off + i] = (byte) (v >>> (8 * i));
+        }
+    }
+
+    private static void entry(byte[] b, int sector, int index, String name, int type, long left, long right,
+                              long child) {
+        int e = ((sector + 1) * SECTOR) + ((index % 4) * 128);
+        for (int i = 0; i < name.length(); i++) {
+            b[e + (2 * i)] = (byte) name.charAt(i);
+        }
+        b[e + 0x40] = (byte) ((name.length() + 1) * 2);
+        b[e + 0x42] = (byte) type;
+        le32(b, e + 0x44, left);
+        le32(b, e + 0x48, right);
+        le32(b, e + 0x4c, child);
+    }
+
+    // a version 3 compound file with the FAT in sector 0 and the directory in sectors 1 and 3
+    private static byte[] compoundFile(String stream) {
+        byte[] b = new byte[5 * SECTOR];
+        byte[] signature = {(byte) 0xd0, (byte) 0xcf, 0x11, (byte) 0xe0, (byte) 0xa1, (byte) 0xb1, 0x1a, (byte) 0xe1};
+        System.arraycopy(signature, 0, b, 0, signature.length);
+        b[0x1a] = 3;
+        b[0x1c] = (byte) 0xfe;
+        b[0x1d] = (byte) 0xff;
+        b[0x1e] = 9;
+        le32(b, 0x2c, 1);
+        le32(b, 0x30, 1);
+        le32(b, 0x44, 0xfffffffeL);
+        for (int i = 0; i < 109; i++) {
+            le32(b, 0x4c + (4 * i), 0xffffffffL);
+        }
+        le32(b, 0x4c, 0);
+
+        // FAT: 0 is the FAT itself, the directory runs from 1 to 3, 2 is unused
+        int fat = SECTOR;
+        for (int i = 0; i < 128; i++) {
+            le32(b, fat + (4 * i), 0xffffffffL);
+        }
+        le32(b, fat, 0xfffffffdL);
+        le32(b, fat + 4, 3);
+        le32(b, fat + 12, 0xfffffffeL);
+
+        // the interesting stream is the fifth entry, in the second directory sector
+        entry(b, 1, 0, "Root Entry", 5, 0xffffffffL, 0xffffffffL, 1);
+        entry(b, 1, 1, "\u0005SummaryInformation", 2, 0xffffffffL, 4, 0xffffffffL);
+        entry(b, 3, 4, stream, 2, 0xffffffffL, 0xffffffffL, 0xffffffffL);
+
+        return b;
+    }
+
+    private static String detect(byte[] data) {
+        String[] types = new CompoundFileDetector().process(data, 0, 0, 0, '=', null, null);
+
+        return (types != null) ? types[0] : null;
+    }
+
+    public void testDetect() {
+        System.out.print("\ntesting compound file detection...");
+        try {
+            assertEquals("application/msword", detect(compoundFile("WordDocument")));
+            assertEquals("application/vnd.ms-excel", detect(compoundFile("Workbook")));
+            assertEquals("application/vnd.ms-excel", detect(compoundFile("Book")));
+            assertEquals("application/vnd.ms-powerpoint", detect(compoundFile("PowerPoint Document")));
+            assertNull(detect(compoundFile("Contents")));
+            assertNull(detect(new byte[]{(byte) 0xd0, (byte) 0xcf, 0x11, (byte) 0xe0}));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testDetect(). message: " + e);
+        }
+    }
+}
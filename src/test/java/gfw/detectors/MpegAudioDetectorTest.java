@@ -0,0 +1,96 @@
+package gfw.detectors;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+
+public class MpegAudioDetectorTest extends TestCase {
+
+    // MPEG 1 layer III, 128 kbit/s, 44.1 kHz, no padding: 417 byte frames
+    private static final int HEADER = 0xfffb9064;
+
+    private static void frames(ByteArrayOutputStream out, int count) {
+        for (int i = 0; i < count; i++) {
+            byte[] frame = new byte[417];
+            frame[0] = (byte) (HEADER >>> 24);
+            frame[1] = (byte) (HEADER >>> 16);
+            frame[2] = (byte) (HEADER >>> 8);
+            frame[3] = (byte) HEADER;
+            // frame data that looks like a sync word must not matter
+            frame[100] = (byte) 0xff;
+            frame[101] = (byte) 0xfb;
+            out.write(frame, 0, frame.length);
+        }
+    }
+
+    private static void tag(ByteArrayOutputStream out, int size) {
+        out.write('I');
+        out.write('D');
+        out.write('3');
+        out.write(3);
+        out.write(0);
+        out.write(0);
+        out.write((size >>> 21) & 0x7f);
+        out.write((size >>> 14) & 0x7f);
+        out.write((size >>> 7) & 0x7f);
+        out.write(size & 0x7f);
+        byte[] body = new byte[size];
+        // artwork full of sync words
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) 0xff;
+        }
+        out.write(body, 0, size);
+    }
+
+    private static String detect(byte[] data) {
+        String[] types = new MpegAudioDetector().process(data, 0, 0, 0, '=', null, null);
+
+        return (types != null) ? types[0] : null;
+    }
+
+    public void testFrameLength() {
+        System.out.print("\ntesting mpeg frame length...");
+        assertEquals(417, MpegAudioDetector.frameLength(HEADER));
+        assertEquals(418, MpegAudioDetector.frameLength(HEADER | 0x200));
+        // MPEG 2 layer III, 64 kbit/s, 22.05 kHz
+        assertEquals(208, MpegAudioDetector.frameLength(0xfff38064));
+        assertEquals(-1, MpegAudioDetector.frameLength(0xfffb0064));
+        assertEquals(-1, MpegAudioDetector.frameLength(0xfff99064));
+        System.out.print("ok");
+    }
+
+    public void testDetect() {
+        System.out.print("\ntesting mpeg audio detection...");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            frames(out, 5);
+            assertEquals("audio/mp3", detect(out.toByteArray()));
+
+            out = new ByteArrayOutputStream();
+            tag(out, 300000);
+            tag(out, 1000);
+            out.write(new byte[700], 0, 700);
+            frames(out, 4);
+            assertEquals("audio/mp3", detect(out.toByteArray()));
+
+            out = new ByteArrayOutputStream();
+            frames(out, 2);
+            assertEquals("audio/mp3", detect(out.toByteArray()));
+
+            out = new ByteArrayOutputStream();
+            frames(out, 1);
+            out.write(new byte[1000], 0, 1000);
+            assertNull(detect(out.toByteArray()));
+
+            out = new ByteArrayOutputStream();
+            tag(out, 1000);
+            out.write(new byte[5000], 0, 5000);
+            frames(out, 4);
+            assertNull(detect(out.toByteArray()));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testDetect(). message: " + e);
+        }
+    }
+}
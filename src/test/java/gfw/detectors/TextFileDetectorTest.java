@@ -0,0 +1,62 @@
+package gfw.detectors;
+
+import junit.framework.TestCase;
+
+public class TextFileDetectorTest extends TestCase {
+
+    private static int classify(int... bytes) {
+        byte[] b = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            b[i] = (byte) bytes[i];
+        }
+        return TextFileDetector.classify(b, 0, b.length, false);
+    }
+
+    private static int classify(String s, String charset) throws Exception {
+        byte[] b = s.getBytes(charset);
+        return TextFileDetector.classify(b, 0, b.length, false);
+    }
+
+    public void testClassify() {
+        System.out.print("\ntesting text classification...");
+        try {
+            assertEquals(TextFileDetector.US_ASCII, classify("hello,\tworld\r\n", "US-ASCII"));
+            assertEquals(TextFileDetector.UTF_8, classify("gr\u00fc\u00dfe \u20ac \ud83d\ude00\n", "UTF-8"));
+            assertEquals(TextFileDetector.UTF_8, classify(0xef, 0xbb, 0xbf, 'a'));
+            assertEquals(TextFileDetector.UTF_16LE, classify(0xff, 0xfe, 'a', 0));
+            assertEquals(TextFileDetector.UTF_16BE, classify(0xfe, 0xff, 0, 'a'));
+            assertEquals(TextFileDetector.UTF_16LE, classify("plain old text\n", "UTF-16LE"));
+            assertEquals(TextFileDetector.UTF_16BE, classify("plain old text\n", "UTF-16BE"));
+            // UTF-16 without a byte order mark in scripts whose high bytes are not zero
+            String russian = "\u041f\u0440\u0438\u0432\u0435\u0442 \u043c\u0438\u0440, \u043a\u0430\u043a "
+                    + "\u0434\u0435\u043b\u0430?\n";
+            String japanese = "\u3053\u3093\u306b\u3061\u306f\u4e16\u754c\u3002\u65e5\u672c\u8a9e\u306e"
+                    + "\u30c6\u30ad\u30b9\u30c8\u3067\u3059\u3002\ud842\udfb7\n";
+            assertEquals(TextFileDetector.UTF_16LE, classify(russian, "UTF-16LE"));
+            assertEquals(TextFileDetector.UTF_16BE, classify(russian, "UTF-16BE"));
+            assertEquals(TextFileDetector.UTF_16LE, classify(japanese, "UTF-16LE"));
+            assertEquals(TextFileDetector.UTF_16BE, classify(japanese, "UTF-16BE"));
+            assertEquals(TextFileDetector.ISO_8859_1, classify("gr\u00fc\u00dfe\n", "ISO-8859-1"));
+            assertEquals(TextFileDetector.WINDOWS_1252, classify("\u201cquoted\u201d \u20ac\n", "windows-1252"));
+
+            // surrogates, overlong forms and sequences cut off at the end are not UTF-8
+            assertEquals(TextFileDetector.WINDOWS_1252, classify('a', 0xed, 0xa0, 0x80));
+            assertEquals(TextFileDetector.ISO_8859_1, classify('a', 0xe0, 0xa0));
+            assertEquals(TextFileDetector.WINDOWS_1252, classify('a', 0xc0, 0x80));
+            assertEquals(TextFileDetector.UTF_8,
+                    TextFileDetector.classify(new byte[]{'a', (byte) 0xe2, (byte) 0x82}, 0, 3, true));
+
+            assertEquals(TextFileDetector.BINARY, classify(0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a, 0, 0));
+            assertEquals(TextFileDetector.BINARY, classify('a', 0x01, 'b'));
+            assertEquals(TextFileDetector.BINARY, classify('a', 0x81, 'b'));
+            // a lone surrogate, and code units of zero, are not UTF-16 text
+            assertEquals(TextFileDetector.BINARY, classify(0x3f, 0x04, 0x40, 0x04, 0x38, 0x04, 0x32, 0x04, 0xd8, 0xd8,
+                    0x34, 0x04, 0x35, 0x04, 0x3b, 0x04, 0x30, 0x04));
+            assertEquals(TextFileDetector.BINARY, classify(1, 0, 0, 0, 2, 0, 0, 0, 3, 0, 0, 0, 4, 0, 0, 0, 5, 0));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testClassify(). message: " + e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package gfw.detectors;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipDetectorTest extends TestCase {
+
+    private static byte[] zip(String mimetype, String... names) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(out);
+
+        if (mimetype != null) {
+            byte[] b = mimetype.getBytes("US-ASCII");
+            CRC32 crc = new CRC32();
+            crc.update(b);
+            ZipEntry entry = new ZipEntry("mimetype");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(b.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(b);
+        }
+
+        for (String name : names) {
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(("content of " + name).getBytes("US-ASCII"));
+        }
+
+        zip.setComment("written by " + ZipDetectorTest.class.getName());
+        zip.close();
+
+        return out.toByteArray();
+    }
+
+    private static String detect(byte[] data) {
+        String[] types = new ZipDetector().process(data, 0, 0, 0, '=', null, null);
+
+        return (types != null) ? types[0] : null;
+    }
+
+    public void testDetect() {
+        System.out.print("\ntesting zip detection...");
+        try {
+            assertEquals("application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+                    detect(zip(null, "_rels/.rels", "word/document.xml", "[Content_Types].xml")));
+            assertEquals("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+                    detect(zip(null, "[Content_Types].xml", "xl/workbook.xml")));
+            assertEquals("application/vnd.openxmlformats-officedocument.presentationml.presentation",
+                    detect(zip(null, "[Content_Types].xml", "ppt/presentation.xml")));
+            assertEquals("application/vnd.oasis.opendocument.text",
+                    detect(zip("application/vnd.oasis.opendocument.text", "content.xml")));
+            // other archives are left to the magic rules
+            assertNull(detect(zip(null, "word/document.xml")));
+            assertNull(detect(zip(null, "META-INF/MANIFEST.MF", "gfw/Magic.class")));
+            assertNull(detect(zip(null)));
+            assertNull(detect("PK not really".getBytes("US-ASCII")));
+            assertNull(detect(new byte[]{'G', 'I', 'F', '8'}));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testDetect(). message: " + e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package gfw.tools;
+
+import gfw.Magic;
+import gfw.MagicMatch;
+import gfw.MagicMatcher;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class CorpusGeneratorTest extends TestCase {
+
+    private static MagicMatcher matcher(String description, String offset, String type, String test) throws Exception {
+        MagicMatch match = new MagicMatch();
+        match.setDescription(description);
+        match.setMimeType("application/octet-stream");
+        match.setType(type);
+        match.setComparator("=");
+        match.setTest(ByteBuffer.wrap(test.getBytes("ISO-8859-1")));
+
+        if (offset.startsWith("&") || offset.startsWith("(")) {
+            match.setOffsetExpression(offset);
+        } else {
+            match.setOffset(Integer.parseInt(offset));
+        }
+
+        MagicMatcher matcher = new MagicMatcher();
+        matcher.setMatch(match);
+
+        return matcher;
+    }
+
+    public void testDeterministic() {
+        System.out.print("\ntesting corpus is deterministic...");
+        try {
+            List<CorpusGenerator.Sample> a = new CorpusGenerator(Magic.getMatchers(), 7).generate(256);
+            List<CorpusGenerator.Sample> b = new CorpusGenerator(Magic.getMatchers(), 7).generate(256);
+            assertEquals(a.size(), b.size());
+            for (int i = 0; i < a.size(); i++) {
+                assertEquals(a.get(i).getName(), b.get(i).getName());
+                assertTrue(Arrays.equals(a.get(i).getData(), b.get(i).getData()));
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testDeterministic(). message: " + e);
+        }
+    }
+
+    public void testOffsetExpressions() {
+        System.out.print("\ntesting corpus offset expressions...");
+        try {
+            MagicMatcher mz = matcher("MS-DOS executable", "0", "string", "MZ");
+            MagicMatcher pe = matcher("PE executable", "(0x3c.l)", "string", "PE\0\0");
+            MagicMatcher i386 = matcher("Intel 80386", "&0", "leshort", "0x014c");
+            MagicMatcher nested = matcher("nested", "(&0x3a.b)", "string", "PE");
+            mz.addSubMatcher(pe);
+            mz.addSubMatcher(nested);
+            pe.addSubMatcher(i386);
+
+            CorpusGenerator generator = new CorpusGenerator(Arrays.asList(mz), 0);
+            List<CorpusGenerator.Sample> samples = generator.generate(0);
+            int hits = 0;
+
+            for (CorpusGenerator.Sample sample : samples) {
+                if (sample.getKind().equals(CorpusGenerator.HIT)) {
+                    hits++;
+                }
+
+                if (sample.getName().equals("r0.0.0") && sample.getKind().equals(CorpusGenerator.HIT)) {
+                    // the pointer at 0x3c leads to the PE header and the machine type follows it
+                    byte[] b = sample.getData();
+                    int pe0 = (b[0x3c] & 0xff) | ((b[0x3d] & 0xff) << 8);
+                    assertEquals('P', b[pe0]);
+                    assertEquals(0x4c, b[pe0 + 4]);
+                    assertEquals(0x01, b[pe0 + 5]);
+                    assertEquals(1, mz.test(b, false).getSubMatches().iterator().next().getSubMatches().size());
+                }
+            }
+
+            assertEquals(3, hits);
+            // a relative base inside the parentheses is not resolved
+            assertEquals(1, generator.getUnsupported().size());
+            assertTrue(generator.getUnsupported().get(0).startsWith("r0.1\t"));
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testOffsetExpressions(). message: " + e);
+        }
+    }
+
+    public void testHitsMatchTheirRootRule() {
+        System.out.print("\ntesting corpus hits...");
+        try {
+            List<MagicMatcher> roots = new java.util.ArrayList<MagicMatcher>(Magic.getMatchers());
+            for (CorpusGenerator.Sample sample : new CorpusGenerator(roots, 0).generate(0)) {
+                if (sample.getKind().equals(CorpusGenerator.HIT)) {
+                    int root = Integer.parseInt(sample.getName().substring(1).split("\\.")[0]);
+                    assertNotNull(sample.getName(), roots.get(root).test(sample.getData(), true));
+                }
+            }
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testHitsMatchTheirRootRule(). message: " + e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package gfw.tools;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class RuleProfilerTest extends TestCase {
+
+    public void testProfileDirectory() {
+        System.out.print("\ntesting rule profiler...");
+        try {
+            RuleProfiler profiler = new RuleProfiler(false);
+            int files = profiler.profileDirectory(new File("test_docs"));
+            assertEquals(files, profiler.getFiles());
+            assertTrue(files > 0);
+
+            long rootHits = 0;
+            for (RuleProfiler.RuleStats s : profiler.getRuleStats()) {
+                assertTrue(s.getHits() <= s.getEvaluations());
+                assertTrue(s.getSelfNanos() <= s.getTotalNanos());
+                if (s.getDepth() == 0) {
+                    rootHits += s.getHits();
+                }
+            }
+            // a detection stops at the first root rule that matches
+            assertTrue(rootHits <= files);
+            System.out.print("ok");
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("exception in testProfileDirectory(). message: " + e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+jMimeMagic (TM) is a Java Library for determining the content type of files or streams
+Copyright (C) 2003-2017 David Castro
+*/
+package gfw;
+
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * The byte kernels on jdk.incubator.vector, loaded by {@link ByteKernels} only when the module is
+ * present. Whole vectors are compared at once and the tail is left to the scalar loop.
+ *
+ * @author $Author$
+ * @version $Revision$
+ */
+final class VectorByteKernels extends ByteKernels {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private final ByteKernels scalar = ByteKernels.getScalar();
+
+    public String getName() {
+        return "vector " + SPECIES.vectorBitSize() + " bit";
+    }
+
+    public int mismatch(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+
+        for (; i < bound; i += SPECIES.length()) {
+            VectorMask<Byte> ne = ByteVector.fromArray(SPECIES, a, aOffset + i)
+                    .compare(VectorOperators.NE, ByteVector.fromArray(SPECIES, b, bOffset + i));
+
+            if (ne.anyTrue()) {
+                return i + ne.firstTrue();
+            }
+        }
+
+        int tail = scalar.mismatch(a, aOffset + i, b, bOffset + i, length - i);
+
+        return (tail < 0) ? -1 : (i + tail);
+    }
+
+    public int skipPlainText(byte[] b, int from, int to) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+
+        for (; i < bound; i += SPECIES.length()) {
+            ByteVector v = ByteVector.fromArray(SPECIES, b, i);
+            // bytes are signed, so everything from 0x80 up is below 0x20 here
+            VectorMask<Byte> other = v.compare(VectorOperators.LT, (byte) 0x20)
+                    .or(v.compare(VectorOperators.EQ, (byte) 0x7f))
+                    .andNot(v.compare(VectorOperators.EQ, (byte) '\t'))
+                    .andNot(v.compare(VectorOperators.EQ, (byte) '\n'))
+                    .andNot(v.compare(VectorOperators.EQ, (byte) '\r'));
+
+            if (other.anyTrue()) {
+                return i + other.firstTrue();
+            }
+        }
+
+        return scalar.skipPlainText(b, i, to);
+    }
+}